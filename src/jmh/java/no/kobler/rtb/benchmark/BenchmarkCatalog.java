@@ -0,0 +1,83 @@
+package no.kobler.rtb.benchmark;
+
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.repository.CampaignRepository;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthetic campaign catalog and bid requests for benchmarks.
+ * <p>
+ * Requests draw their keywords from a "hot" vocabulary. A {@code matchRatio} share of the campaigns targets one
+ * hot keyword (plus cold ones); all other campaigns target cold keywords only, which requests never contain.
+ * Budgets are large enough that no campaign runs out during a benchmark run.
+ */
+final class BenchmarkCatalog {
+
+    private static final int KEYWORDS_PER_CAMPAIGN = 5;
+    private static final int COLD_VOCABULARY_SIZE = 20_000;
+    private static final int REQUEST_POOL_SIZE = 256;
+
+    private final List<Campaign> campaigns;
+    private final List<Set<String>> requests;
+
+    BenchmarkCatalog(int catalogSize, int keywordsPerRequest, double matchRatio, long seed) {
+        Random random = new Random(seed);
+
+        this.campaigns = new ArrayList<>(catalogSize);
+        for (int i = 0; i < catalogSize; i++) {
+            Set<String> keywords = new HashSet<>();
+            if (random.nextDouble() < matchRatio) {
+                keywords.add(hotKeyword(random.nextInt(keywordsPerRequest)));
+            }
+            while (keywords.size() < KEYWORDS_PER_CAMPAIGN) {
+                keywords.add("cold-" + random.nextInt(COLD_VOCABULARY_SIZE));
+            }
+            Campaign campaign = new Campaign("campaign-" + i, keywords, new BigDecimal("1000000000.00"));
+            campaign.setId((long) i + 1);
+            campaigns.add(campaign);
+        }
+
+        this.requests = new ArrayList<>(REQUEST_POOL_SIZE);
+        for (int i = 0; i < REQUEST_POOL_SIZE; i++) {
+            Set<String> keywords = new HashSet<>();
+            for (int k = 0; k < keywordsPerRequest; k++) {
+                // vary case and padding the way real requests do
+                String keyword = hotKeyword(k);
+                keywords.add(random.nextBoolean() ? keyword.toUpperCase() : " " + keyword + " ");
+            }
+            requests.add(Set.copyOf(keywords));
+        }
+    }
+
+    private static String hotKeyword(int index) {
+        return "hot-" + index;
+    }
+
+    Set<String> request(long sequence) {
+        return requests.get((int) (sequence % REQUEST_POOL_SIZE));
+    }
+
+    /**
+     * A repository that serves the synthetic catalog and accepts every spend update, without a database.
+     */
+    CampaignRepository repository() {
+        return (CampaignRepository) Proxy.newProxyInstance(
+                CampaignRepository.class.getClassLoader(),
+                new Class<?>[]{CampaignRepository.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "findAll" -> campaigns;
+                    case "incrementSpendingIfNotExceed" -> 1;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "BenchmarkCampaignRepository";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,118 @@
+package no.kobler.rtb.benchmark;
+
+import no.kobler.rtb.catalog.CampaignCatalog;
+import no.kobler.rtb.service.BidOrchestrator;
+import no.kobler.rtb.service.bids.BidDecision;
+import no.kobler.rtb.service.bids.BiddingService;
+import no.kobler.rtb.smoothing.InMemorySmoothingService;
+import no.kobler.rtb.smoothing.SmoothingService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end benchmarks for the bid evaluation path without a database.
+ * <p>
+ * {@code evaluateBid} measures matching, pricing, budget checks, smoothing and spend finalization on the calling
+ * thread. {@code evaluateWithTimeout} adds the executor hand-off done by {@link BidOrchestrator}, using a pool sized
+ * like the one in {@code AsyncConfiguration}. Run with {@code -prof gc} (the profile default) to get allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BidEvaluationBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int catalogSize;
+
+    @Param({"1", "10", "50"})
+    public int keywordsPerRequest;
+
+    @Param({"0.001", "0.01", "0.1"})
+    public double matchRatio;
+
+    /**
+     * "none" accepts every reservation so the matching cost is isolated; "in-memory" uses the real token buckets.
+     */
+    @Param({"none", "in-memory"})
+    public String smoothing;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private BenchmarkCatalog catalog;
+    private BiddingService biddingService;
+    private BidOrchestrator bidOrchestrator;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        catalog = new BenchmarkCatalog(catalogSize, keywordsPerRequest, matchRatio, 42L);
+        var repository = catalog.repository();
+        var campaignCatalog = new CampaignCatalog(repository);
+        campaignCatalog.warmUp();
+
+        biddingService = new BiddingService(repository, campaignCatalog, new Random(42L), smoothingService());
+
+        executor = new ThreadPoolExecutor(10, 50, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(200));
+        bidOrchestrator = new BidOrchestrator(executor, biddingService);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public BidDecision evaluateBid() {
+        long bidId = sequence.incrementAndGet();
+        return biddingService.evaluateBid(bidId, catalog.request(bidId));
+    }
+
+    @Benchmark
+    public Optional<BidDecision> evaluateWithTimeout() {
+        long bidId = sequence.incrementAndGet();
+        return bidOrchestrator.evaluateWithTimeout(bidId, catalog.request(bidId), 500);
+    }
+
+    private SmoothingService smoothingService() {
+        if ("in-memory".equals(smoothing)) {
+            return new InMemorySmoothingService();
+        }
+        return new SmoothingService() {
+            @Override
+            public boolean tryConsume(long campaignId, long amountMinor) {
+                return true;
+            }
+
+            @Override
+            public void refund(long campaignId, long amountMinor) {
+            }
+
+            @Override
+            public double availableTokens(long campaignId) {
+                return Double.MAX_VALUE;
+            }
+        };
+    }
+}
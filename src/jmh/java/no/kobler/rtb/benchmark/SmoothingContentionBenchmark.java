@@ -0,0 +1,173 @@
+package no.kobler.rtb.benchmark;
+
+import no.kobler.rtb.smoothing.AtomicTokenBucket;
+import no.kobler.rtb.smoothing.InMemorySmoothingService;
+import no.kobler.rtb.smoothing.RedisSmoothingService;
+import no.kobler.rtb.smoothing.SmoothingBucket;
+import no.kobler.rtb.smoothing.SmoothingService;
+import no.kobler.rtb.smoothing.TokenBucket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention benchmarks for {@link TokenBucket} and the {@link SmoothingService} implementations.
+ * <p>
+ * Every operation picks a campaign (uniformly or from a Zipfian distribution, where campaign 0 is the hottest),
+ * reserves a random amount and, for a {@code refundRatio} share of the successful reservations, refunds it again.
+ * Thread count defaults to 32 and can be changed with JMH's {@code -t} option.
+ * <p>
+ * Backends:
+ * <ul>
+ *     <li>{@code token-bucket}: an array of {@link TokenBucket}s, i.e. the monitor cost without any map lookup</li>
+ *     <li>{@code atomic-bucket}: the same with {@link AtomicTokenBucket}s</li>
+ *     <li>{@code in-memory}: {@link InMemorySmoothingService} with synchronized buckets</li>
+ *     <li>{@code in-memory-atomic}: {@link InMemorySmoothingService} with atomic buckets</li>
+ *     <li>{@code redis}: {@link RedisSmoothingService} against an embedded Redis started on {@code redisPort}</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class SmoothingContentionBenchmark {
+
+    @Param({"token-bucket", "atomic-bucket", "in-memory", "in-memory-atomic", "redis"})
+    public String backend;
+
+    @Param({"1000"})
+    public int campaigns;
+
+    @Param({"uniform", "zipfian"})
+    public String skew;
+
+    /**
+     * Zipf exponent; 1.0 sends roughly 13% of all operations to the hottest of 1000 campaigns.
+     */
+    @Param({"1.0"})
+    public double zipfExponent;
+
+    @Param({"0.0", "0.1", "0.5"})
+    public double refundRatio;
+
+    @Param({"6390"})
+    public int redisPort;
+
+    private double[] cumulativeWeights;
+    private SmoothingBucket[] buckets;
+    private SmoothingService smoothingService;
+    private RedisServer redisServer;
+    private LettuceConnectionFactory connectionFactory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        cumulativeWeights = "zipfian".equals(skew) ? zipfCdf(campaigns, zipfExponent) : null;
+
+        switch (backend) {
+            case "token-bucket" -> {
+                buckets = new SmoothingBucket[campaigns];
+                Arrays.setAll(buckets, i -> new TokenBucket(10.0, 1.0));
+            }
+            case "atomic-bucket" -> {
+                buckets = new SmoothingBucket[campaigns];
+                Arrays.setAll(buckets, i -> new AtomicTokenBucket(10.0, 1.0));
+            }
+            case "in-memory" -> smoothingService = new InMemorySmoothingService("synchronized");
+            case "in-memory-atomic" -> smoothingService = new InMemorySmoothingService("atomic");
+            case "redis" -> {
+                redisServer = new RedisServer(redisPort);
+                redisServer.start();
+                connectionFactory = new LettuceConnectionFactory("localhost", redisPort);
+                connectionFactory.afterPropertiesSet();
+                var template = new StringRedisTemplate(connectionFactory);
+                template.afterPropertiesSet();
+                smoothingService = new RedisSmoothingService(template);
+            }
+            default -> throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+    }
+
+    @Benchmark
+    public boolean consumeAndRefund(ThreadState state) {
+        int campaign = nextCampaign(state.random);
+        long amountMinor = state.random.nextLong(1, 100);
+
+        boolean reserved = tryConsume(campaign, amountMinor);
+        if (reserved && state.random.nextDouble() < refundRatio) {
+            refund(campaign, amountMinor);
+        }
+        return reserved;
+    }
+
+    private boolean tryConsume(int campaign, long amountMinor) {
+        return buckets != null ?
+                buckets[campaign].tryConsumeMinor(amountMinor) :
+                smoothingService.tryConsume(campaign, amountMinor);
+    }
+
+    private void refund(int campaign, long amountMinor) {
+        if (buckets != null) {
+            buckets[campaign].refundMinor(amountMinor);
+        } else {
+            smoothingService.refund(campaign, amountMinor);
+        }
+    }
+
+    private int nextCampaign(SplittableRandom random) {
+        if (cumulativeWeights == null) {
+            return random.nextInt(campaigns);
+        }
+        int position = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+        return Math.min(position >= 0 ? position : -position - 1, campaigns - 1);
+    }
+
+    private static double[] zipfCdf(int size, double exponent) {
+        double[] cdf = new double[size];
+        double total = 0.0;
+        for (int rank = 1; rank <= size; rank++) {
+            total += 1.0 / Math.pow(rank, exponent);
+            cdf[rank - 1] = total;
+        }
+        for (int i = 0; i < size; i++) {
+            cdf[i] /= total;
+        }
+        return cdf;
+    }
+}
@@ -0,0 +1,179 @@
+package no.kobler.rtb.catalog;
+
+import no.kobler.rtb.model.CampaignChangedEvent;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Copy-on-write campaign catalog used by the bid path.
+ * <p>
+ * Bids read the current {@link CatalogSnapshot} with a single volatile read and never touch the database.
+ * Campaign writes arrive as {@link CampaignChangedEvent}s. Events raised inside a transaction are collected and
+ * applied together once it has committed, so all campaigns written by one transaction (e.g. a bulk import) become
+ * visible in a single new snapshot; events outside a transaction are applied right away. Writers are serialized
+ * on this instance.
+ * Keywords are interned into a {@link KeywordDictionary} on the write path, so bids only compare int ids.
+ * <p>
+ * Campaigns with less than {@code catalog.min-remaining-minor} of budget left are retired from matching (see
+ * {@link CatalogSnapshot}) as soon as recorded spend crosses that threshold, so bids only do work for live
+ * campaigns. A change event that raises the budget brings the campaign back.
+ * <p>
+ * The catalog is loaded from the database when the application is ready, or on first use if that happens earlier.
+ */
+@Component
+@ConditionalOnProperty(name = "catalog.mode", havingValue = "in-memory", matchIfMissing = true)
+public class CampaignCatalog implements CampaignMatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(CampaignCatalog.class);
+
+    // A campaign without a single øre left cannot win any bid
+    static final long DEFAULT_MIN_REMAINING_MINOR = 1;
+
+    private final CampaignRepository campaignRepository;
+    private final KeywordDictionary keywordDictionary = new KeywordDictionary();
+
+    private volatile CatalogSnapshot snapshot;
+    private volatile boolean loaded;
+
+    public CampaignCatalog(CampaignRepository campaignRepository) {
+        this(campaignRepository, DEFAULT_MIN_REMAINING_MINOR);
+    }
+
+    @Autowired
+    public CampaignCatalog(CampaignRepository campaignRepository,
+                           @Value("${catalog.min-remaining-minor:" + DEFAULT_MIN_REMAINING_MINOR + "}")
+                           long minRemainingMinor) {
+        this.campaignRepository = campaignRepository;
+        this.snapshot = CatalogSnapshot.empty(keywordDictionary, minRemainingMinor);
+    }
+
+    /**
+     * Returns the current snapshot. The snapshot never changes, so callers may keep using it for a whole bid.
+     */
+    public CatalogSnapshot snapshot() {
+        if (!loaded) {
+            load();
+        }
+        return snapshot;
+    }
+
+    @Override
+    public List<CatalogCampaign> findMatching(Collection<String> keywords) {
+        return snapshot().findMatching(keywords);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        snapshot();
+    }
+
+    @EventListener
+    public void onCampaignChanged(CampaignChangedEvent event) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(List.of(event));
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        var pending = (List<CampaignChangedEvent>) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            pending = new ArrayList<>();
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(new PendingChanges(pending));
+        }
+        pending.add(event);
+    }
+
+    /**
+     * Derives one snapshot from the current one with all changes applied in order and publishes it.
+     */
+    private synchronized void apply(List<CampaignChangedEvent> events) {
+        CatalogSnapshot next = snapshot;
+        List<CatalogCampaign> saved = new ArrayList<>();
+        for (CampaignChangedEvent event : events) {
+            if (event.removed()) {
+                next = next.withAll(saved).without(event.campaignId());
+                saved.clear();
+            } else {
+                saved.add(CatalogCampaign.from(event, keywordDictionary));
+            }
+        }
+        next = saved.size() == 1 ? next.with(saved.getFirst()) : next.withAll(saved);
+        snapshot = next;
+        log.debug("Published catalog version={} after {} campaign change(s)", next.version(), events.size());
+    }
+
+    /**
+     * Records spend accepted by the database so the next bids see it in their budget pre-check.
+     * A campaign this spend exhausts is retired from matching.
+     */
+    @Override
+    public void recordSpend(long campaignId, long amountMinor) {
+        CatalogSnapshot current = snapshot;
+        CatalogCampaign campaign = current.get(campaignId);
+        if (campaign != null) {
+            campaign.addSpending(amountMinor);
+            if (current.isLive(campaignId) && !current.hasBudgetLeft(campaign)) {
+                retire(campaignId);
+            }
+        }
+    }
+
+    private synchronized void retire(long campaignId) {
+        CatalogCampaign campaign = snapshot.get(campaignId);
+        if (campaign != null && snapshot.isLive(campaignId) && !snapshot.hasBudgetLeft(campaign)) {
+            snapshot = snapshot.with(campaign);
+            log.info("Campaign id={} exhausted (spendingMinor={} budgetMinor={}), retired from matching in version={}",
+                    campaignId, campaign.getSpendingMinor(), campaign.getBudgetMinor(), snapshot.version());
+        }
+    }
+
+    /**
+     * Loads the catalog from the database once. Change events arriving while loading wait on the same monitor,
+     * so a write committed during the load is applied on top of it.
+     */
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        var campaigns = campaignRepository.findAll().stream()
+                .map(campaign -> CatalogCampaign.from(campaign, keywordDictionary))
+                .toList();
+        snapshot = snapshot.rebuild(snapshot.version() + 1, campaigns);
+        loaded = true;
+        log.info("Campaign catalog loaded: version={} campaigns={} live={} keywords={}",
+                snapshot.version(), snapshot.size(), snapshot.liveSize(), keywordDictionary.size());
+    }
+
+    /**
+     * Applies the changes collected during a transaction once it has committed, and drops them otherwise.
+     */
+    private final class PendingChanges implements TransactionSynchronization {
+
+        private final List<CampaignChangedEvent> events;
+
+        private PendingChanges(List<CampaignChangedEvent> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(CampaignCatalog.this);
+            if (status == STATUS_COMMITTED) {
+                apply(events);
+            }
+        }
+    }
+}
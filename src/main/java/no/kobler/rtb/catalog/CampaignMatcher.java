@@ -0,0 +1,22 @@
+package no.kobler.rtb.catalog;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Finds the campaigns a bid can go to. Selected with {@code catalog.mode}:
+ * - in-memory (default): {@link CampaignCatalog}, the whole catalog in a copy-on-write snapshot
+ * - database: {@link DatabaseCampaignMatcher}, an indexed keyword query with a bounded cache of hot keywords
+ */
+public interface CampaignMatcher {
+
+    /**
+     * Returns the live campaigns targeting at least one of the given raw keywords, each campaign once.
+     */
+    List<CatalogCampaign> findMatching(Collection<String> keywords);
+
+    /**
+     * Records spend accepted by the spend ledger so the next bids see it in their budget pre-check.
+     */
+    void recordSpend(long campaignId, long amountMinor);
+}
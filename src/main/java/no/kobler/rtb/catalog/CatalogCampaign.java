@@ -0,0 +1,100 @@
+package no.kobler.rtb.catalog;
+
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.model.CampaignChangedEvent;
+import no.kobler.rtb.model.Money;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only view of a campaign as seen by the bid path.
+ * <p>
+ * Targeting is stored as a sorted array of {@link KeywordDictionary} ids, interned when the campaign enters the
+ * catalog. Budget and spending are kept in minor units ({@link Money}). Everything except spending is immutable.
+ * Spending is tracked locally after each won bid so the budget pre-check stays close to the database value between
+ * catalog updates; the database remains authoritative through {@code CampaignRepository.incrementSpendingIfNotExceed}.
+ */
+public final class CatalogCampaign {
+
+    private final long id;
+    private final String name;
+    private final int[] keywordIds;
+    private final long budgetMinor;
+    private final AtomicLong spendingMinor;
+
+    CatalogCampaign(long id, String name, int[] keywordIds, long budgetMinor, long spendingMinor) {
+        this.id = id;
+        this.name = name;
+        this.keywordIds = keywordIds;
+        this.budgetMinor = budgetMinor;
+        this.spendingMinor = new AtomicLong(spendingMinor);
+    }
+
+    static CatalogCampaign from(Campaign campaign, KeywordDictionary dictionary) {
+        return new CatalogCampaign(campaign.getId(), campaign.getName(),
+                intern(campaign.getKeywords() == null ? Set.of() : campaign.getKeywords(), dictionary),
+                campaign.getBudgetMinor(), campaign.getSpendingMinor());
+    }
+
+    static CatalogCampaign from(CampaignChangedEvent event, KeywordDictionary dictionary) {
+        return new CatalogCampaign(event.campaignId(), event.name(), intern(event.keywords(), dictionary),
+                event.budgetMinor(), event.spendingMinor());
+    }
+
+    /**
+     * Interns the keywords and returns their ids sorted and without duplicates; blank keywords are dropped.
+     */
+    private static int[] intern(Collection<String> keywords, KeywordDictionary dictionary) {
+        return keywords.stream()
+                .filter(Objects::nonNull)
+                .mapToInt(dictionary::intern)
+                .filter(keywordId -> keywordId != KeywordDictionary.UNKNOWN)
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sorted keyword ids this campaign targets. The array is shared and must not be modified.
+     */
+    int[] keywordIds() {
+        return keywordIds;
+    }
+
+    boolean targets(int keywordId) {
+        return Arrays.binarySearch(keywordIds, keywordId) >= 0;
+    }
+
+    public long getBudgetMinor() {
+        return budgetMinor;
+    }
+
+    public long getSpendingMinor() {
+        return spendingMinor.get();
+    }
+
+    public BigDecimal getBudget() {
+        return Money.toDecimal(budgetMinor);
+    }
+
+    public BigDecimal getSpending() {
+        return Money.toDecimal(spendingMinor.get());
+    }
+
+    void addSpending(long amountMinor) {
+        spendingMinor.addAndGet(amountMinor);
+    }
+}
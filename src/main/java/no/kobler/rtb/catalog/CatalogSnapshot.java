@@ -0,0 +1,366 @@
+package no.kobler.rtb.catalog;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, versioned view of the campaign catalog.
+ * <p>
+ * Every campaign occupies a dense int slot that stays the same across versions while the campaign exists.
+ * Posting lists are compressed {@link RoaringBitmap}s of slots, indexed by {@link KeywordDictionary} id, so
+ * the candidates of a multi-keyword request are built with bitmap unions instead of merging Java collections.
+ * <p>
+ * Campaigns with less budget left than {@code minRemainingMinor} are exhausted: they keep their slot, so they can
+ * still be looked up by id, but are left out of the posting bitmaps, so matching only ever visits live campaigns.
+ * Whether a campaign is live is decided whenever a snapshot is derived with it; a campaign that runs out of budget
+ * is retired by deriving a snapshot with it again, and one whose budget is raised comes back the same way.
+ * <p>
+ * Snapshots are never modified after construction; writers derive a new snapshot (cloning only the bitmaps they
+ * change) and publish it atomically, so readers can use one without any locking.
+ */
+public final class CatalogSnapshot {
+
+    private final long version;
+    private final KeywordDictionary dictionary;
+    private final long minRemainingMinor;
+    private final Map<Long, Integer> slotsById;
+    private final CatalogCampaign[] campaignsBySlot;
+    private final RoaringBitmap occupiedSlots;
+    private final RoaringBitmap exhaustedSlots;
+    private final RoaringBitmap[] slotsByKeyword;
+
+    private CatalogSnapshot(long version, KeywordDictionary dictionary, long minRemainingMinor,
+                            Map<Long, Integer> slotsById, CatalogCampaign[] campaignsBySlot,
+                            RoaringBitmap occupiedSlots, RoaringBitmap exhaustedSlots,
+                            RoaringBitmap[] slotsByKeyword) {
+        this.version = version;
+        this.dictionary = dictionary;
+        this.minRemainingMinor = minRemainingMinor;
+        this.slotsById = slotsById;
+        this.campaignsBySlot = campaignsBySlot;
+        this.occupiedSlots = occupiedSlots;
+        this.exhaustedSlots = exhaustedSlots;
+        this.slotsByKeyword = slotsByKeyword;
+    }
+
+    static CatalogSnapshot empty(KeywordDictionary dictionary, long minRemainingMinor) {
+        return new CatalogSnapshot(0L, dictionary, minRemainingMinor, Map.of(), new CatalogCampaign[0],
+                new RoaringBitmap(), new RoaringBitmap(), new RoaringBitmap[0]);
+    }
+
+    /**
+     * Builds a snapshot from scratch with the same exhaustion threshold, assigning slots in iteration order.
+     */
+    CatalogSnapshot rebuild(long version, Collection<CatalogCampaign> campaigns) {
+        return of(version, dictionary, minRemainingMinor, campaigns);
+    }
+
+    /**
+     * Builds a snapshot from scratch, assigning slots in iteration order.
+     */
+    private static CatalogSnapshot of(long version, KeywordDictionary dictionary, long minRemainingMinor,
+                                      Collection<CatalogCampaign> campaigns) {
+        Map<Long, CatalogCampaign> unique = new HashMap<>();
+        campaigns.forEach(campaign -> unique.put(campaign.getId(), campaign));
+
+        Map<Long, Integer> slotsById = new HashMap<>();
+        CatalogCampaign[] campaignsBySlot = new CatalogCampaign[unique.size()];
+        RoaringBitmap[] slotsByKeyword = new RoaringBitmap[dictionary.size()];
+        RoaringBitmap exhaustedSlots = new RoaringBitmap();
+        int slot = 0;
+        for (CatalogCampaign campaign : unique.values()) {
+            slotsById.put(campaign.getId(), slot);
+            campaignsBySlot[slot] = campaign;
+            if (!hasBudgetLeft(campaign, minRemainingMinor)) {
+                exhaustedSlots.add(slot);
+                slot++;
+                continue;
+            }
+            for (int keywordId : campaign.keywordIds()) {
+                if (slotsByKeyword[keywordId] == null) {
+                    slotsByKeyword[keywordId] = new RoaringBitmap();
+                }
+                slotsByKeyword[keywordId].add(slot);
+            }
+            slot++;
+        }
+        for (RoaringBitmap postings : slotsByKeyword) {
+            if (postings != null) {
+                postings.runOptimize();
+            }
+        }
+
+        RoaringBitmap occupiedSlots = new RoaringBitmap();
+        occupiedSlots.add(0L, campaignsBySlot.length);
+        return new CatalogSnapshot(version, dictionary, minRemainingMinor, Map.copyOf(slotsById), campaignsBySlot,
+                occupiedSlots, exhaustedSlots, slotsByKeyword);
+    }
+
+    /**
+     * Returns a new snapshot in which the campaign is added or replaced. A replaced campaign keeps its slot;
+     * a new one takes the lowest free slot. Only the posting bitmaps of keywords the campaign gained or lost
+     * are cloned; all others are shared with this snapshot.
+     */
+    CatalogSnapshot with(CatalogCampaign campaign) {
+        Integer existingSlot = slotsById.get(campaign.getId());
+        CatalogCampaign previous = existingSlot == null ? null : campaignsBySlot[existingSlot];
+        int slot = existingSlot != null ? existingSlot : (int) occupiedSlots.nextAbsentValue(0);
+        boolean wasLive = previous != null && !exhaustedSlots.contains(slot);
+        boolean live = hasBudgetLeft(campaign);
+
+        RoaringBitmap exhaustedSlots = this.exhaustedSlots;
+        if (live == exhaustedSlots.contains(slot)) {
+            exhaustedSlots = this.exhaustedSlots.clone();
+            if (live) {
+                exhaustedSlots.remove(slot);
+            } else {
+                exhaustedSlots.add(slot);
+            }
+        }
+
+        Map<Long, Integer> slotsById = this.slotsById;
+        RoaringBitmap occupiedSlots = this.occupiedSlots;
+        if (existingSlot == null) {
+            slotsById = new HashMap<>(this.slotsById);
+            slotsById.put(campaign.getId(), slot);
+            slotsById = Map.copyOf(slotsById);
+            occupiedSlots = this.occupiedSlots.clone();
+            occupiedSlots.add(slot);
+        }
+
+        CatalogCampaign[] campaignsBySlot = Arrays.copyOf(this.campaignsBySlot,
+                Math.max(this.campaignsBySlot.length, slot + 1));
+        campaignsBySlot[slot] = campaign;
+
+        RoaringBitmap[] slotsByKeyword = Arrays.copyOf(this.slotsByKeyword,
+                Math.max(this.slotsByKeyword.length, dictionary.size()));
+        if (wasLive) {
+            for (int keywordId : previous.keywordIds()) {
+                if (!live || !campaign.targets(keywordId)) {
+                    slotsByKeyword[keywordId] = removeSlot(slotsByKeyword[keywordId], slot);
+                }
+            }
+        }
+        if (live) {
+            for (int keywordId : campaign.keywordIds()) {
+                if (!wasLive || !previous.targets(keywordId)) {
+                    slotsByKeyword[keywordId] = addSlot(slotsByKeyword[keywordId], slot);
+                }
+            }
+        }
+
+        return new CatalogSnapshot(version + 1, dictionary, minRemainingMinor, slotsById, campaignsBySlot,
+                occupiedSlots, exhaustedSlots, slotsByKeyword);
+    }
+
+    /**
+     * Returns a new snapshot in which all given campaigns are added or replaced, as if by {@link #with} in
+     * iteration order, but copying the slot tables once and cloning each touched posting bitmap only once.
+     * Bulk writes use this so publishing k campaigns costs one copy of the catalog instead of k.
+     */
+    CatalogSnapshot withAll(Collection<CatalogCampaign> campaigns) {
+        if (campaigns.isEmpty()) {
+            return this;
+        }
+        Map<Long, Integer> slotsById = new HashMap<>(this.slotsById);
+        RoaringBitmap occupiedSlots = this.occupiedSlots.clone();
+        RoaringBitmap exhaustedSlots = this.exhaustedSlots.clone();
+        CatalogCampaign[] campaignsBySlot = Arrays.copyOf(this.campaignsBySlot,
+                Math.max(this.campaignsBySlot.length, occupiedSlots.getCardinality() + campaigns.size()));
+        RoaringBitmap[] slotsByKeyword = Arrays.copyOf(this.slotsByKeyword,
+                Math.max(this.slotsByKeyword.length, dictionary.size()));
+        boolean[] cloned = new boolean[slotsByKeyword.length];
+
+        for (CatalogCampaign campaign : campaigns) {
+            Integer existingSlot = slotsById.get(campaign.getId());
+            CatalogCampaign previous = existingSlot == null ? null : campaignsBySlot[existingSlot];
+            int slot = existingSlot != null ? existingSlot : (int) occupiedSlots.nextAbsentValue(0);
+            boolean wasLive = previous != null && !exhaustedSlots.contains(slot);
+            boolean live = hasBudgetLeft(campaign);
+            if (existingSlot == null) {
+                slotsById.put(campaign.getId(), slot);
+                occupiedSlots.add(slot);
+            }
+            campaignsBySlot[slot] = campaign;
+            if (live) {
+                exhaustedSlots.remove(slot);
+            } else {
+                exhaustedSlots.add(slot);
+            }
+
+            if (wasLive) {
+                for (int keywordId : previous.keywordIds()) {
+                    if ((!live || !campaign.targets(keywordId)) && slotsByKeyword[keywordId] != null) {
+                        ownedPostings(slotsByKeyword, cloned, keywordId).remove(slot);
+                    }
+                }
+            }
+            if (live) {
+                for (int keywordId : campaign.keywordIds()) {
+                    if (!wasLive || !previous.targets(keywordId)) {
+                        ownedPostings(slotsByKeyword, cloned, keywordId).add(slot);
+                    }
+                }
+            }
+        }
+
+        for (int keywordId = 0; keywordId < cloned.length; keywordId++) {
+            if (cloned[keywordId]) {
+                RoaringBitmap postings = slotsByKeyword[keywordId];
+                if (postings.isEmpty()) {
+                    slotsByKeyword[keywordId] = null;
+                } else {
+                    postings.runOptimize();
+                }
+            }
+        }
+        campaignsBySlot = Arrays.copyOf(campaignsBySlot, Math.max(this.campaignsBySlot.length, occupiedSlots.last() + 1));
+        return new CatalogSnapshot(version + 1, dictionary, minRemainingMinor, Map.copyOf(slotsById), campaignsBySlot,
+                occupiedSlots, exhaustedSlots, slotsByKeyword);
+    }
+
+    /**
+     * Returns a new snapshot without the given campaign, or this snapshot if it is not present.
+     * The freed slot may be reused by a later campaign.
+     */
+    CatalogSnapshot without(long campaignId) {
+        Integer slot = slotsById.get(campaignId);
+        if (slot == null) {
+            return this;
+        }
+        CatalogCampaign previous = campaignsBySlot[slot];
+
+        Map<Long, Integer> slotsById = new HashMap<>(this.slotsById);
+        slotsById.remove(campaignId);
+
+        CatalogCampaign[] campaignsBySlot = this.campaignsBySlot.clone();
+        campaignsBySlot[slot] = null;
+
+        RoaringBitmap occupiedSlots = this.occupiedSlots.clone();
+        occupiedSlots.remove(slot);
+
+        RoaringBitmap exhaustedSlots = this.exhaustedSlots;
+        RoaringBitmap[] slotsByKeyword = this.slotsByKeyword;
+        if (exhaustedSlots.contains(slot)) {
+            exhaustedSlots = this.exhaustedSlots.clone();
+            exhaustedSlots.remove(slot);
+        } else {
+            slotsByKeyword = this.slotsByKeyword.clone();
+            for (int keywordId : previous.keywordIds()) {
+                slotsByKeyword[keywordId] = removeSlot(slotsByKeyword[keywordId], slot);
+            }
+        }
+
+        return new CatalogSnapshot(version + 1, dictionary, minRemainingMinor, Map.copyOf(slotsById), campaignsBySlot,
+                occupiedSlots, exhaustedSlots, slotsByKeyword);
+    }
+
+    /**
+     * Returns the live campaigns targeting at least one of the given keywords.
+     * <p>
+     * Each keyword is resolved to its dictionary id without allocating; unknown keywords cannot match
+     * any campaign and are skipped. The posting bitmaps of the known keywords are then OR-ed together.
+     *
+     * @param keywords the raw incoming keywords
+     * @return the matching campaigns, empty if none match
+     */
+    public List<CatalogCampaign> findMatching(Collection<String> keywords) {
+        RoaringBitmap[] postings = new RoaringBitmap[keywords.size()];
+        int count = 0;
+        for (String keyword : keywords) {
+            RoaringBitmap keywordPostings = keyword == null ? null : postings(dictionary.find(keyword));
+            if (keywordPostings != null) {
+                postings[count++] = keywordPostings;
+            }
+        }
+
+        if (count == 0) {
+            return List.of();
+        }
+        RoaringBitmap candidates = count == 1 ? postings[0] : FastAggregation.or(Arrays.copyOf(postings, count));
+
+        List<CatalogCampaign> matching = new ArrayList<>(candidates.getCardinality());
+        candidates.forEach((int slot) -> matching.add(campaignsBySlot[slot]));
+        return matching;
+    }
+
+    public CatalogCampaign get(long campaignId) {
+        Integer slot = slotsById.get(campaignId);
+        return slot == null ? null : campaignsBySlot[slot];
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        return slotsById.size();
+    }
+
+    /**
+     * Number of campaigns that can currently be matched, i.e. that are not exhausted.
+     */
+    public int liveSize() {
+        return slotsById.size() - exhaustedSlots.getCardinality();
+    }
+
+    /**
+     * Returns true if the campaign is in this snapshot and matchable.
+     */
+    boolean isLive(long campaignId) {
+        Integer slot = slotsById.get(campaignId);
+        return slot != null && !exhaustedSlots.contains(slot);
+    }
+
+    /**
+     * Returns true if the campaign has at least the exhaustion threshold of budget left.
+     */
+    boolean hasBudgetLeft(CatalogCampaign campaign) {
+        return hasBudgetLeft(campaign, minRemainingMinor);
+    }
+
+    private static boolean hasBudgetLeft(CatalogCampaign campaign, long minRemainingMinor) {
+        return campaign.getBudgetMinor() - campaign.getSpendingMinor() >= minRemainingMinor;
+    }
+
+    private RoaringBitmap postings(int keywordId) {
+        if (keywordId < 0 || keywordId >= slotsByKeyword.length) {
+            return null;
+        }
+        return slotsByKeyword[keywordId];
+    }
+
+    /**
+     * Returns the posting bitmap of the keyword in a snapshot under construction, cloning it on first use.
+     */
+    private static RoaringBitmap ownedPostings(RoaringBitmap[] slotsByKeyword, boolean[] cloned, int keywordId) {
+        if (!cloned[keywordId]) {
+            RoaringBitmap postings = slotsByKeyword[keywordId];
+            slotsByKeyword[keywordId] = postings == null ? new RoaringBitmap() : postings.clone();
+            cloned[keywordId] = true;
+        }
+        return slotsByKeyword[keywordId];
+    }
+
+    private static RoaringBitmap addSlot(RoaringBitmap postings, int slot) {
+        RoaringBitmap updated = postings == null ? new RoaringBitmap() : postings.clone();
+        updated.add(slot);
+        return updated;
+    }
+
+    private static RoaringBitmap removeSlot(RoaringBitmap postings, int slot) {
+        if (postings == null || !postings.contains(slot)) {
+            return postings;
+        }
+        RoaringBitmap updated = postings.clone();
+        updated.remove(slot);
+        return updated.isEmpty() ? null : updated;
+    }
+}
@@ -0,0 +1,174 @@
+package no.kobler.rtb.catalog;
+
+import no.kobler.rtb.model.CampaignChangedEvent;
+import no.kobler.rtb.model.KeywordMatch;
+import no.kobler.rtb.model.Keywords;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Low-memory campaign matching for catalogs that should not live in the heap.
+ * <p>
+ * Request keywords are normalized and looked up with one query on the indexed {@code campaign_keyword_index}
+ * table, which only returns campaigns with budget left. Results are cached per keyword in a bounded LRU for
+ * {@code catalog.database.cache-ttl-ms}, so hot keywords are served from memory and only cold ones reach the
+ * database. Matched campaigns are shared between keyword entries through a second bounded LRU, which also carries
+ * locally recorded spend until the next refresh from the database; a campaign evicted from it loses that local
+ * spend, which is harmless because the spend ledger stays authoritative.
+ * <p>
+ * Committed campaign changes drop the affected keywords from the cache, so new campaigns are matched right away.
+ * Both caches are guarded by this instance; the database is queried without holding the lock.
+ */
+@Component
+@ConditionalOnProperty(name = "catalog.mode", havingValue = "database")
+public class DatabaseCampaignMatcher implements CampaignMatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(DatabaseCampaignMatcher.class);
+
+    private static final int[] NO_KEYWORD_IDS = new int[0];
+
+    private final CampaignRepository campaignRepository;
+    private final long minRemainingMinor;
+    private final long cacheTtlNanos;
+    private final LongSupplier nanoClock;
+
+    private final Map<String, CachedKeyword> keywords;
+    private final Map<Long, CatalogCampaign> campaigns;
+
+    @Autowired
+    public DatabaseCampaignMatcher(CampaignRepository campaignRepository,
+                                   @Value("${catalog.min-remaining-minor:" + CampaignCatalog.DEFAULT_MIN_REMAINING_MINOR + "}")
+                                   long minRemainingMinor,
+                                   @Value("${catalog.database.cache-keywords:10000}") int maxCachedKeywords,
+                                   @Value("${catalog.database.cache-campaigns:100000}") int maxCachedCampaigns,
+                                   @Value("${catalog.database.cache-ttl-ms:1000}") long cacheTtlMs) {
+        this(campaignRepository, minRemainingMinor, maxCachedKeywords, maxCachedCampaigns, cacheTtlMs,
+                System::nanoTime);
+    }
+
+    DatabaseCampaignMatcher(CampaignRepository campaignRepository, long minRemainingMinor, int maxCachedKeywords,
+                            int maxCachedCampaigns, long cacheTtlMs, LongSupplier nanoClock) {
+        this.campaignRepository = campaignRepository;
+        this.minRemainingMinor = minRemainingMinor;
+        this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMs);
+        this.nanoClock = nanoClock;
+        this.keywords = lru(maxCachedKeywords);
+        this.campaigns = lru(maxCachedCampaigns);
+        log.info("Database campaign matching: cacheKeywords={} cacheCampaigns={} cacheTtlMs={}",
+                maxCachedKeywords, maxCachedCampaigns, cacheTtlMs);
+    }
+
+    @Override
+    public List<CatalogCampaign> findMatching(Collection<String> rawKeywords) {
+        Set<String> requested = Keywords.normalizeAll(rawKeywords);
+        if (requested.isEmpty()) {
+            return List.of();
+        }
+        long now = nanoClock.getAsLong();
+        Map<Long, CatalogCampaign> matching = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>();
+        synchronized (this) {
+            for (String keyword : requested) {
+                CachedKeyword cached = keywords.get(keyword);
+                if (cached != null && now - cached.loadedAtNanos() < cacheTtlNanos) {
+                    addLive(matching, cached.campaigns());
+                } else {
+                    misses.add(keyword);
+                }
+            }
+        }
+        if (!misses.isEmpty()) {
+            load(misses, now, matching);
+        }
+        return List.copyOf(matching.values());
+    }
+
+    private void load(List<String> misses, long now, Map<Long, CatalogCampaign> matching) {
+        List<KeywordMatch> rows = campaignRepository.findLiveByNormalizedKeywords(misses, minRemainingMinor);
+        log.debug("Loaded {} keyword matches for {} uncached keywords", rows.size(), misses.size());
+
+        Map<String, List<CatalogCampaign>> byKeyword = new HashMap<>();
+        misses.forEach(keyword -> byKeyword.put(keyword, new ArrayList<>()));
+        synchronized (this) {
+            for (KeywordMatch row : rows) {
+                byKeyword.get(row.keyword()).add(canonical(row));
+            }
+            byKeyword.forEach((keyword, loaded) -> {
+                keywords.put(keyword, new CachedKeyword(List.copyOf(loaded), now));
+                addLive(matching, loaded);
+            });
+        }
+    }
+
+    /**
+     * Returns the cached instance of the matched campaign if its budget is unchanged, raising its spending to the
+     * database value if that is higher; otherwise caches a new instance.
+     */
+    private CatalogCampaign canonical(KeywordMatch row) {
+        CatalogCampaign cached = campaigns.get(row.campaignId());
+        if (cached != null && cached.getBudgetMinor() == row.budgetMinor()) {
+            long behind = row.spendingMinor() - cached.getSpendingMinor();
+            if (behind > 0) {
+                cached.addSpending(behind);
+            }
+            return cached;
+        }
+        CatalogCampaign campaign = new CatalogCampaign(row.campaignId(), row.name(), NO_KEYWORD_IDS,
+                row.budgetMinor(), row.spendingMinor());
+        campaigns.put(campaign.getId(), campaign);
+        return campaign;
+    }
+
+    private void addLive(Map<Long, CatalogCampaign> matching, List<CatalogCampaign> candidates) {
+        for (CatalogCampaign campaign : candidates) {
+            if (campaign.getBudgetMinor() - campaign.getSpendingMinor() >= minRemainingMinor) {
+                matching.putIfAbsent(campaign.getId(), campaign);
+            }
+        }
+    }
+
+    @Override
+    public void recordSpend(long campaignId, long amountMinor) {
+        CatalogCampaign campaign;
+        synchronized (this) {
+            campaign = campaigns.get(campaignId);
+        }
+        if (campaign != null) {
+            campaign.addSpending(amountMinor);
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public synchronized void onCampaignChanged(CampaignChangedEvent event) {
+        campaigns.remove(event.campaignId());
+        Keywords.normalizeAll(event.keywords()).forEach(keywords::remove);
+    }
+
+    private static <K, V> Map<K, V> lru(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private record CachedKeyword(List<CatalogCampaign> campaigns, long loadedAtNanos) {
+    }
+}
@@ -0,0 +1,122 @@
+package no.kobler.rtb.catalog;
+
+import no.kobler.rtb.model.Keywords;
+
+/**
+ * Append-only dictionary mapping normalized keywords to dense int ids.
+ * <p>
+ * Keywords are normalized with {@link Keywords}: surrounding whitespace is trimmed and each character is
+ * lower-cased. Campaign keywords are interned once when they enter the catalog; incoming bid keywords are resolved
+ * with {@link #find(CharSequence)}, which normalizes on the fly while probing and therefore allocates nothing.
+ * <p>
+ * Ids are never reused or reassigned, so they can be stored in catalog snapshots of any version.
+ * Lookups are lock-free: entries are immutable and the table is only replaced as a whole when it grows.
+ * Interning is synchronized.
+ */
+public final class KeywordDictionary {
+
+    public static final int UNKNOWN = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+    private volatile int size;
+
+    /**
+     * Returns the id of the given keyword, or {@link #UNKNOWN} if it was never interned or is blank.
+     */
+    public int find(CharSequence keyword) {
+        int start = Keywords.trimStart(keyword);
+        int end = Keywords.trimEnd(keyword, start);
+        if (start == end) {
+            return UNKNOWN;
+        }
+
+        int hash = hash(keyword, start, end);
+        Entry[] entries = table;
+        int mask = entries.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Entry entry = entries[slot];
+            if (entry == null) {
+                return UNKNOWN;
+            }
+            if (entry.hash == hash && entry.matches(keyword, start, end)) {
+                return entry.id;
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the given keyword, assigning the next free id if it is new.
+     *
+     * @return the keyword id, or {@link #UNKNOWN} if the keyword is blank
+     */
+    public synchronized int intern(CharSequence keyword) {
+        int existing = find(keyword);
+        if (existing != UNKNOWN) {
+            return existing;
+        }
+        int start = Keywords.trimStart(keyword);
+        int end = Keywords.trimEnd(keyword, start);
+        if (start == end) {
+            return UNKNOWN;
+        }
+
+        if ((size + 1) * 2 > table.length) {
+            table = resize(table);
+        }
+        Entry entry = new Entry(Keywords.normalize(keyword, start, end), hash(keyword, start, end), size);
+        insert(table, entry);
+        size = entry.id + 1;
+        return entry.id;
+    }
+
+    /**
+     * Number of interned keywords; ids are {@code 0..size()-1}.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static Entry[] resize(Entry[] entries) {
+        Entry[] resized = new Entry[entries.length * 2];
+        for (Entry entry : entries) {
+            if (entry != null) {
+                insert(resized, entry);
+            }
+        }
+        return resized;
+    }
+
+    private static void insert(Entry[] entries, Entry entry) {
+        int mask = entries.length - 1;
+        int slot = entry.hash & mask;
+        while (entries[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        entries[slot] = entry;
+    }
+
+    private static int hash(CharSequence keyword, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Keywords.normalize(keyword.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private record Entry(String keyword, int hash, int id) {
+
+        boolean matches(CharSequence candidate, int start, int end) {
+            if (keyword.length() != end - start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (Keywords.normalize(candidate.charAt(i)) != keyword.charAt(i - start)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package no.kobler.rtb.catalog;
+
+import jakarta.annotation.PostConstruct;
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * Fills {@code campaign_keyword_index} for campaigns stored before that table existed, which
+ * {@link DatabaseCampaignMatcher} would otherwise never match.
+ * <p>
+ * Runs on startup, before the application accepts bids, one keyset page per transaction. Once every campaign is
+ * indexed it costs a single query.
+ */
+@Component
+@ConditionalOnProperty(name = "catalog.mode", havingValue = "database")
+public class KeywordIndexBackfill {
+
+    private static final Logger log = LoggerFactory.getLogger(KeywordIndexBackfill.class);
+
+    private static final int PAGE_SIZE = 500;
+
+    private final CampaignRepository campaignRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    public KeywordIndexBackfill(CampaignRepository campaignRepository, PlatformTransactionManager transactionManager) {
+        this.campaignRepository = campaignRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Indexes the keywords of every campaign that has none indexed.
+     */
+    @PostConstruct
+    public void backfill() {
+        int visited = 0;
+        long afterId = 0L;
+        List<Campaign> page;
+        do {
+            long from = afterId;
+            page = transactionTemplate.execute(status -> {
+                var campaigns = campaignRepository.findUnindexedPageAfter(from, PageRequest.ofSize(PAGE_SIZE));
+                campaigns.forEach(Campaign::reindexKeywords);
+                return campaigns;
+            });
+            if (!page.isEmpty()) {
+                afterId = page.getLast().getId();
+                visited += page.size();
+            }
+        } while (page.size() == PAGE_SIZE);
+        if (visited > 0) {
+            log.info("Backfilled the keyword index of campaigns={}", visited);
+        }
+    }
+}
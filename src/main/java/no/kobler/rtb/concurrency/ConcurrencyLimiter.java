@@ -0,0 +1,109 @@
+package no.kobler.rtb.concurrency;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of bid threads using a shared resource (database, Redis) at the same time.
+ * <p>
+ * With virtual threads the executor no longer bounds concurrency, so every blocked bid would otherwise queue on the
+ * connection pool. A caller that cannot get a permit within the acquire timeout gives up instead of waiting, and
+ * an interrupted caller (e.g. a bid cancelled by {@code BidOrchestrator}) gives up immediately with its interrupt
+ * flag preserved.
+ * <p>
+ * Usage:
+ * <pre>{@code
+ * if (!limiter.tryAcquire()) return fallback;
+ * try { ... } finally { limiter.release(); }
+ * }</pre>
+ */
+public final class ConcurrencyLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    private final String name;
+    private final Semaphore permits;
+    private final long acquireTimeoutMs;
+
+    private ConcurrencyLimiter(String name, Semaphore permits, long acquireTimeoutMs) {
+        this.name = name;
+        this.permits = permits;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    /**
+     * @param maxConcurrent    maximum number of concurrent holders; 0 or less means unlimited
+     * @param acquireTimeoutMs how long {@link #tryAcquire()} waits for a permit
+     */
+    public static ConcurrencyLimiter of(String name, int maxConcurrent, long acquireTimeoutMs) {
+        if (maxConcurrent <= 0) {
+            return unlimited(name);
+        }
+        return new ConcurrencyLimiter(name, new Semaphore(maxConcurrent), acquireTimeoutMs);
+    }
+
+    public static ConcurrencyLimiter unlimited(String name) {
+        return new ConcurrencyLimiter(name, null, 0L);
+    }
+
+    /**
+     * Returns true if a permit was acquired; the caller must then {@link #release()} it.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs));
+    }
+
+    /**
+     * Like {@link #tryAcquire()}, but never waits past the given deadline.
+     */
+    public boolean tryAcquire(Deadline deadline) {
+        return tryAcquire(Math.min(TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs), deadline.remainingNanos()));
+    }
+
+    private boolean tryAcquire(long timeoutNanos) {
+        if (permits == null) {
+            return true;
+        }
+        try {
+            if (permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+            log.debug("No {} permit within {}us", name, TimeUnit.NANOSECONDS.toMicros(timeoutNanos));
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * For background work that must not compete with bids: takes a permit without waiting, and only while more than
+     * `headroom` permits are free. The caller must then {@link #release()} it.
+     */
+    public boolean tryAcquireSpare(int headroom) {
+        if (permits == null) {
+            return true;
+        }
+        return permits.availablePermits() > headroom && permits.tryAcquire();
+    }
+
+    public void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * For monitoring/debugging: free permits, or -1 if unlimited.
+     */
+    public int availablePermits() {
+        return permits == null ? -1 : permits.availablePermits();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,84 @@
+package no.kobler.rtb.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time budget of a single bid, shared between {@code BidOrchestrator} (the caller waiting for an answer) and
+ * {@code BiddingService} (the worker computing it).
+ * <p>
+ * The worker checks the deadline between stages and stops early once it has expired, was abandoned, or its thread
+ * was interrupted. Because the worker may still be inside a side effect when the caller gives up, the two sides also
+ * agree on the outcome: the worker {@link #commit()}s a won bid, the caller {@link #abandon()}s on timeout, and only
+ * the first of the two succeeds. A worker that loses must undo its side effects; a caller that loses must use the
+ * committed result.
+ */
+public final class Deadline {
+
+    private static final int OPEN = 0;
+    private static final int COMMITTED = 1;
+    private static final int ABANDONED = 2;
+
+    private final long deadlineNanos;
+    private final boolean bounded;
+    private final AtomicInteger state = new AtomicInteger(OPEN);
+
+    private Deadline(long deadlineNanos, boolean bounded) {
+        this.deadlineNanos = deadlineNanos;
+        this.bounded = bounded;
+    }
+
+    public static Deadline after(long timeout, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    /**
+     * A deadline that never expires on its own; it can still be abandoned.
+     */
+    public static Deadline none() {
+        return new Deadline(0L, false);
+    }
+
+    /**
+     * Remaining time in nanoseconds, 0 once expired or abandoned, {@link Long#MAX_VALUE} if unbounded.
+     */
+    public long remainingNanos() {
+        if (state.get() == ABANDONED) {
+            return 0L;
+        }
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0L, deadlineNanos - System.nanoTime());
+    }
+
+    public long remainingMillis() {
+        long remaining = remainingNanos();
+        return remaining == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(remaining);
+    }
+
+    /**
+     * True if at least {@code nanos} remain and the current thread has not been interrupted.
+     */
+    public boolean hasRemaining(long nanos) {
+        return !Thread.currentThread().isInterrupted() && remainingNanos() >= Math.max(nanos, 1L);
+    }
+
+    public boolean isExpired() {
+        return !hasRemaining(1L);
+    }
+
+    /**
+     * Called by the worker after its side effects succeeded. Returns false if the caller already gave up.
+     */
+    public boolean commit() {
+        return state.compareAndSet(OPEN, COMMITTED);
+    }
+
+    /**
+     * Called by the caller when it stops waiting. Returns false if the worker already committed.
+     */
+    public boolean abandon() {
+        return state.compareAndSet(OPEN, ABANDONED);
+    }
+}
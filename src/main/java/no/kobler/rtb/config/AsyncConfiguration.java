@@ -1,17 +1,29 @@
 package no.kobler.rtb.config;
 
 
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Executor used by {@code BidOrchestrator}, selected with {@code bid.executor.mode}:
+ * - platform (default): bounded pool of platform threads
+ * - virtual: one virtual thread per bid evaluation
+ * <p>
+ * Blocking resources are protected by {@link ConcurrencyLimiter}s independent of the mode.
+ */
 @Configuration
 public class AsyncConfiguration {
 
     @Bean(name = "bidExecutor")
+    @ConditionalOnProperty(name = "bid.executor.mode", havingValue = "platform", matchIfMissing = true)
     public ThreadPoolTaskExecutor bidExecutor() {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(10);
@@ -23,8 +35,28 @@ public class AsyncConfiguration {
     }
 
     @Bean(name = "bidExecutorService")
+    @ConditionalOnProperty(name = "bid.executor.mode", havingValue = "platform", matchIfMissing = true)
     public ExecutorService bidExecutorService(@Qualifier("bidExecutor") ThreadPoolTaskExecutor bidExecutor) {
         return bidExecutor.getThreadPoolExecutor();
     }
-}
 
+    @Bean(name = "bidExecutorService", destroyMethod = "close")
+    @ConditionalOnProperty(name = "bid.executor.mode", havingValue = "virtual")
+    public ExecutorService virtualBidExecutorService() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("bid-vt-", 0).factory());
+    }
+
+    @Bean(name = "dbConcurrencyLimiter")
+    public ConcurrencyLimiter dbConcurrencyLimiter(
+            @Value("${bid.limits.db.max-concurrent:0}") int maxConcurrent,
+            @Value("${bid.limits.acquire-timeout-ms:100}") long acquireTimeoutMs) {
+        return ConcurrencyLimiter.of("db", maxConcurrent, acquireTimeoutMs);
+    }
+
+    @Bean(name = "redisConcurrencyLimiter")
+    public ConcurrencyLimiter redisConcurrencyLimiter(
+            @Value("${bid.limits.redis.max-concurrent:0}") int maxConcurrent,
+            @Value("${bid.limits.acquire-timeout-ms:100}") long acquireTimeoutMs) {
+        return ConcurrencyLimiter.of("redis", maxConcurrent, acquireTimeoutMs);
+    }
+}
@@ -0,0 +1,35 @@
+package no.kobler.rtb.config;
+
+import no.kobler.rtb.metrics.ConnectionHoldTracker;
+import no.kobler.rtb.metrics.ConnectionTrackingDataSource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/**
+ * Tracks how long JDBC connections are held ({@link ConnectionHoldTracker}) by wrapping the pool's data source.
+ */
+@Configuration
+public class DataSourceConfiguration {
+
+    @Bean
+    public ConnectionHoldTracker connectionHoldTracker() {
+        return new ConnectionHoldTracker();
+    }
+
+    @Bean
+    public static BeanPostProcessor connectionTrackingPostProcessor(ObjectProvider<ConnectionHoldTracker> tracker) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DataSource dataSource && !(bean instanceof ConnectionTrackingDataSource)) {
+                    return new ConnectionTrackingDataSource(dataSource, tracker.getObject());
+                }
+                return bean;
+            }
+        };
+    }
+}
@@ -2,8 +2,8 @@ package no.kobler.rtb.config;
 
 
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
@@ -11,13 +11,13 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 
 
 /**
- * Start an embedded Redis server when property smoothing.type=redis is set.
+ * Start an embedded Redis server for every Redis-backed smoothing.type (redis, hybrid, redis-gcra).
  * Provide a LettuceConnectionFactory and StringRedisTemplate for Spring Data Redis.
  * <p>
  * Note: embedded-redis is used for convenience in dev/tests. In production point to a managed Redis.
  */
 @Configuration
-@ConditionalOnProperty(name = "smoothing.type", havingValue = "redis")
+@Conditional(RedisSmoothingCondition.class)
 public class RedisConfiguration {
 
     @Value("${spring.redis.host:localhost}")
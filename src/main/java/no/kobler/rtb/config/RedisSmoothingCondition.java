@@ -0,0 +1,26 @@
+package no.kobler.rtb.config;
+
+import org.springframework.boot.autoconfigure.condition.AnyNestedCondition;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+
+/**
+ * Matches every Redis-backed smoothing.type: redis, hybrid and redis-gcra.
+ */
+public class RedisSmoothingCondition extends AnyNestedCondition {
+
+    public RedisSmoothingCondition() {
+        super(ConfigurationPhase.REGISTER_BEAN);
+    }
+
+    @ConditionalOnProperty(name = "smoothing.type", havingValue = "redis")
+    static class Redis {
+    }
+
+    @ConditionalOnProperty(name = "smoothing.type", havingValue = "hybrid")
+    static class Hybrid {
+    }
+
+    @ConditionalOnProperty(name = "smoothing.type", havingValue = "redis-gcra")
+    static class RedisGcra {
+    }
+}
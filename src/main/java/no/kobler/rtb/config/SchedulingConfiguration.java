@@ -0,0 +1,12 @@
+package no.kobler.rtb.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables {@code @Scheduled} background tasks (e.g. spend ledger flushes).
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfiguration {
+}
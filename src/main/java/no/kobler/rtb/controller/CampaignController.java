@@ -1,22 +1,35 @@
 package no.kobler.rtb.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.validation.Valid;
+import no.kobler.rtb.dto.CampaignImportResponse;
 import no.kobler.rtb.dto.CampaignRequest;
 import no.kobler.rtb.dto.CampaignResponse;
+import no.kobler.rtb.service.CampaignImportService;
 import no.kobler.rtb.service.CampaignService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.util.List;
+import java.util.Map;
 
 @Validated
 @RestController
@@ -25,10 +38,17 @@ public class CampaignController {
 
     private static final Logger log = LoggerFactory.getLogger(CampaignController.class);
 
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+
     private final CampaignService campaignService;
+    private final CampaignImportService campaignImportService;
+    private final ObjectMapper objectMapper;
 
-    public CampaignController(CampaignService campaignService) {
+    public CampaignController(CampaignService campaignService, CampaignImportService campaignImportService,
+                              ObjectMapper objectMapper) {
         this.campaignService = campaignService;
+        this.campaignImportService = campaignImportService;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping
@@ -41,6 +61,30 @@ public class CampaignController {
         return ResponseEntity.created(location).body(campaignResponse);
     }
 
+    /**
+     * Imports campaigns from a streamed NDJSON or CSV body (see {@link CampaignImportService.Format}).
+     * All campaigns are imported, or none if a line is invalid.
+     */
+    @PostMapping(value = "/import",
+            consumes = {MediaType.APPLICATION_NDJSON_VALUE, CampaignImportService.TEXT_CSV_VALUE})
+    public ResponseEntity<?> importCampaigns(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+                                             InputStream body) {
+        var format = MediaType.APPLICATION_NDJSON.isCompatibleWith(MediaType.parseMediaType(contentType)) ?
+                CampaignImportService.Format.NDJSON :
+                CampaignImportService.Format.CSV;
+        log.info("Received request to import campaigns as {}", format);
+
+        try {
+            int imported = campaignImportService.importCampaigns(body, format);
+            return ResponseEntity.ok(new CampaignImportResponse(imported));
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            log.warn("Campaign import rejected: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of(
+                    "error", "Import failed",
+                    "details", e.getMessage()));
+        }
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<CampaignResponse> getCampaign(@PathVariable Long id) {
         log.info("Received request to fetch campaign id={}", id);
@@ -54,9 +98,55 @@ public class CampaignController {
         }
     }
 
+    /**
+     * Lists all campaigns, or with `afterId` or `limit` one keyset page of them in id order. Pass the id of the last
+     * campaign of a page as `afterId` to fetch the next one; the `Link` header carries that URL while a page is full.
+     */
     @GetMapping
-    public ResponseEntity<List<CampaignResponse>> getCampaigns() {
-        log.info("Received request to list all campaigns");
-        return ResponseEntity.ok(campaignService.listCampaigns());
+    public ResponseEntity<List<CampaignResponse>> getCampaigns(@RequestParam(required = false) Long afterId,
+                                                               @RequestParam(required = false) Integer limit) {
+        if (afterId == null && limit == null) {
+            log.info("Received request to list all campaigns");
+            return ResponseEntity.ok(campaignService.listCampaigns());
+        }
+        return getCampaignPage(afterId == null ? 0L : afterId,
+                limit == null ? CampaignService.DEFAULT_PAGE_SIZE : limit);
+    }
+
+    private ResponseEntity<List<CampaignResponse>> getCampaignPage(long afterId, int limit) {
+        log.info("Received request to list campaigns after id={} limit={}", afterId, limit);
+
+        var campaigns = campaignService.listCampaigns(afterId, limit);
+        var response = ResponseEntity.ok();
+        if (!campaigns.isEmpty() && campaigns.size() >= Math.min(limit, CampaignService.MAX_PAGE_SIZE)) {
+            long lastId = campaigns.getLast().getId();
+            response.header(HttpHeaders.LINK,
+                    "</campaigns?afterId=" + lastId + "&limit=" + campaigns.size() + ">; rel=\"next\"");
+        }
+        return response.body(campaigns);
+    }
+
+    /**
+     * Streams all campaigns as newline-delimited JSON, read in keyset pages and written as they are read.
+     */
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamCampaigns() {
+        log.info("Received request to stream all campaigns");
+
+        StreamingResponseBody body = outputStream -> {
+            var out = new BufferedOutputStream(outputStream, STREAM_BUFFER_BYTES);
+            campaignService.streamCampaigns(campaign -> writeLine(out, campaign));
+            out.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    private void writeLine(BufferedOutputStream out, CampaignResponse campaign) {
+        try {
+            out.write(objectMapper.writeValueAsBytes(campaign));
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
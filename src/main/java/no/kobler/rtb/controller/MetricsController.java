@@ -0,0 +1,27 @@
+package no.kobler.rtb.controller;
+
+import no.kobler.rtb.metrics.ConnectionHoldTracker;
+import no.kobler.rtb.metrics.ConnectionHoldTracker.ConnectionHoldStats;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    private final ConnectionHoldTracker connectionHoldTracker;
+
+    public MetricsController(ConnectionHoldTracker connectionHoldTracker) {
+        this.connectionHoldTracker = connectionHoldTracker;
+    }
+
+    /**
+     * JDBC connection hold times, overall and per evaluated bid.
+     */
+    @GetMapping("/db-connections")
+    public ResponseEntity<ConnectionHoldStats> dbConnections() {
+        return ResponseEntity.ok(connectionHoldTracker.snapshot());
+    }
+}
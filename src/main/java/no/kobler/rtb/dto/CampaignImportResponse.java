@@ -0,0 +1,21 @@
+package no.kobler.rtb.dto;
+
+public class CampaignImportResponse {
+
+    private int imported;
+
+    public CampaignImportResponse() {
+    }
+
+    public CampaignImportResponse(int imported) {
+        this.imported = imported;
+    }
+
+    public int getImported() {
+        return imported;
+    }
+
+    public void setImported(int imported) {
+        this.imported = imported;
+    }
+}
@@ -1,6 +1,7 @@
 package no.kobler.rtb.dto;
 
 import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Digits;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 import jakarta.validation.constraints.Size;
@@ -19,6 +20,7 @@ public class CampaignRequest {
 
     @NotNull(message = "Budget cannot be null")
     @DecimalMin(value = "0.0", inclusive = false, message = "Budget must be greater than zero")
+    @Digits(integer = 15, fraction = 2, message = "Budget must have at most two decimals")
     private BigDecimal budget;
 
     public CampaignRequest() {
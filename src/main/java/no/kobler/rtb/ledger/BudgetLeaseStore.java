@@ -0,0 +1,154 @@
+package no.kobler.rtb.ledger;
+
+import no.kobler.rtb.model.BudgetLease;
+import no.kobler.rtb.repository.BudgetLeaseRepository;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Database side of {@link WriteBehindSpendLedger}: every operation keeps the campaign's {@code reserved_minor} and
+ * {@code spending_minor} in step with the {@code budget_lease} rows in one transaction.
+ */
+@Component
+@ConditionalOnProperty(name = "spend.ledger.mode", havingValue = "write-behind")
+public class BudgetLeaseStore {
+
+    private static final String FLUSH_SPEND_SQL =
+            "UPDATE campaign SET spending_minor = spending_minor + ? WHERE id = ?";
+    private static final String FLUSH_LEASE_SQL =
+            "UPDATE budget_lease SET flushed_minor = flushed_minor + ? WHERE campaign_id = ? AND node_id = ?";
+    private static final String FLUSH_REFUND_SQL =
+            "UPDATE campaign SET spending_minor = spending_minor - ?, reserved_minor = reserved_minor - ? WHERE id = ?";
+
+    private final CampaignRepository campaignRepository;
+    private final BudgetLeaseRepository leaseRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    public BudgetLeaseStore(CampaignRepository campaignRepository, BudgetLeaseRepository leaseRepository,
+                            JdbcTemplate jdbcTemplate) {
+        this.campaignRepository = campaignRepository;
+        this.leaseRepository = leaseRepository;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Claims `amountMinor` of the campaign's remaining budget for the node. Returns false if not enough is left.
+     */
+    @Transactional
+    public boolean claim(long campaignId, String nodeId, long amountMinor, Instant expiresAt) {
+        if (campaignRepository.reserveHeadroom(campaignId, amountMinor) == 0) {
+            return false;
+        }
+        if (leaseRepository.extend(campaignId, nodeId, amountMinor, expiresAt) == 0) {
+            leaseRepository.save(new BudgetLease(campaignId, nodeId, amountMinor, expiresAt));
+        }
+        return true;
+    }
+
+    /**
+     * Adds the spend deltas to the node's leases and renews all of them. A delta is added to its campaign only if the
+     * node still holds the lease: a lease that expired was settled with its outstanding part counted as spent, which
+     * covers the delta already. Deltas of campaigns whose lease the node returned itself (`released`) stay reserved
+     * by {@link #release} and are added to the campaign directly. `refunds` were taken while the node held no lease
+     * and come off the campaign's spend and reservation.
+     * Returns the campaigns whose lease the node still holds after the renewal; any other lease it believed it held
+     * expired and was settled.
+     */
+    @Transactional
+    public Set<Long> flush(String nodeId, long[] campaignIds, long[] deltas, boolean[] released, long[] refunds,
+                           Instant expiresAt) {
+        List<Object[]> spend = new ArrayList<>(campaignIds.length);
+        List<Object[]> leases = new ArrayList<>(campaignIds.length);
+        List<Object[]> unleasedRefunds = new ArrayList<>();
+        int[] leaseIndex = new int[campaignIds.length];
+        for (int i = 0; i < campaignIds.length; i++) {
+            if (refunds[i] != 0L) {
+                unleasedRefunds.add(new Object[]{refunds[i], refunds[i], campaignIds[i]});
+            }
+            if (deltas[i] == 0L) {
+                continue;
+            }
+            if (released[i]) {
+                spend.add(new Object[]{deltas[i], campaignIds[i]});
+            } else {
+                leaseIndex[leases.size()] = i;
+                leases.add(new Object[]{deltas[i], campaignIds[i], nodeId});
+            }
+        }
+        int[] updated = leases.isEmpty() ? new int[0] : jdbcTemplate.batchUpdate(FLUSH_LEASE_SQL, leases);
+        for (int j = 0; j < updated.length; j++) {
+            int i = leaseIndex[j];
+            if (updated[j] != 0) {
+                spend.add(new Object[]{deltas[i], campaignIds[i]});
+            }
+        }
+        if (!spend.isEmpty()) {
+            jdbcTemplate.batchUpdate(FLUSH_SPEND_SQL, spend);
+        }
+        if (!unleasedRefunds.isEmpty()) {
+            jdbcTemplate.batchUpdate(FLUSH_REFUND_SQL, unleasedRefunds);
+        }
+        leaseRepository.renewAll(nodeId, expiresAt);
+        return new HashSet<>(leaseRepository.findCampaignIdsByNodeId(nodeId));
+    }
+
+    /**
+     * Returns the unused part of a lease to the campaign and drops the lease. Spend taken from the lease but not
+     * flushed yet stays reserved and is added to the campaign by a later flush.
+     */
+    @Transactional
+    public void release(long campaignId, String nodeId, long unusedMinor) {
+        if (leaseRepository.deleteLease(campaignId, nodeId) > 0 && unusedMinor > 0) {
+            campaignRepository.releaseHeadroom(campaignId, unusedMinor);
+        }
+    }
+
+    /**
+     * Settles leases the node left behind on an unclean shutdown. Returns number of campaigns adjusted.
+     */
+    @Transactional
+    public int settleNodeLeases(String nodeId) {
+        int settled = leaseRepository.settleNodeLeases(nodeId);
+        leaseRepository.deleteNodeLeases(nodeId);
+        return settled;
+    }
+
+    /**
+     * Adds spend recovered from the node's journal to the campaigns whose lease the node still holds, then returns
+     * the rest of those leases. Spend under leases that already expired was settled with them. Returns number of
+     * campaigns whose spend was recovered.
+     */
+    @Transactional
+    public int recoverNodeLeases(String nodeId, Map<Long, Long> pendingSpend) {
+        int recovered = 0;
+        for (Map.Entry<Long, Long> entry : pendingSpend.entrySet()) {
+            if (jdbcTemplate.update(FLUSH_LEASE_SQL, entry.getValue(), entry.getKey(), nodeId) > 0) {
+                jdbcTemplate.update(FLUSH_SPEND_SQL, entry.getValue(), entry.getKey());
+                recovered++;
+            }
+        }
+        leaseRepository.releaseNodeLeases(nodeId);
+        leaseRepository.deleteNodeLeases(nodeId);
+        return recovered;
+    }
+
+    /**
+     * Settles leases of any node that stopped renewing them. Returns number of campaigns adjusted.
+     */
+    @Transactional
+    public int settleExpiredLeases(Instant now) {
+        int settled = leaseRepository.settleExpiredLeases(now);
+        leaseRepository.deleteExpiredLeases(now);
+        return settled;
+    }
+}
@@ -0,0 +1,48 @@
+package no.kobler.rtb.ledger;
+
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.concurrency.Deadline;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Spend ledger that writes every win straight to the campaign row with
+ * {@link CampaignRepository#incrementSpendingIfNotExceed}, holding a {@code db} permit while doing so.
+ */
+@Service
+@ConditionalOnProperty(name = "spend.ledger.mode", havingValue = "direct", matchIfMissing = true)
+public class DirectSpendLedger implements SpendLedger {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectSpendLedger.class);
+
+    private final CampaignRepository campaignRepository;
+    private final ConcurrencyLimiter dbLimiter;
+
+    public DirectSpendLedger(CampaignRepository campaignRepository,
+                             @Qualifier("dbConcurrencyLimiter") ConcurrencyLimiter dbLimiter) {
+        this.campaignRepository = campaignRepository;
+        this.dbLimiter = dbLimiter;
+    }
+
+    @Override
+    public boolean tryDebit(long campaignId, long amountMinor, long bidId, Deadline deadline) {
+        if (!dbLimiter.tryAcquire(deadline)) {
+            log.debug("No DB permit for campaignId={}", campaignId);
+            return false;
+        }
+        try {
+            return campaignRepository.incrementSpendingIfNotExceed(campaignId, amountMinor) > 0;
+        } finally {
+            dbLimiter.release();
+        }
+    }
+
+    @Override
+    public void credit(long campaignId, long amountMinor, long bidId) {
+        campaignRepository.decrementSpending(campaignId, amountMinor);
+    }
+}
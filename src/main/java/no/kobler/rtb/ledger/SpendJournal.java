@@ -0,0 +1,246 @@
+package no.kobler.rtb.ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, memory-mapped journal of locally admitted spend, so spend held in memory ahead of the database
+ * survives a crash of the process.
+ * <p>
+ * Records are fixed-size (40 bytes, little endian): campaign id, bid id, amount (øre), timestamp (epoch ms), type and
+ * a CRC32C of the preceding 36 bytes. A zero type marks the end of the journal and a CRC mismatch a torn write;
+ * reading stops at either. Appends only copy into the mapped file, which the OS writes back on its own, so a bid
+ * never waits for I/O; the file is forced to disk at every checkpoint.
+ * <p>
+ * Checkpoints bracket a flush of pending spend to the database: {@link #beginCheckpoint()} before the pending
+ * counters are read, {@link #commitCheckpoint(long)} once the flush committed. {@link #replay()} sums the events
+ * recorded after the last committed checkpoint began. Spend appended while a flush was running may have been
+ * flushed already and is then replayed again, which only ever over-counts spend.
+ * <p>
+ * The journal alternates between two files. When a committed checkpoint finds the active file more than half full,
+ * the records after it are copied to the other file, whose header (with a higher generation) is written last, so a
+ * crash during the switch leaves the old file in charge.
+ */
+public class SpendJournal implements Closeable {
+
+    static final int RECORD_BYTES = 40;
+    static final int HEADER_BYTES = 16;
+
+    static final int SPEND = 1;
+    static final int REFUND = 2;
+    static final int CHECKPOINT = 3;
+
+    private static final long MAGIC = 0x0052_4254_4A52_4E4CL; // "RBTJRNL"
+
+    private final Path directory;
+    private final int capacityBytes;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int activeFile;
+    private long generation;
+    private int position;
+
+    private SpendJournal(Path directory, int capacityBytes) {
+        if (capacityBytes < HEADER_BYTES + 4 * RECORD_BYTES) {
+            throw new IllegalArgumentException("journal capacity too small: " + capacityBytes);
+        }
+        this.directory = directory;
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * Opens the journal in `directory`, continuing the newest valid file or starting a new one.
+     */
+    public static SpendJournal open(Path directory, int capacityBytes) throws IOException {
+        Files.createDirectories(directory);
+        SpendJournal journal = new SpendJournal(directory, capacityBytes);
+        journal.openNewest();
+        return journal;
+    }
+
+    private void openNewest() throws IOException {
+        long first = readGeneration(file(0));
+        long second = readGeneration(file(1));
+        if (first < 0 && second < 0) {
+            Files.deleteIfExists(file(0));
+            map(0, capacityBytes);
+            generation = 0L;
+            writeHeader();
+            position = HEADER_BYTES;
+            return;
+        }
+        int newest = first >= second ? 0 : 1;
+        map(newest, Files.size(file(newest)));
+        generation = Math.max(first, second);
+        position = scanEnd();
+    }
+
+    // --- writing ---
+
+    /**
+     * Appends a spend event. Returns false if the journal is full.
+     */
+    public synchronized boolean appendSpend(long campaignId, long bidId, long amountMinor) {
+        return append(SPEND, campaignId, bidId, amountMinor);
+    }
+
+    /**
+     * Appends a refund event. Returns false if the journal is full.
+     */
+    public synchronized boolean appendRefund(long campaignId, long bidId, long amountMinor) {
+        return append(REFUND, campaignId, bidId, amountMinor);
+    }
+
+    /**
+     * Marks the start of a flush. Pass the result to {@link #commitCheckpoint(long)} once the flush committed.
+     */
+    public synchronized long beginCheckpoint() {
+        return position;
+    }
+
+    /**
+     * Records that all spend appended before `begin` is in the database, and forces the journal to disk.
+     */
+    public synchronized void commitCheckpoint(long begin) throws IOException {
+        if (position > buffer.capacity() / 2 || !append(CHECKPOINT, 0L, 0L, begin)) {
+            rotate((int) begin);
+        }
+        buffer.force();
+    }
+
+    private boolean append(int type, long campaignId, long bidId, long amount) {
+        if (position + RECORD_BYTES > buffer.capacity()) {
+            return false;
+        }
+        buffer.putLong(position, campaignId);
+        buffer.putLong(position + 8, bidId);
+        buffer.putLong(position + 16, amount);
+        buffer.putLong(position + 24, System.currentTimeMillis());
+        buffer.putInt(position + 32, type);
+        buffer.putInt(position + 36, crc(buffer, position));
+        position += RECORD_BYTES;
+        return true;
+    }
+
+    /**
+     * Moves the records from `from` on into the other file, which then becomes the active one.
+     */
+    private void rotate(int from) throws IOException {
+        ByteBuffer tail = buffer.slice(from, position - from);
+        int next = 1 - activeFile;
+        Files.deleteIfExists(file(next));
+
+        MappedByteBuffer previous = buffer;
+        FileChannel previousChannel = channel;
+        map(next, Math.max(capacityBytes, HEADER_BYTES + 2 * tail.remaining()));
+        buffer.put(HEADER_BYTES, tail, 0, tail.remaining());
+        position = HEADER_BYTES + tail.remaining();
+        buffer.force();
+        generation++;
+        writeHeader();
+        buffer.force();
+
+        previous.force();
+        previousChannel.close();
+    }
+
+    private void map(int index, long size) throws IOException {
+        channel = FileChannel.open(file(index), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        activeFile = index;
+    }
+
+    private void writeHeader() {
+        buffer.putLong(8, generation);
+        buffer.putLong(0, MAGIC);
+    }
+
+    // --- reading ---
+
+    /**
+     * Net spend per campaign (spend minus refunds) that may not be in the database yet.
+     */
+    public synchronized Map<Long, Long> replay() {
+        int start = HEADER_BYTES;
+        for (int at = HEADER_BYTES; at < position; at += RECORD_BYTES) {
+            if (buffer.getInt(at + 32) == CHECKPOINT) {
+                start = (int) buffer.getLong(at + 16);
+            }
+        }
+        Map<Long, Long> pending = new HashMap<>();
+        for (int at = start; at < position; at += RECORD_BYTES) {
+            int type = buffer.getInt(at + 32);
+            long campaignId = buffer.getLong(at);
+            long amount = buffer.getLong(at + 16);
+            if (type == SPEND) {
+                pending.merge(campaignId, amount, Long::sum);
+            } else if (type == REFUND) {
+                pending.merge(campaignId, -amount, Long::sum);
+            }
+        }
+        pending.values().removeIf(amount -> amount == 0L);
+        return pending;
+    }
+
+    /**
+     * Position after the last intact record.
+     */
+    private int scanEnd() {
+        int at = HEADER_BYTES;
+        while (at + RECORD_BYTES <= buffer.capacity()) {
+            int type = buffer.getInt(at + 32);
+            if (type == 0 || buffer.getInt(at + 36) != crc(buffer, at)) {
+                break;
+            }
+            at += RECORD_BYTES;
+        }
+        return at;
+    }
+
+    private static long readGeneration(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) < HEADER_BYTES) {
+            return -1L;
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ch.read(header, 0);
+            return header.getLong(0) == MAGIC ? header.getLong(8) : -1L;
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int at) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(at, RECORD_BYTES - 4));
+        return (int) crc.getValue();
+    }
+
+    private Path file(int index) {
+        return directory.resolve("spend-journal-" + index + ".bin");
+    }
+
+    /**
+     * For monitoring/debugging: bytes in use in the active file.
+     */
+    public synchronized int usedBytes() {
+        return position;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,33 @@
+package no.kobler.rtb.ledger;
+
+import no.kobler.rtb.concurrency.Deadline;
+
+/**
+ * Budget admission and spend accounting for won bids. Amounts are in minor units (øre).
+ * <p>
+ * The implementation is selected with {@code spend.ledger.mode}:
+ * - direct (default): every win is a conditional UPDATE of the campaign row ({@link DirectSpendLedger})
+ * - write-behind: wins are admitted against budget leased to this node and flushed in batches
+ * ({@link WriteBehindSpendLedger})
+ */
+public interface SpendLedger {
+
+    /**
+     * Records `amountMinor` as spent for the campaign if that keeps it within its budget.
+     * Returns false if the budget does not allow it or the ledger could not decide before the deadline.
+     * May throw if the database fails.
+     */
+    boolean tryDebit(long campaignId, long amountMinor, long bidId, Deadline deadline);
+
+    /**
+     * Gives back a previously debited amount, e.g. for a bid that was never delivered.
+     */
+    void credit(long campaignId, long amountMinor, long bidId);
+
+    /**
+     * Spend this node has admitted for the campaign that is not in the campaign row yet.
+     */
+    default long unflushedMinor(long campaignId) {
+        return 0L;
+    }
+}
@@ -0,0 +1,234 @@
+package no.kobler.rtb.ledger;
+
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.model.CampaignChangedEvent;
+import no.kobler.rtb.model.CampaignSpend;
+import no.kobler.rtb.repository.CampaignRepository;
+import no.kobler.rtb.smoothing.SmoothingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Background job that repairs drift between smoothing state and recorded spend.
+ * <p>
+ * Every reservation in the smoothing buckets is either turned into spend or refunded, but refunds are best-effort:
+ * one lost to a Redis error leaves tokens consumed for spend that never happened, and the campaign is throttled for
+ * it. Per campaign the job compares how much the net consumed counter ({@link SmoothingService#consumedMinor}) and
+ * the recorded spend (campaign row plus spend this node has not flushed) have grown since a baseline. Consumed
+ * growing faster than spend is drift; when it has been seen in {@code reconciliation.settle-runs} consecutive runs,
+ * the smallest amount seen is refunded, so bids in flight between reservation and debit are not mistaken for drift.
+ * Spend growing faster than consumed (e.g. an expired Redis bucket) only moves the baseline: the job never adds
+ * spend, budget is guarded by the {@link SpendLedger}.
+ * <p>
+ * Campaigns are walked in keyset pages of {@code reconciliation.batch-size}, one query, one counter read and at most
+ * one bulk refund per page, up to {@code reconciliation.max-batches-per-run} pages per run; the next run resumes
+ * where this one stopped. A page is only read while the {@code db} and {@code redis} limiters have more than
+ * {@code reconciliation.headroom.*} permits free, and the job never waits for one, so it yields to bids under load.
+ * <p>
+ * With the {@link WriteBehindSpendLedger} only this node's unflushed spend is known, while the Redis counters include
+ * reservations of every node: other nodes' unflushed spend would look like drift and real reservations would be
+ * refunded. A lease-based cluster figure does not help either, since returning unused lease looks like spend going
+ * down. The job therefore refuses to start with write-behind unless {@code reconciliation.single-node} confirms
+ * this is the only node.
+ */
+@Component
+@ConditionalOnProperty(name = "reconciliation.enabled", havingValue = "true")
+public class SpendReconciler {
+
+    private static final Logger log = LoggerFactory.getLogger(SpendReconciler.class);
+
+    private final CampaignRepository campaignRepository;
+    private final SmoothingService smoothingService;
+    private final SpendLedger spendLedger;
+    private final ConcurrencyLimiter dbLimiter;
+    private final ConcurrencyLimiter redisLimiter;
+    private final int batchSize;
+    private final int maxBatchesPerRun;
+    private final int settleRuns;
+    private final int dbHeadroom;
+    private final int redisHeadroom;
+
+    private final Map<Long, Drift> drifts = new ConcurrentHashMap<>();
+    private long afterId;
+
+    public SpendReconciler(CampaignRepository campaignRepository,
+                           SmoothingService smoothingService,
+                           SpendLedger spendLedger,
+                           @Qualifier("dbConcurrencyLimiter") ConcurrencyLimiter dbLimiter,
+                           @Qualifier("redisConcurrencyLimiter") ConcurrencyLimiter redisLimiter,
+                           @Value("${reconciliation.batch-size:500}") int batchSize,
+                           @Value("${reconciliation.max-batches-per-run:20}") int maxBatchesPerRun,
+                           @Value("${reconciliation.settle-runs:3}") int settleRuns,
+                           @Value("${reconciliation.headroom.db:2}") int dbHeadroom,
+                           @Value("${reconciliation.headroom.redis:8}") int redisHeadroom,
+                           @Value("${reconciliation.single-node:false}") boolean singleNode) {
+        if (batchSize <= 0 || maxBatchesPerRun <= 0 || settleRuns <= 0) {
+            throw new IllegalArgumentException("reconciliation batch-size, max-batches-per-run and settle-runs must be positive");
+        }
+        if (spendLedger instanceof WriteBehindSpendLedger && !singleNode) {
+            throw new IllegalStateException("reconciliation cannot see other nodes' unflushed write-behind spend; " +
+                    "set reconciliation.single-node=true if this is the only node, or disable reconciliation");
+        }
+        this.campaignRepository = campaignRepository;
+        this.smoothingService = smoothingService;
+        this.spendLedger = spendLedger;
+        this.dbLimiter = dbLimiter;
+        this.redisLimiter = redisLimiter;
+        this.batchSize = batchSize;
+        this.maxBatchesPerRun = maxBatchesPerRun;
+        this.settleRuns = settleRuns;
+        this.dbHeadroom = dbHeadroom;
+        this.redisHeadroom = redisHeadroom;
+    }
+
+    @Scheduled(fixedDelayString = "${reconciliation.interval-ms:10000}",
+            initialDelayString = "${reconciliation.interval-ms:10000}")
+    public synchronized void reconcile() {
+        try {
+            for (int batch = 0; batch < maxBatchesPerRun; batch++) {
+                if (!reconcileBatch()) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Spend reconciliation stopped at campaign id>{}: {}", afterId, e.getMessage());
+        }
+    }
+
+    /**
+     * A changed campaign (e.g. spending corrected by hand) starts over from a new baseline.
+     */
+    @EventListener
+    public void onCampaignChanged(CampaignChangedEvent event) {
+        drifts.remove(event.campaignId());
+    }
+
+    /**
+     * Reconciles the next page. Returns false when the run should stop: no spare capacity, or the end of the
+     * campaigns was reached.
+     */
+    private boolean reconcileBatch() {
+        if (!dbLimiter.tryAcquireSpare(dbHeadroom)) {
+            log.debug("No spare DB capacity, reconciliation resumes at campaign id>{} next run", afterId);
+            return false;
+        }
+        List<CampaignSpend> page;
+        try {
+            page = campaignRepository.findSpendPageAfter(afterId, PageRequest.of(0, batchSize));
+        } finally {
+            dbLimiter.release();
+        }
+        if (page.isEmpty()) {
+            afterId = 0;
+            return false;
+        }
+        // spend is read before the counters, so a bid in flight can only look like drift and never hide it
+        Map<Long, Long> spent = new HashMap<>(page.size() * 2);
+        for (CampaignSpend campaign : page) {
+            long campaignId = campaign.campaignId();
+            spent.put(campaignId, campaign.spendingMinor() + spendLedger.unflushedMinor(campaignId));
+        }
+
+        if (!redisLimiter.tryAcquireSpare(redisHeadroom)) {
+            log.debug("No spare Redis capacity, reconciliation resumes at campaign id>{} next run", afterId);
+            return false;
+        }
+        try {
+            Map<Long, Long> refunds = settle(spent, smoothingService.consumedMinor(spent.keySet()));
+            if (!refunds.isEmpty()) {
+                smoothingService.refundAll(refunds);
+                log.info("Refunded smoothing drift of {} campaigns ({} øre in total)",
+                        refunds.size(), refunds.values().stream().mapToLong(Long::longValue).sum());
+            }
+        } finally {
+            redisLimiter.release();
+        }
+
+        if (page.size() < batchSize) {
+            afterId = 0;
+            return false;
+        }
+        afterId = page.getLast().campaignId();
+        return true;
+    }
+
+    /**
+     * Updates the drift of every campaign of the page and returns the amounts that have settled, per campaign.
+     */
+    private Map<Long, Long> settle(Map<Long, Long> spent, Map<Long, Long> consumed) {
+        Map<Long, Long> refunds = new HashMap<>();
+        spent.forEach((campaignId, spentMinor) -> {
+            Long consumedMinor = consumed.get(campaignId);
+            if (consumedMinor == null) {
+                drifts.remove(campaignId);
+                return;
+            }
+            Drift drift = drifts.get(campaignId);
+            if (drift == null) {
+                drifts.put(campaignId, new Drift(consumedMinor, spentMinor));
+                return;
+            }
+            long excess = drift.excess(consumedMinor, spentMinor);
+            if (excess < 0) {
+                log.warn("Smoothing of campaignId={} consumed {} øre less than was spent since the last baseline, " +
+                        "re-baselining", campaignId, -excess);
+                drifts.put(campaignId, new Drift(consumedMinor, spentMinor));
+                return;
+            }
+            long settled = drift.observe(excess, settleRuns);
+            if (settled > 0) {
+                refunds.put(campaignId, settled);
+            }
+        });
+        return refunds;
+    }
+
+    /**
+     * Consumed and spent amounts at the baseline, and the drift seen in the runs since it was last zero or refunded.
+     * A refund lowers the consumed counter, so the baseline stays valid after it.
+     */
+    private static final class Drift {
+
+        private final long consumedBase;
+        private final long spentBase;
+        private long smallestMinor;
+        private int runs;
+
+        private Drift(long consumedBase, long spentBase) {
+            this.consumedBase = consumedBase;
+            this.spentBase = spentBase;
+        }
+
+        private long excess(long consumedMinor, long spentMinor) {
+            return (consumedMinor - consumedBase) - (spentMinor - spentBase);
+        }
+
+        /**
+         * Returns the smallest excess of the last `settleRuns` runs once every one of them saw some, otherwise 0.
+         */
+        private long observe(long excess, int settleRuns) {
+            if (excess == 0) {
+                runs = 0;
+                return 0;
+            }
+            smallestMinor = runs == 0 ? excess : Math.min(smallestMinor, excess);
+            if (++runs < settleRuns) {
+                return 0;
+            }
+            runs = 0;
+            return smallestMinor;
+        }
+    }
+}
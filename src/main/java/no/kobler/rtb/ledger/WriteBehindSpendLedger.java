@@ -0,0 +1,508 @@
+package no.kobler.rtb.ledger;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.concurrency.Deadline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spend ledger that admits wins against budget leased to this node and writes spend to the database in batches.
+ * <p>
+ * A lease is a slice of a campaign's remaining budget claimed atomically in the database ({@link BudgetLeaseStore}),
+ * so several nodes can spend the same campaign without contending on its row for every win. Per campaign the ledger
+ * keeps two atomic counters: headroom (leased but not yet spent here) and pending spend (spent here but not yet
+ * flushed). A win only moves amount from headroom to pending with a CAS; the database is involved when headroom
+ * runs out, and then extends the lease by a chunk sized to the campaign's recent spend rate (about
+ * {@code spend.ledger.lease.target-seconds} of spending, between the min and max chunk), so hot campaigns claim
+ * large slices and cold ones small slices.
+ * <p>
+ * Pending spend is flushed every {@code spend.ledger.flush-interval-ms} as one JDBC batch, which also renews this
+ * node's leases for {@code spend.ledger.lease.ttl-ms}. A lease whose campaign has not spent for
+ * {@code spend.ledger.lease.idle-ms} is returned, and a clean shutdown flushes and returns all of them. Leases of
+ * a node that stopped without returning them expire, and any node then counts their outstanding part as spent: the
+ * budget is never exceeded, at worst a lease per campaign is under-spent. Only leases the last flush found in the
+ * database are renewed locally, and a refund becomes headroom again only while the lease is held. A campaign without
+ * a lease is forgotten after another idle period.
+ * <p>
+ * With {@code spend.ledger.journal.dir} set, every local spend and refund is also appended to a memory-mapped
+ * {@link SpendJournal}. On startup, before the application accepts bids, the journal is replayed: unflushed spend is
+ * added to the campaigns and the rest of the node's leases is returned, instead of counting whole leases as spent.
+ * This needs a stable {@code spend.ledger.lease.node-id}.
+ */
+@Service
+@ConditionalOnProperty(name = "spend.ledger.mode", havingValue = "write-behind")
+public class WriteBehindSpendLedger implements SpendLedger {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindSpendLedger.class);
+
+    /**
+     * Weight of the latest flush interval in the spend rate estimate.
+     */
+    private static final double RATE_SMOOTHING = 0.5;
+
+    private final BudgetLeaseStore leaseStore;
+    private final ConcurrencyLimiter dbLimiter;
+    private final String nodeId;
+    private final long minChunkMinor;
+    private final long maxChunkMinor;
+    private final double targetSeconds;
+    private final long ttlMs;
+    private final long ttlNanos;
+    private final long idleNanos;
+
+    private final SpendJournal journal;
+
+    /**
+     * Makes a journaled refund happen entirely before or entirely after a flush's checkpoint and snapshot, so a
+     * refund is never both flushed and replayed.
+     */
+    private final Object refundLock = new Object();
+
+    private final Map<Long, Account> accounts = new ConcurrentHashMap<>();
+
+    public WriteBehindSpendLedger(BudgetLeaseStore leaseStore,
+                                  @Qualifier("dbConcurrencyLimiter") ConcurrencyLimiter dbLimiter,
+                                  @Value("${spend.ledger.lease.node-id:}") String nodeId,
+                                  @Value("${spend.ledger.lease.min-chunk-minor:500}") long minChunkMinor,
+                                  @Value("${spend.ledger.lease.max-chunk-minor:50000}") long maxChunkMinor,
+                                  @Value("${spend.ledger.lease.target-seconds:10}") double targetSeconds,
+                                  @Value("${spend.ledger.lease.ttl-ms:30000}") long ttlMs,
+                                  @Value("${spend.ledger.lease.idle-ms:10000}") long idleMs,
+                                  @Value("${spend.ledger.journal.dir:}") String journalDir,
+                                  @Value("${spend.ledger.journal.capacity-bytes:67108864}") int journalCapacityBytes) {
+        if (minChunkMinor <= 0 || maxChunkMinor < minChunkMinor) {
+            throw new IllegalArgumentException("lease chunks must satisfy 0 < min-chunk-minor <= max-chunk-minor");
+        }
+        this.leaseStore = leaseStore;
+        this.dbLimiter = dbLimiter;
+        this.nodeId = nodeId == null || nodeId.isBlank() ? UUID.randomUUID().toString() : nodeId;
+        this.minChunkMinor = minChunkMinor;
+        this.maxChunkMinor = maxChunkMinor;
+        this.targetSeconds = targetSeconds;
+        this.ttlMs = ttlMs;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+        this.journal = journalDir == null || journalDir.isBlank() ? null : openJournal(journalDir, journalCapacityBytes);
+        if (journal != null && (nodeId == null || nodeId.isBlank())) {
+            log.warn("Spend journal enabled without spend.ledger.lease.node-id: it cannot be matched to this " +
+                    "node's leases after a restart");
+        }
+    }
+
+    private static SpendJournal openJournal(String dir, int capacityBytes) {
+        try {
+            return SpendJournal.open(Path.of(dir), capacityBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open spend journal in " + dir, e);
+        }
+    }
+
+    /**
+     * Settles leases a previous run with the same node id left behind, e.g. after a crash: from the journal if there
+     * is one, otherwise by counting them as spent.
+     */
+    @PostConstruct
+    void recover() {
+        if (journal == null) {
+            int settled = leaseStore.settleNodeLeases(nodeId);
+            if (settled > 0) {
+                log.warn("Settled {} budget leases of node {} left by an unclean shutdown", settled, nodeId);
+            }
+            return;
+        }
+        long checkpoint = journal.beginCheckpoint();
+        Map<Long, Long> unflushed = journal.replay();
+        int recovered = leaseStore.recoverNodeLeases(nodeId, unflushed);
+        checkpoint(checkpoint);
+        if (!unflushed.isEmpty()) {
+            log.warn("Recovered unflushed spend of {} campaigns from the spend journal", recovered);
+        }
+    }
+
+    @Override
+    public boolean tryDebit(long campaignId, long amountMinor, long bidId, Deadline deadline) {
+        while (true) {
+            Account account = accounts.computeIfAbsent(campaignId, id -> new Account());
+            if (!account.tryTake(amountMinor)) {
+                synchronized (account) {
+                    if (account.retired) {
+                        continue; // forgotten by flush() meanwhile: retry on a fresh account
+                    }
+                    // another thread may have extended the lease while we waited
+                    if (!account.tryTake(amountMinor)
+                            && !(extendLease(campaignId, account, amountMinor, deadline)
+                            && account.tryTake(amountMinor))) {
+                        return false;
+                    }
+                }
+            }
+            // journaled after the pending add, so a checkpoint never covers spend the flush did not see
+            if (journal != null && !journal.appendSpend(campaignId, bidId, amountMinor)) {
+                log.warn("Spend journal full, rejecting spend of campaignId={}", campaignId);
+                synchronized (account) {
+                    account.giveBack(amountMinor);
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void credit(long campaignId, long amountMinor, long bidId) {
+        while (true) {
+            Account account = accounts.computeIfAbsent(campaignId, id -> new Account());
+            synchronized (account) {
+                if (account.retired) {
+                    continue;
+                }
+                if (journal == null) {
+                    account.giveBack(amountMinor);
+                    return;
+                }
+                synchronized (refundLock) {
+                    if (!journal.appendRefund(campaignId, bidId, amountMinor)) {
+                        log.warn("Spend journal full, refund of campaignId={} is only durable after the next flush",
+                                campaignId);
+                    }
+                    account.giveBack(amountMinor);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Extends the lease by an adaptive chunk, or just by the shortfall when less than a chunk of budget is left.
+     */
+    private boolean extendLease(long campaignId, Account account, long amountMinor, Deadline deadline) {
+        if (!dbLimiter.tryAcquire(deadline)) {
+            log.debug("No DB permit to extend the lease of campaignId={}", campaignId);
+            return false;
+        }
+        try {
+            long shortfall = amountMinor - account.headroom.get();
+            long chunk = Math.max(chunkSize(account), shortfall);
+            long validUntilNanos = System.nanoTime() + ttlNanos;
+            Instant expiresAt = leaseExpiry();
+            if (leaseStore.claim(campaignId, nodeId, chunk, expiresAt)) {
+                account.headroom.addAndGet(chunk);
+                account.claimed(validUntilNanos);
+                log.debug("Leased {} minor for campaignId={}", chunk, campaignId);
+                return true;
+            }
+            if (chunk > shortfall && leaseStore.claim(campaignId, nodeId, shortfall, expiresAt)) {
+                account.headroom.addAndGet(shortfall);
+                account.claimed(validUntilNanos);
+                return true;
+            }
+            return false;
+        } finally {
+            dbLimiter.release();
+        }
+    }
+
+    private long chunkSize(Account account) {
+        long byRate = Math.round(account.spendRatePerSecond * targetSeconds);
+        return Math.min(maxChunkMinor, Math.max(minChunkMinor, byRate));
+    }
+
+    /**
+     * Writes all pending spend to the database as one batch and renews this node's leases, then returns leases of
+     * idle campaigns and forgets campaigns that have had no lease for another idle period. Deltas of a failed batch
+     * are kept for the next flush.
+     */
+    @Scheduled(fixedDelayString = "${spend.ledger.flush-interval-ms:1000}")
+    public synchronized void flush() {
+        long now = System.nanoTime();
+        List<Long> campaignIds = new ArrayList<>();
+        List<Long> deltas = new ArrayList<>();
+        List<Boolean> released = new ArrayList<>();
+        List<Long> refunds = new ArrayList<>();
+        long checkpoint;
+        synchronized (refundLock) {
+            checkpoint = journal == null ? -1L : journal.beginCheckpoint();
+            accounts.forEach((campaignId, account) -> {
+                long delta = account.pending.getAndSet(0L);
+                long refund = account.unleasedRefunds.getAndSet(0L);
+                account.updateRate(delta, now);
+                if (delta != 0L || refund != 0L) {
+                    campaignIds.add(campaignId);
+                    deltas.add(delta);
+                    released.add(account.released);
+                    refunds.add(refund);
+                }
+            });
+        }
+
+        long validUntilNanos = System.nanoTime() + ttlNanos;
+        Instant expiresAt = leaseExpiry();
+        try {
+            Set<Long> held = leaseStore.flush(nodeId, toArray(campaignIds), toArray(deltas), toFlags(released),
+                    toArray(refunds), expiresAt);
+            accounts.forEach((campaignId, account) -> {
+                if (held.contains(campaignId)) {
+                    account.renewUntil(validUntilNanos);
+                } else if (account.leased) {
+                    dropLostLease(campaignId, account, now);
+                }
+            });
+            checkpoint(checkpoint);
+            if (!campaignIds.isEmpty()) {
+                log.debug("Flushed spend of {} campaigns", campaignIds.size());
+            }
+        } catch (Exception e) {
+            log.error("Spend flush of {} campaigns failed, retrying next interval: {}", campaignIds.size(),
+                    e.getMessage());
+            for (int i = 0; i < campaignIds.size(); i++) {
+                Account account = accounts.get(campaignIds.get(i));
+                account.pending.addAndGet(deltas.get(i));
+                account.unleasedRefunds.addAndGet(refunds.get(i));
+            }
+            return;
+        }
+
+        accounts.forEach((campaignId, account) -> {
+            if (account.leased && now - account.lastSpendNanos >= idleNanos) {
+                returnLease(campaignId, account);
+            } else if (!account.leased && now - account.lastSpendNanos >= 2 * idleNanos) {
+                retire(campaignId, account);
+            }
+        });
+    }
+
+    /**
+     * Drops the headroom of a lease the database no longer has: it expired and was settled, with its headroom and any
+     * delta flushed against it counted as spent already. A lease claimed after the flush began is left alone.
+     */
+    private void dropLostLease(long campaignId, Account account, long flushStartedNanos) {
+        synchronized (account) {
+            if (!account.leased || account.claimedAtNanos - flushStartedNanos >= 0) {
+                return;
+            }
+            log.warn("Lease of campaignId={} was lost, dropping its headroom", campaignId);
+            account.headroom.set(0L);
+            account.leased = false;
+        }
+    }
+
+    /**
+     * Forgets a campaign without a lease or unflushed spend. Threads that still hold the account see it retired and
+     * retry on a fresh one.
+     */
+    private void retire(long campaignId, Account account) {
+        synchronized (account) {
+            if (account.leased || account.pending.get() != 0L || account.unleasedRefunds.get() != 0L) {
+                return;
+            }
+            account.retired = true;
+        }
+        accounts.remove(campaignId, account);
+    }
+
+    /**
+     * Settles leases of nodes that stopped renewing them.
+     */
+    @Scheduled(fixedDelayString = "${spend.ledger.lease.ttl-ms:30000}")
+    public void settleExpiredLeases() {
+        int settled = leaseStore.settleExpiredLeases(Instant.now());
+        if (settled > 0) {
+            log.warn("Settled {} expired budget leases", settled);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+        accounts.forEach(this::returnLease);
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Failed to close the spend journal: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void checkpoint(long begin) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.commitCheckpoint(begin);
+        } catch (IOException e) {
+            // the next checkpoint covers this flush as well; until then a restart replays it again
+            log.error("Spend journal checkpoint failed: {}", e.getMessage());
+        }
+    }
+
+    private void returnLease(long campaignId, Account account) {
+        synchronized (account) {
+            if (!account.leased) {
+                return;
+            }
+            account.leased = false;
+            long unused = account.headroom.getAndSet(0L);
+            try {
+                leaseStore.release(campaignId, nodeId, unused);
+                account.released = true;
+                log.debug("Returned {} minor of the lease of campaignId={}", unused, campaignId);
+            } catch (Exception e) {
+                // the lease expires and is settled as spent
+                log.error("Failed to return the lease of campaignId={}: {}", campaignId, e.getMessage());
+            }
+        }
+    }
+
+    private Instant leaseExpiry() {
+        return Instant.now().plusMillis(ttlMs);
+    }
+
+    /**
+     * For monitoring/debugging: spend admitted locally but not flushed yet.
+     */
+    public long pendingSpend(long campaignId) {
+        Account account = accounts.get(campaignId);
+        return account == null ? 0L : account.pending.get() - account.unleasedRefunds.get();
+    }
+
+    @Override
+    public long unflushedMinor(long campaignId) {
+        return pendingSpend(campaignId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * For monitoring/debugging: campaigns this node currently keeps state for.
+     */
+    public int accountCount() {
+        return accounts.size();
+    }
+
+    private static long[] toArray(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static boolean[] toFlags(List<Boolean> values) {
+        boolean[] flags = new boolean[values.size()];
+        for (int i = 0; i < flags.length; i++) {
+            flags[i] = values.get(i);
+        }
+        return flags;
+    }
+
+    private static final class Account {
+
+        final AtomicLong headroom = new AtomicLong();
+        final AtomicLong pending = new AtomicLong();
+
+        /**
+         * Refunds taken while the node held no lease for the campaign. Their spend was flushed, settled or is pending
+         * under a lease that is gone, so they are taken off the campaign's spend and reservation directly.
+         */
+        final AtomicLong unleasedRefunds = new AtomicLong();
+
+        /**
+         * Local view of the lease expiry ({@link System#nanoTime()}); headroom is not spent past it, since other
+         * nodes may settle the lease by then.
+         */
+        volatile long leaseExpiresAtNanos = System.nanoTime();
+
+        /**
+         * Whether the node holds a lease for the campaign. Written under the account's monitor.
+         */
+        volatile boolean leased;
+
+        // guarded by the account's monitor
+        long claimedAtNanos = System.nanoTime();
+        boolean retired;
+
+        /**
+         * True while the lease was returned by this node (not lost); spend and refunds flushed meanwhile are added
+         * to the campaign without a lease. Written under the account's monitor, read by flush().
+         */
+        volatile boolean released;
+
+        // only touched by flush()
+        double spendRatePerSecond;
+        long lastFlushNanos = System.nanoTime();
+        long lastSpendNanos = lastFlushNanos;
+
+        boolean tryTake(long amountMinor) {
+            if (System.nanoTime() - leaseExpiresAtNanos >= 0) {
+                return false;
+            }
+            long current;
+            do {
+                current = headroom.get();
+                if (current < amountMinor) {
+                    return false;
+                }
+            } while (!headroom.compareAndSet(current, current - amountMinor));
+            pending.addAndGet(amountMinor);
+            return true;
+        }
+
+        /**
+         * Undoes spend. The amount becomes headroom again only while the lease is held; otherwise no
+         * {@code budget_lease} row backs it. Called under the account's monitor.
+         */
+        void giveBack(long amountMinor) {
+            if (leased) {
+                pending.addAndGet(-amountMinor);
+                headroom.addAndGet(amountMinor);
+            } else {
+                unleasedRefunds.addAndGet(amountMinor);
+            }
+        }
+
+        /**
+         * Records a successful claim. Called under the account's monitor.
+         */
+        void claimed(long expiresAtNanos) {
+            leased = true;
+            released = false;
+            claimedAtNanos = System.nanoTime();
+            renewUntil(expiresAtNanos);
+        }
+
+        void renewUntil(long expiresAtNanos) {
+            leaseExpiresAtNanos = expiresAtNanos;
+        }
+
+        void updateRate(long deltaMinor, long now) {
+            double seconds = (now - lastFlushNanos) / 1e9;
+            if (seconds > 0) {
+                double rate = Math.max(0L, deltaMinor) / seconds;
+                spendRatePerSecond = RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * spendRatePerSecond;
+            }
+            lastFlushNanos = now;
+            if (deltaMinor != 0L) {
+                lastSpendNanos = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package no.kobler.rtb.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how long JDBC connections are held, both per connection checkout and per bid.
+ * <p>
+ * Checkouts are reported by {@link ConnectionTrackingDataSource}. Hold time is also summed per thread, so
+ * {@code BiddingService} can attribute it to a bid by reading {@link #heldByCurrentThreadNanos()} before and after
+ * evaluating it and reporting the difference with {@link #recordBid(long)}.
+ */
+public class ConnectionHoldTracker {
+
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder checkoutHoldNanos = new LongAdder();
+    private final AtomicLong maxCheckoutHoldNanos = new AtomicLong();
+    private final AtomicInteger open = new AtomicInteger();
+
+    private final LongAdder bids = new LongAdder();
+    private final LongAdder bidsHoldingConnection = new LongAdder();
+    private final LongAdder bidHoldNanos = new LongAdder();
+    private final AtomicLong maxBidHoldNanos = new AtomicLong();
+
+    private final ThreadLocal<long[]> heldByThread = ThreadLocal.withInitial(() -> new long[1]);
+
+    void connectionOpened() {
+        open.incrementAndGet();
+    }
+
+    void connectionClosed(long holdNanos) {
+        open.decrementAndGet();
+        checkouts.increment();
+        checkoutHoldNanos.add(holdNanos);
+        maxCheckoutHoldNanos.accumulateAndGet(holdNanos, Math::max);
+        heldByThread.get()[0] += holdNanos;
+    }
+
+    /**
+     * Total time connections closed by the current thread were held.
+     */
+    public long heldByCurrentThreadNanos() {
+        return heldByThread.get()[0];
+    }
+
+    /**
+     * Records the connection hold time of one evaluated bid.
+     */
+    public void recordBid(long holdNanos) {
+        bids.increment();
+        if (holdNanos > 0) {
+            bidsHoldingConnection.increment();
+            bidHoldNanos.add(holdNanos);
+            maxBidHoldNanos.accumulateAndGet(holdNanos, Math::max);
+        }
+    }
+
+    public ConnectionHoldStats snapshot() {
+        return new ConnectionHoldStats(
+                open.get(),
+                checkouts.sum(),
+                checkoutHoldNanos.sum() / 1_000,
+                maxCheckoutHoldNanos.get() / 1_000,
+                bids.sum(),
+                bidsHoldingConnection.sum(),
+                bidHoldNanos.sum() / 1_000,
+                maxBidHoldNanos.get() / 1_000);
+    }
+
+    /**
+     * Point-in-time view of the counters; durations in microseconds.
+     */
+    public record ConnectionHoldStats(int openConnections,
+                                      long checkouts,
+                                      long checkoutHoldMicros,
+                                      long maxCheckoutHoldMicros,
+                                      long bids,
+                                      long bidsHoldingConnection,
+                                      long bidHoldMicros,
+                                      long maxBidHoldMicros) {
+    }
+}
@@ -0,0 +1,36 @@
+package no.kobler.rtb.metrics;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Wraps the pool so every connection reports to {@link ConnectionHoldTracker} how long it was checked out, from
+ * {@code getConnection()} until {@code close()} returns it to the pool. Connections are wrapped in a plain
+ * delegating {@link TrackedConnection}, so the bid path pays no reflection per JDBC call.
+ */
+public class ConnectionTrackingDataSource extends DelegatingDataSource {
+
+    private final ConnectionHoldTracker tracker;
+
+    public ConnectionTrackingDataSource(DataSource target, ConnectionHoldTracker tracker) {
+        super(target);
+        this.tracker = tracker;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return track(obtainTargetDataSource().getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return track(obtainTargetDataSource().getConnection(username, password));
+    }
+
+    private Connection track(Connection connection) {
+        return new TrackedConnection(connection, tracker);
+    }
+}
@@ -0,0 +1,90 @@
+package no.kobler.rtb.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+
+import java.time.Instant;
+
+/**
+ * A slice of a campaign's budget claimed by one application node for write-behind spending.
+ * <p>
+ * {@code grantedMinor} is the budget claimed so far and {@code flushedMinor} the part of it already added to the
+ * campaign's spending; the difference is still held by the node. The node renews {@code expiresAt} on every flush,
+ * so a lease that expires belongs to a node that stopped, and its outstanding part is counted as spent.
+ */
+@Entity
+@Table(name = "budget_lease", uniqueConstraints = @UniqueConstraint(columnNames = {"campaign_id", "node_id"}))
+public class BudgetLease {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "campaign_id", nullable = false)
+    private long campaignId;
+
+    @Column(name = "node_id", nullable = false)
+    private String nodeId;
+
+    @Column(name = "granted_minor", nullable = false)
+    private long grantedMinor;
+
+    @Column(name = "flushed_minor", nullable = false)
+    private long flushedMinor;
+
+    @Column(name = "expires_at", nullable = false)
+    private Instant expiresAt;
+
+    public BudgetLease() {
+    }
+
+    public BudgetLease(long campaignId, String nodeId, long grantedMinor, Instant expiresAt) {
+        this.campaignId = campaignId;
+        this.nodeId = nodeId;
+        this.grantedMinor = grantedMinor;
+        this.expiresAt = expiresAt;
+    }
+
+    // getters & setters
+
+    public Long getId() {
+        return id;
+    }
+
+    public long getCampaignId() {
+        return campaignId;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getGrantedMinor() {
+        return grantedMinor;
+    }
+
+    public void setGrantedMinor(long grantedMinor) {
+        this.grantedMinor = grantedMinor;
+    }
+
+    public long getFlushedMinor() {
+        return flushedMinor;
+    }
+
+    public void setFlushedMinor(long flushedMinor) {
+        this.flushedMinor = flushedMinor;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Instant expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
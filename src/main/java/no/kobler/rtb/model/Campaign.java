@@ -4,37 +4,72 @@ import jakarta.persistence.CollectionTable;
 import jakarta.persistence.Column;
 import jakarta.persistence.ElementCollection;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EntityListeners;
 import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
+import org.hibernate.annotations.BatchSize;
 
 import java.math.BigDecimal;
 import java.util.HashSet;
 import java.util.Set;
 
 @Entity
+@EntityListeners(CampaignEntityListener.class)
 @Table(name = "campaign")
 public class Campaign {
 
+    /**
+     * Ids come from a pooled sequence (one round trip per 50 ids) rather than an identity column, so Hibernate
+     * can defer and batch inserts.
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "campaign_seq")
+    @SequenceGenerator(name = "campaign_seq", sequenceName = "campaign_seq", allocationSize = 50)
     private Long id;
 
     private String name;
 
+    /**
+     * Bulk reads either fetch-join the keywords (see {@code CampaignRepository}) or load them for up to a full
+     * page of campaigns per query, so reading many campaigns never costs one keyword query per campaign.
+     */
     @ElementCollection(fetch = FetchType.EAGER)
+    @BatchSize(size = 1000)
     @CollectionTable(name = "campaign_keywords", joinColumns = @JoinColumn(name = "campaign_id"))
     @Column(name = "keyword")
     private Set<String> keywords = new HashSet<>();
 
-    @Column(nullable = false)
-    private BigDecimal budget;
-
-    @Column(nullable = false)
-    private BigDecimal spending = new BigDecimal("0.0");
+    /**
+     * The keywords normalized with {@link Keywords#normalize}, in an indexed table for query-based matching.
+     * Derived from {@link #keywords} whenever they are set; never loaded by the other reads.
+     */
+    @ElementCollection
+    @CollectionTable(name = "campaign_keyword_index", joinColumns = @JoinColumn(name = "campaign_id"),
+            indexes = @Index(name = "idx_campaign_keyword_index_keyword", columnList = "keyword, campaign_id"))
+    @Column(name = "keyword", nullable = false)
+    private Set<String> normalizedKeywords = new HashSet<>();
+
+    /**
+     * Budget and spending are stored in minor units (øre), see {@link Money}.
+     */
+    @Column(name = "budget_minor", nullable = false)
+    private long budgetMinor;
+
+    @Column(name = "spending_minor", nullable = false)
+    private long spendingMinor;
+
+    /**
+     * Budget claimed by budget leases of the write-behind spend ledger, spent or not; spending never exceeds it in
+     * that mode.
+     */
+    @Column(name = "reserved_minor", nullable = false)
+    private long reservedMinor;
 
     public Campaign() {
     }
@@ -42,8 +77,9 @@ public class Campaign {
     public Campaign(String name, Set<String> keywords, BigDecimal budget) {
         this.name = name;
         this.keywords = keywords;
-        this.budget = budget;
-        this.spending = new BigDecimal("0.0");
+        this.normalizedKeywords = Keywords.normalizeAll(keywords);
+        this.budgetMinor = Money.toMinor(budget);
+        this.spendingMinor = 0L;
     }
 
     // getters & setters
@@ -70,21 +106,53 @@ public class Campaign {
 
     public void setKeywords(Set<String> keywords) {
         this.keywords = keywords;
+        this.normalizedKeywords = Keywords.normalizeAll(keywords);
+    }
+
+    /**
+     * Rebuilds the normalized keywords from the keywords, for campaigns stored before the index table existed.
+     */
+    public void reindexKeywords() {
+        this.normalizedKeywords = Keywords.normalizeAll(keywords);
     }
 
     public BigDecimal getBudget() {
-        return budget;
+        return Money.toDecimal(budgetMinor);
     }
 
     public void setBudget(BigDecimal budget) {
-        this.budget = budget;
+        this.budgetMinor = Money.toMinor(budget);
     }
 
     public BigDecimal getSpending() {
-        return spending;
+        return Money.toDecimal(spendingMinor);
     }
 
     public void setSpending(BigDecimal spending) {
-        this.spending = spending;
+        this.spendingMinor = Money.toMinor(spending);
+    }
+
+    public long getBudgetMinor() {
+        return budgetMinor;
+    }
+
+    public void setBudgetMinor(long budgetMinor) {
+        this.budgetMinor = budgetMinor;
+    }
+
+    public long getSpendingMinor() {
+        return spendingMinor;
+    }
+
+    public void setSpendingMinor(long spendingMinor) {
+        this.spendingMinor = spendingMinor;
+    }
+
+    public long getReservedMinor() {
+        return reservedMinor;
+    }
+
+    public void setReservedMinor(long reservedMinor) {
+        this.reservedMinor = reservedMinor;
     }
 }
@@ -0,0 +1,30 @@
+package no.kobler.rtb.model;
+
+import java.util.Set;
+
+/**
+ * Published whenever a {@link Campaign} row is inserted, updated or deleted.
+ * <p>
+ * In-memory views of the campaign catalog (e.g. the keyword index used by the bid path) listen to this event
+ * so they can follow the database without re-reading it on every bid.
+ *
+ * @param campaignId    the id of the changed campaign
+ * @param name          the campaign name, null when the campaign was removed
+ * @param keywords      the campaign keywords as stored, empty when the campaign was removed
+ * @param budgetMinor   the campaign budget in minor units, 0 when the campaign was removed
+ * @param spendingMinor the campaign spending in minor units as seen by the writer, 0 when the campaign was removed
+ * @param removed       true if the campaign was deleted
+ */
+public record CampaignChangedEvent(long campaignId, String name, Set<String> keywords,
+                                   long budgetMinor, long spendingMinor, boolean removed) {
+
+    public static CampaignChangedEvent saved(Campaign campaign) {
+        Set<String> keywords = campaign.getKeywords() == null ? Set.of() : Set.copyOf(campaign.getKeywords());
+        return new CampaignChangedEvent(campaign.getId(), campaign.getName(), keywords,
+                campaign.getBudgetMinor(), campaign.getSpendingMinor(), false);
+    }
+
+    public static CampaignChangedEvent removed(long campaignId) {
+        return new CampaignChangedEvent(campaignId, null, Set.of(), 0L, 0L, true);
+    }
+}
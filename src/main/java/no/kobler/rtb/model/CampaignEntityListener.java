@@ -0,0 +1,32 @@
+package no.kobler.rtb.model;
+
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.context.ApplicationEventPublisher;
+
+/**
+ * JPA lifecycle listener that turns campaign writes into {@link CampaignChangedEvent}s.
+ * <p>
+ * Hibernate creates this listener through Spring's bean container, so the event publisher is injected.
+ * Listeners that need committed data should use {@code @TransactionalEventListener}.
+ */
+public class CampaignEntityListener {
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    public CampaignEntityListener(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PostPersist
+    @PostUpdate
+    void afterSave(Campaign campaign) {
+        eventPublisher.publishEvent(CampaignChangedEvent.saved(campaign));
+    }
+
+    @PostRemove
+    void afterRemove(Campaign campaign) {
+        eventPublisher.publishEvent(CampaignChangedEvent.removed(campaign.getId()));
+    }
+}
@@ -0,0 +1,7 @@
+package no.kobler.rtb.model;
+
+/**
+ * A campaign's recorded spending, as returned by the spend page query. Amounts are in minor units ({@link Money}).
+ */
+public record CampaignSpend(long campaignId, long spendingMinor) {
+}
@@ -0,0 +1,8 @@
+package no.kobler.rtb.model;
+
+/**
+ * One campaign matched by one normalized keyword, as returned by the keyword index query.
+ * Carries only what the bid path needs; amounts are in minor units ({@link Money}).
+ */
+public record KeywordMatch(String keyword, long campaignId, String name, long budgetMinor, long spendingMinor) {
+}
@@ -0,0 +1,84 @@
+package no.kobler.rtb.model;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keyword normalization shared by everything that compares keywords: surrounding whitespace is trimmed and each
+ * character is lower-cased. The range methods let the in-memory {@code KeywordDictionary} normalize while probing,
+ * without allocating.
+ */
+public final class Keywords {
+
+    private Keywords() {
+    }
+
+    /**
+     * Returns the normalized keyword, or null if it is null or blank.
+     */
+    public static String normalize(CharSequence keyword) {
+        if (keyword == null) {
+            return null;
+        }
+        int start = trimStart(keyword);
+        int end = trimEnd(keyword, start);
+        return start == end ? null : normalize(keyword, start, end);
+    }
+
+    /**
+     * Returns the normalized form of {@code keyword[start, end)}, which must already be trimmed.
+     */
+    public static String normalize(CharSequence keyword, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = normalize(keyword.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the normalized form of one keyword character.
+     */
+    public static char normalize(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * Returns the index of the first character that is not leading whitespace.
+     */
+    public static int trimStart(CharSequence keyword) {
+        int start = 0;
+        while (start < keyword.length() && keyword.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Returns the end index of the keyword without trailing whitespace, but not below {@code start}.
+     */
+    public static int trimEnd(CharSequence keyword, int start) {
+        int end = keyword.length();
+        while (end > start && keyword.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the distinct normalized keywords; null and blank keywords are dropped.
+     */
+    public static Set<String> normalizeAll(Collection<String> keywords) {
+        Set<String> normalized = new HashSet<>();
+        if (keywords != null) {
+            for (String keyword : keywords) {
+                String value = normalize(keyword);
+                if (value != null) {
+                    normalized.add(value);
+                }
+            }
+        }
+        return normalized;
+    }
+}
@@ -0,0 +1,37 @@
+package no.kobler.rtb.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Money is handled as {@code long} minor units (øre, 1 NOK = 100) on the bid path and in the database.
+ * <p>
+ * {@link BigDecimal} is only used at the edges (API and entity accessors); conversions are exact for amounts
+ * with at most two decimals, which request validation enforces.
+ */
+public final class Money {
+
+    public static final int SCALE = 2;
+    public static final long MINOR_PER_UNIT = 100L;
+
+    private Money() {
+    }
+
+    /**
+     * Converts a decimal amount to minor units, rounding half-up beyond two decimals. Null is treated as zero.
+     */
+    public static long toMinor(BigDecimal amount) {
+        if (amount == null) {
+            return 0L;
+        }
+        return amount.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    public static BigDecimal toDecimal(long minor) {
+        return BigDecimal.valueOf(minor, SCALE);
+    }
+
+    public static double toDouble(long minor) {
+        return (double) minor / MINOR_PER_UNIT;
+    }
+}
@@ -0,0 +1,96 @@
+package no.kobler.rtb.repository;
+
+import no.kobler.rtb.model.BudgetLease;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface BudgetLeaseRepository extends JpaRepository<BudgetLease, Long> {
+
+    Optional<BudgetLease> findByCampaignIdAndNodeId(long campaignId, String nodeId);
+
+    List<BudgetLease> findByNodeId(String nodeId);
+
+    @Query("SELECT l.campaignId FROM BudgetLease l WHERE l.nodeId = :nodeId")
+    List<Long> findCampaignIdsByNodeId(@Param("nodeId") String nodeId);
+
+    /**
+     * Adds `amountMinor` to an existing lease and renews it. Returns 0 if the node holds no lease for the campaign.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE budget_lease " +
+            "SET granted_minor = granted_minor + :amount, expires_at = :expiresAt " +
+            "WHERE campaign_id = :campaignId AND node_id = :nodeId",
+            nativeQuery = true)
+    int extend(@Param("campaignId") long campaignId, @Param("nodeId") String nodeId,
+               @Param("amount") long amountMinor, @Param("expiresAt") Instant expiresAt);
+
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE budget_lease SET expires_at = :expiresAt WHERE node_id = :nodeId", nativeQuery = true)
+    int renewAll(@Param("nodeId") String nodeId, @Param("expiresAt") Instant expiresAt);
+
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM budget_lease WHERE campaign_id = :campaignId AND node_id = :nodeId",
+            nativeQuery = true)
+    int deleteLease(@Param("campaignId") long campaignId, @Param("nodeId") String nodeId);
+
+    /**
+     * Counts the outstanding part of every lease held by `nodeId` as spent. Used for a node's own leases left behind
+     * by an unclean shutdown. Returns number of campaigns adjusted.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE campaign c " +
+            "SET spending_minor = spending_minor + (SELECT SUM(l.granted_minor - l.flushed_minor) FROM budget_lease l " +
+            "WHERE l.campaign_id = c.id AND l.node_id = :nodeId) " +
+            "WHERE EXISTS (SELECT 1 FROM budget_lease l WHERE l.campaign_id = c.id AND l.node_id = :nodeId)",
+            nativeQuery = true)
+    int settleNodeLeases(@Param("nodeId") String nodeId);
+
+    /**
+     * Gives the outstanding part of every lease held by `nodeId` back to its campaign. Used after the node's
+     * unflushed spend was recovered from its journal. Returns number of campaigns adjusted.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE campaign c " +
+            "SET reserved_minor = reserved_minor - (SELECT SUM(l.granted_minor - l.flushed_minor) FROM budget_lease l " +
+            "WHERE l.campaign_id = c.id AND l.node_id = :nodeId) " +
+            "WHERE EXISTS (SELECT 1 FROM budget_lease l WHERE l.campaign_id = c.id AND l.node_id = :nodeId)",
+            nativeQuery = true)
+    int releaseNodeLeases(@Param("nodeId") String nodeId);
+
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM budget_lease WHERE node_id = :nodeId", nativeQuery = true)
+    int deleteNodeLeases(@Param("nodeId") String nodeId);
+
+    /**
+     * Counts the outstanding part of every lease that expired before `now` as spent: its node stopped renewing, so
+     * whatever it did not flush may have been spent. Returns number of campaigns adjusted.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE campaign c " +
+            "SET spending_minor = spending_minor + (SELECT SUM(l.granted_minor - l.flushed_minor) FROM budget_lease l " +
+            "WHERE l.campaign_id = c.id AND l.expires_at < :now) " +
+            "WHERE EXISTS (SELECT 1 FROM budget_lease l WHERE l.campaign_id = c.id AND l.expires_at < :now)",
+            nativeQuery = true)
+    int settleExpiredLeases(@Param("now") Instant now);
+
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM budget_lease WHERE expires_at < :now", nativeQuery = true)
+    int deleteExpiredLeases(@Param("now") Instant now);
+}
@@ -2,6 +2,10 @@ package no.kobler.rtb.repository;
 
 
 import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.model.CampaignSpend;
+import no.kobler.rtb.model.KeywordMatch;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -9,23 +13,98 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
 
 @Repository
 public interface CampaignRepository extends JpaRepository<Campaign, Long> {
     // Basic CRUD provided by JpaRepository.
 
     /**
-     * Atomically increment spending by `amount` only if spending + amount <= budget.
+     * All campaigns with their keywords, fetched in a single joined query.
+     */
+    @Override
+    @EntityGraph(attributePaths = "keywords")
+    List<Campaign> findAll();
+
+    /**
+     * Keyset page: up to `pageable.getPageSize()` campaigns with an id greater than `afterId`, in id order.
+     * No count query is issued. Keywords are not joined (that would apply the limit in memory) but batch-loaded
+     * in one more query.
+     */
+    @Query("SELECT c FROM Campaign c WHERE c.id > :afterId ORDER BY c.id")
+    List<Campaign> findPageAfter(@Param("afterId") long afterId, Pageable pageable);
+
+    /**
+     * Keyset page of campaigns without rows in {@code campaign_keyword_index}, in id order, e.g. campaigns stored
+     * before that table existed.
+     */
+    @Query("SELECT c FROM Campaign c WHERE c.id > :afterId AND c.normalizedKeywords IS EMPTY ORDER BY c.id")
+    List<Campaign> findUnindexedPageAfter(@Param("afterId") long afterId, Pageable pageable);
+
+    /**
+     * Keyset page of campaign spending only, in id order: no entities are loaded and keywords are not touched.
+     */
+    @Query("SELECT new no.kobler.rtb.model.CampaignSpend(c.id, c.spendingMinor) " +
+            "FROM Campaign c WHERE c.id > :afterId ORDER BY c.id")
+    List<CampaignSpend> findSpendPageAfter(@Param("afterId") long afterId, Pageable pageable);
+
+    /**
+     * Campaigns with at least `minRemainingMinor` of budget left that target any of the given normalized keywords,
+     * one row per matching keyword. Served by the (keyword, campaign_id) index, so the catalog is never scanned.
+     */
+    @Query("SELECT new no.kobler.rtb.model.KeywordMatch(k, c.id, c.name, c.budgetMinor, c.spendingMinor) " +
+            "FROM Campaign c JOIN c.normalizedKeywords k " +
+            "WHERE k IN :keywords AND c.budgetMinor - c.spendingMinor >= :minRemaining")
+    List<KeywordMatch> findLiveByNormalizedKeywords(@Param("keywords") Collection<String> keywords,
+                                                    @Param("minRemaining") long minRemainingMinor);
+
+    /**
+     * Atomically increment spending by `amountMinor` (øre) only if spending + amount <= budget.
      * Returns number of rows updated (1 = success, 0 = condition failed / concurrent update).
      * <p>
      */
     @Modifying
     @Transactional
     @Query(value = "UPDATE Campaign c " +
-            "SET c.spending = c.spending + :amount " +
-            "WHERE c.id = :id AND (c.spending + :amount) <= c.budget",
+            "SET c.spending_minor = c.spending_minor + :amount " +
+            "WHERE c.id = :id AND (c.spending_minor + :amount) <= c.budget_minor",
             nativeQuery = true)
-    int incrementSpendingIfNotExceed(@Param("id") Long id, @Param("amount") BigDecimal amount);
+    int incrementSpendingIfNotExceed(@Param("id") Long id, @Param("amount") long amountMinor);
 
+    /**
+     * Compensates a previous {@link #incrementSpendingIfNotExceed} whose bid was never delivered.
+     * Returns number of rows updated.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE Campaign c " +
+            "SET c.spending_minor = c.spending_minor - :amount " +
+            "WHERE c.id = :id",
+            nativeQuery = true)
+    int decrementSpending(@Param("id") Long id, @Param("amount") long amountMinor);
+
+    /**
+     * Claims `amountMinor` more budget headroom for a budget lease, only if the reservation stays within
+     * the budget. Headroom starts from whichever is higher of the current reservation and the flushed spending.
+     * Returns number of rows updated (1 = reserved, 0 = budget exhausted).
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE Campaign c " +
+            "SET c.reserved_minor = GREATEST(c.reserved_minor, c.spending_minor) + :amount " +
+            "WHERE c.id = :id AND GREATEST(c.reserved_minor, c.spending_minor) + :amount <= c.budget_minor",
+            nativeQuery = true)
+    int reserveHeadroom(@Param("id") Long id, @Param("amount") long amountMinor);
+
+    /**
+     * Returns unused headroom claimed with {@link #reserveHeadroom}.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE Campaign c " +
+            "SET c.reserved_minor = c.reserved_minor - :amount " +
+            "WHERE c.id = :id",
+            nativeQuery = true)
+    int releaseHeadroom(@Param("id") Long id, @Param("amount") long amountMinor);
 }
@@ -1,5 +1,6 @@
 package no.kobler.rtb.service;
 
+import no.kobler.rtb.concurrency.Deadline;
 import no.kobler.rtb.service.bids.BidDecision;
 import no.kobler.rtb.service.bids.BiddingService;
 import org.slf4j.Logger;
@@ -37,8 +38,11 @@ public class BidOrchestrator {
      * Evaluate bid with a timeout. Returns Optional.empty() on timeout or failure.
      * <p>
      * Evaluates a bid by submitting a task to the executor and waiting for the result.
-     * If the timeout is reached, the task is cancelled and an empty Optional is returned.
-     * If the task is interrupted, the task is cancelled, the current thread is interrupted, and an empty Optional is returned.
+     * The task receives a {@link Deadline} for the same timeout, so it stops its own work once the timeout passes.
+     * If the timeout is reached, the deadline is abandoned, the task is cancelled and an empty Optional is returned;
+     * if the task committed a won bid just before that, its decision is returned instead.
+     * If the task is interrupted, the task is cancelled, the current thread is interrupted, and an empty Optional is returned
+     * (again unless the task already committed).
      * If the task throws an exception, the task is cancelled, the exception is logged, and an empty Optional is returned.
      * </p>
      *
@@ -48,17 +52,24 @@ public class BidOrchestrator {
      * @return an Optional containing the result of the evaluation, or an empty Optional if the evaluation timed out, was interrupted, or threw an exception
      */
     public Optional<BidDecision> evaluateWithTimeout(long bidId, Set<String> keywords, long timeoutMs) {
-        Future<BidDecision> submitted = executor.submit(() -> biddingService.evaluateBid(bidId, keywords));
+        Deadline deadline = Deadline.after(timeoutMs, TimeUnit.MILLISECONDS);
+        Future<BidDecision> submitted = executor.submit(() -> biddingService.evaluateBid(bidId, keywords, deadline));
         try {
             BidDecision result = submitted.get(timeoutMs, TimeUnit.MILLISECONDS);
             return Optional.ofNullable(result);
         } catch (TimeoutException timeoutException) {
+            if (!deadline.abandon()) {
+                return committedResult(bidId, submitted);
+            }
             submitted.cancel(true);
             log.debug("Bid {} timed out after {}ms", bidId, timeoutMs);
             return Optional.empty();
         } catch (InterruptedException interruptedException) {
-            submitted.cancel(true);
             Thread.currentThread().interrupt();
+            if (!deadline.abandon()) {
+                return committedResult(bidId, submitted);
+            }
+            submitted.cancel(true);
             log.warn("Bid {} interrupted", bidId);
             return Optional.empty();
         } catch (ExecutionException executionException) {
@@ -67,6 +78,31 @@ public class BidOrchestrator {
         }
     }
 
+    /**
+     * The task committed its bid (the spend is written) just as we gave up waiting; it is only returning now,
+     * so wait for that without reacting to interrupts, which are restored afterwards.
+     */
+    private Optional<BidDecision> committedResult(long bidId, Future<BidDecision> submitted) {
+        log.debug("Bid {} committed at its deadline, using its decision", bidId);
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    return Optional.ofNullable(submitted.get());
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    log.error("Bid {} evaluation failed after commit: {}", bidId, e.getMessage());
+                    return Optional.empty();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     public Optional<BidDecision> evaluateWithDefaultTimeout(long bidId, Set<String> keywords) {
         return evaluateWithTimeout(bidId, keywords, defaultTimeoutMs);
     }
@@ -0,0 +1,185 @@
+package no.kobler.rtb.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
+import jakarta.validation.Validator;
+import no.kobler.rtb.dto.CampaignRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Imports many campaigns from one streamed request body.
+ * <p>
+ * The body is parsed line by line, each campaign is validated like a single {@code POST /campaigns}, and campaigns
+ * are persisted in chunks that are flushed as JDBC batches (see {@code hibernate.jdbc.batch_size}) and then
+ * detached, so memory does not grow with the size of the import. The whole import is one transaction: a bad line
+ * rejects it entirely, and on commit the campaign catalog publishes all imported campaigns in a single update.
+ */
+@Service
+public class CampaignImportService {
+
+    private static final Logger log = LoggerFactory.getLogger(CampaignImportService.class);
+
+    public static final String TEXT_CSV_VALUE = "text/csv";
+
+    // Matches hibernate.jdbc.batch_size, so every flush sends full batches
+    private static final int FLUSH_INTERVAL = 500;
+
+    private static final List<String> CSV_HEADER = List.of("name", "budget", "keywords");
+    private static final String CSV_KEYWORD_SEPARATOR = ";";
+
+    public enum Format {
+        /**
+         * One JSON campaign per line, shaped like the body of {@code POST /campaigns}.
+         */
+        NDJSON,
+        /**
+         * A {@code name,budget,keywords} header, then one campaign per line with keywords separated by {@code ;}.
+         * Fields may be double-quoted.
+         */
+        CSV
+    }
+
+    private final EntityManager entityManager;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+
+    public CampaignImportService(EntityManager entityManager, ObjectMapper objectMapper, Validator validator) {
+        this.entityManager = entityManager;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+    }
+
+    /**
+     * Imports all campaigns in the body.
+     *
+     * @param body   the request body, read incrementally
+     * @param format the body format
+     * @return the number of imported campaigns
+     * @throws IllegalArgumentException if a line cannot be parsed or fails validation; nothing is imported then
+     */
+    @Transactional
+    public int importCampaigns(InputStream body, Format format) {
+        log.info("Importing campaigns from {}", format);
+        var reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        int lineNumber = 0;
+        int imported = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                if (format == Format.CSV && lineNumber == 1) {
+                    requireCsvHeader(line);
+                    continue;
+                }
+                var campaignRequest = format == Format.CSV ? parseCsv(line, lineNumber) : parseJson(line, lineNumber);
+                validate(campaignRequest, lineNumber);
+
+                entityManager.persist(CampaignService.toCampaign(campaignRequest));
+                if (++imported % FLUSH_INTERVAL == 0) {
+                    entityManager.flush();
+                    entityManager.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read import body at line " + lineNumber, e);
+        }
+        entityManager.flush();
+        entityManager.clear();
+
+        log.info("Imported campaigns={} from {}", imported, format);
+        return imported;
+    }
+
+    private CampaignRequest parseJson(String line, int lineNumber) {
+        try {
+            return objectMapper.readValue(line, CampaignRequest.class);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": invalid JSON: " + e.getOriginalMessage());
+        }
+    }
+
+    private static void requireCsvHeader(String line) {
+        var header = splitCsv(line, 1).stream().map(field -> field.trim().toLowerCase(Locale.ROOT)).toList();
+        if (!header.equals(CSV_HEADER)) {
+            throw new IllegalArgumentException("Line 1: expected CSV header " + String.join(",", CSV_HEADER));
+        }
+    }
+
+    private static CampaignRequest parseCsv(String line, int lineNumber) {
+        var fields = splitCsv(line, lineNumber);
+        if (fields.size() != CSV_HEADER.size()) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": expected " + CSV_HEADER.size()
+                    + " fields but found " + fields.size());
+        }
+        var campaignRequest = new CampaignRequest();
+        campaignRequest.setName(fields.get(0));
+        try {
+            campaignRequest.setBudget(new BigDecimal(fields.get(1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": invalid budget '" + fields.get(1) + "'");
+        }
+        campaignRequest.setKeywords(new LinkedHashSet<>(Arrays.asList(fields.get(2).split(CSV_KEYWORD_SEPARATOR))));
+        return campaignRequest;
+    }
+
+    /**
+     * Splits one CSV line on commas; a double-quoted field may contain commas and {@code ""} for a quote.
+     */
+    private static List<String> splitCsv(String line, int lineNumber) {
+        List<String> fields = new ArrayList<>();
+        var field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private void validate(CampaignRequest campaignRequest, int lineNumber) {
+        var violations = validator.validate(campaignRequest);
+        if (!violations.isEmpty()) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": " + violations.iterator().next().getMessage());
+        }
+    }
+}
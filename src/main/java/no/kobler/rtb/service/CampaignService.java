@@ -1,16 +1,20 @@
 package no.kobler.rtb.service;
 
 
+import jakarta.persistence.EntityManager;
 import no.kobler.rtb.dto.CampaignRequest;
 import no.kobler.rtb.dto.CampaignResponse;
 import no.kobler.rtb.model.Campaign;
 import no.kobler.rtb.repository.CampaignRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
@@ -18,23 +22,26 @@ public class CampaignService {
 
     private static final Logger log = LoggerFactory.getLogger(CampaignService.class);
 
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    // Campaigns are streamed in keyset pages of this size, detached after each page so the persistence context
+    // stays small
+    private static final int STREAM_PAGE_SIZE = 500;
+
     private final CampaignRepository campaignRepository;
+    private final EntityManager entityManager;
 
-    public CampaignService(CampaignRepository campaignRepository) {
+    public CampaignService(CampaignRepository campaignRepository, EntityManager entityManager) {
         this.campaignRepository = campaignRepository;
+        this.entityManager = entityManager;
     }
 
     @Transactional
     public CampaignResponse createCampaign(CampaignRequest campaignRequest) {
         log.info("Creating campaign with name='{}'", campaignRequest.getName());
 
-        // Normalize keywords  (trim) " Kobler " -> "Kobler"
-        var keywords = campaignRequest.getKeywords().stream()
-                .map(String::trim)
-                .collect(Collectors.toSet());
-
-        var campaign = new Campaign(campaignRequest.getName(), keywords, campaignRequest.getBudget());
-        var saved = campaignRepository.save(campaign);
+        var saved = campaignRepository.save(toCampaign(campaignRequest));
 
         log.info("Campaign {} created successfully with id={}", saved.getName(), saved.getId());
         return toCampaignResponse(saved);
@@ -62,6 +69,69 @@ public class CampaignService {
         return campaignList.stream().map(this::toCampaignResponse).toList();
     }
 
+    /**
+     * Lists one keyset page of campaigns: those with an id greater than `afterId`, in id order.
+     * The page size is clamped to [1, {@value #MAX_PAGE_SIZE}].
+     *
+     * @param afterId the last id of the previous page, or 0 for the first page
+     * @param limit   the maximum number of campaigns to return
+     * @return the campaigns of the page; fewer than `limit` means there are no more
+     */
+    @Transactional(readOnly = true)
+    public List<CampaignResponse> listCampaigns(long afterId, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        log.debug("Fetching campaigns after id={} limit={}", afterId, pageSize);
+
+        var campaignList = campaignRepository.findPageAfter(afterId, PageRequest.ofSize(pageSize));
+
+        log.debug("Campaigns found={}", campaignList.size());
+        return campaignList.stream().map(this::toCampaignResponse).toList();
+    }
+
+    /**
+     * Passes every campaign, in id order, to the given sink while reading them one keyset page at a time.
+     * Only one page of campaigns is held in memory at a time, and each page is complete with its keywords
+     * before it is detached.
+     *
+     * @param sink receives each campaign; exceptions it throws abort the stream
+     * @return the number of campaigns streamed
+     */
+    @Transactional(readOnly = true)
+    public long streamCampaigns(Consumer<CampaignResponse> sink) {
+        log.debug("Streaming all campaigns");
+        long count = 0;
+        long afterId = 0L;
+        List<Campaign> page;
+        do {
+            page = campaignRepository.findPageAfter(afterId, PageRequest.ofSize(STREAM_PAGE_SIZE));
+            for (Campaign campaign : page) {
+                sink.accept(toCampaignResponse(campaign));
+            }
+            count += page.size();
+            if (!page.isEmpty()) {
+                afterId = page.getLast().getId();
+            }
+            entityManager.clear();
+        } while (page.size() == STREAM_PAGE_SIZE);
+        log.info("Streamed campaigns={}", count);
+        return count;
+    }
+
+    /**
+     * Creates a new Campaign from a validated request, normalizing its keywords.
+     *
+     * @param campaignRequest the request to map
+     * @return a new, unsaved Campaign
+     */
+    static Campaign toCampaign(CampaignRequest campaignRequest) {
+        // Normalize keywords  (trim) " Kobler " -> "Kobler"
+        var keywords = campaignRequest.getKeywords().stream()
+                .map(String::trim)
+                .collect(Collectors.toSet());
+
+        return new Campaign(campaignRequest.getName(), keywords, campaignRequest.getBudget());
+    }
+
     /**
      * Maps a Campaign object to a CampaignResponse object.
      *
@@ -69,6 +139,6 @@ public class CampaignService {
      * @return a CampaignResponse object containing the data from the Campaign object
      */
     private CampaignResponse toCampaignResponse(Campaign campaign) {
-        return new CampaignResponse(campaign.getId(), campaign.getName(), campaign.getKeywords(), campaign.getBudget(), campaign.getSpending());
+        return new CampaignResponse(campaign.getId(), campaign.getName(), Set.copyOf(campaign.getKeywords()), campaign.getBudget(), campaign.getSpending());
     }
 }
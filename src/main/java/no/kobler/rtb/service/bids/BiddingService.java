@@ -1,43 +1,64 @@
 package no.kobler.rtb.service.bids;
 
-import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.catalog.CampaignMatcher;
+import no.kobler.rtb.catalog.CatalogCampaign;
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.concurrency.Deadline;
+import no.kobler.rtb.ledger.DirectSpendLedger;
+import no.kobler.rtb.ledger.SpendLedger;
+import no.kobler.rtb.metrics.ConnectionHoldTracker;
+import no.kobler.rtb.model.Money;
 import no.kobler.rtb.repository.CampaignRepository;
 import no.kobler.rtb.smoothing.SmoothingService;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
-import java.util.stream.Stream;
-
-import static org.apache.commons.collections4.CollectionUtils.isEmpty;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class BiddingService {
 
     private static final Logger log = LoggerFactory.getLogger(BiddingService.class);
 
-    private static final double MAX_BID_AMOUNT = 10.0;
-    private static final int SCALE = 2;
-    private static final RoundingMode ROUNDING_MODE = RoundingMode.HALF_UP;
+    private static final long MAX_BID_AMOUNT_MINOR = 10 * Money.MINOR_PER_UNIT;
+    private static final long SLOT_MASK = 0xFFFF_FFFFL;
+
+    // Stages are skipped when less than this remains of the bid's deadline
+    private static final long MIN_REMAINING_TO_RESERVE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MIN_REMAINING_TO_FINALIZE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
 
-    private final CampaignRepository campaignRepository;
+    private final CampaignMatcher campaignMatcher;
     private final Random random;
     private final SmoothingService smoothingService;
+    private final SpendLedger spendLedger;
+    private final ConnectionHoldTracker connectionHoldTracker;
+
+    /**
+     * Uses a {@link DirectSpendLedger} over the given repository, without a DB concurrency limit.
+     */
+    public BiddingService(CampaignRepository campaignRepository, CampaignMatcher campaignMatcher,
+                          Random random, SmoothingService smoothingService) {
+        this(campaignMatcher, random, smoothingService,
+                new DirectSpendLedger(campaignRepository, ConcurrencyLimiter.unlimited("db")),
+                new ConnectionHoldTracker());
+    }
 
-    public BiddingService(CampaignRepository campaignRepository, Random random, SmoothingService smoothingService) {
-        this.campaignRepository = campaignRepository;
+    @Autowired
+    public BiddingService(CampaignMatcher campaignMatcher, Random random, SmoothingService smoothingService,
+                          SpendLedger spendLedger, ConnectionHoldTracker connectionHoldTracker) {
+        this.campaignMatcher = campaignMatcher;
         this.random = random;
         this.smoothingService = smoothingService;
+        this.spendLedger = spendLedger;
+        this.connectionHoldTracker = connectionHoldTracker;
     }
 
 
@@ -46,6 +67,8 @@ public class BiddingService {
      * <p>
      * The method first filters the incoming keywords to ensure they are not empty.
      * Then, it processes the filtered keywords by finding matching campaigns and evaluating the bids.
+     * Campaigns are found by the configured {@link CampaignMatcher}; with the default in-memory catalog the database
+     * is only used to finalize spend.
      * If no valid bid is found, it returns a {@link BidDecision} with a bid amount of 0.0 and a flag indicating no bid was found.
      * </p>
      *
@@ -53,88 +76,146 @@ public class BiddingService {
      * @param incomingKeywords the set of keywords to evaluate
      * @return an Optional containing the result of the evaluation, or an empty Optional if no valid bid was found
      */
-    @Transactional
     public BidDecision evaluateBid(long bidId, Set<String> incomingKeywords) {
-        log.debug("Evaluating bidId={} for keywords={}", bidId, incomingKeywords);
+        return evaluateBid(bidId, incomingKeywords, Deadline.none());
+    }
 
-        return Optional.ofNullable(incomingKeywords)
-                .filter(CollectionUtils::isNotEmpty)
-                .flatMap(keywords -> processBid(bidId, keywords))
-                .orElseGet(() -> {
-                    log.debug("No valid bid for bidId={}", bidId);
-                    return new BidDecision(false, 0.0);
-                });
+    /**
+     * Evaluates a bid within the given deadline.
+     * <p>
+     * The deadline is checked before matching, before ranking, before each smoothing reservation and before the
+     * spend update; once it has expired (or the caller abandoned it) the remaining stages are skipped and any
+     * reservation already made is refunded. A spend update that completes after the caller gave up is compensated,
+     * so a bid answered with no-bid never spends budget.
+     * </p>
+     * <p>
+     * No transaction spans the evaluation: a JDBC connection is only checked out by the spend ledger, and the time
+     * it is held is reported per bid to the {@link ConnectionHoldTracker}.
+     * </p>
+     *
+     * @param bidId            the id of the bid to evaluate
+     * @param incomingKeywords the set of keywords to evaluate
+     * @param deadline         the bid's deadline, shared with the caller
+     * @return the bid decision; no bid if none was found in time
+     */
+    public BidDecision evaluateBid(long bidId, Set<String> incomingKeywords, Deadline deadline) {
+        log.debug("Evaluating bidId={} for keywords={}", bidId, incomingKeywords);
+        long heldBefore = connectionHoldTracker.heldByCurrentThreadNanos();
+        try {
+            return Optional.ofNullable(incomingKeywords)
+                    .filter(CollectionUtils::isNotEmpty)
+                    .flatMap(keywords -> processBid(bidId, keywords, deadline))
+                    .orElseGet(() -> {
+                        log.debug("No valid bid for bidId={}", bidId);
+                        return new BidDecision(false, 0.0);
+                    });
+        } finally {
+            long held = connectionHoldTracker.heldByCurrentThreadNanos() - heldBefore;
+            connectionHoldTracker.recordBid(held);
+            if (held > 0) {
+                log.debug("bidId={} held a DB connection for {}µs", bidId, TimeUnit.NANOSECONDS.toMicros(held));
+            }
+        }
     }
 
-    private Optional<BidDecision> processBid(long bidId, Set<String> keywords) {
+    private Optional<BidDecision> processBid(long bidId, Set<String> keywords, Deadline deadline) {
+        if (isPastDeadline(bidId, deadline, "matching")) {
+            return Optional.empty();
+        }
         return findMatchingCampaigns(keywords)
-                .flatMap(campaigns -> findWinningBid(bidId, campaigns));
+                .flatMap(campaigns -> findWinningBid(bidId, campaigns, deadline));
+    }
+
+    private static boolean isPastDeadline(long bidId, Deadline deadline, String stage) {
+        if (deadline.isExpired()) {
+            log.debug("Deadline reached for bidId={} before {}", bidId, stage);
+            return true;
+        }
+        return false;
     }
 
     /**
      * Finds all campaigns that match the given set of keywords.
      * <p>
-     * The method first retrieves all campaigns from the database and then filters them
-     * based on whether they have any matching keywords with the given set. If no
-     * matching campaigns are found, an empty Optional is returned. Otherwise, an
-     * Optional containing the matching campaigns is returned.
+     * The method looks up the keywords with the {@link CampaignMatcher}, so the cost depends on the number of
+     * matches rather than the catalog size. If no matching campaigns are found,
+     * an empty Optional is returned. Otherwise, an Optional containing the matching campaigns is returned.
      * </p>
      *
      * @param keywords the set of keywords to match against
      * @return an Optional containing the matching campaigns, or an empty Optional if no matching campaigns were found
      */
-    private Optional<List<Campaign>> findMatchingCampaigns(Set<String> keywords) {
-        List<Campaign> campaigns = campaignRepository.findAll();
-        List<Campaign> matchingCampaigns = campaigns.stream()
-                .filter(campaign -> hasMatchingKeyword(campaign.getKeywords(), keywords))
-                .toList();
+    private Optional<List<CatalogCampaign>> findMatchingCampaigns(Set<String> keywords) {
+        List<CatalogCampaign> matchingCampaigns = campaignMatcher.findMatching(keywords);
 
         return matchingCampaigns.isEmpty() ?
                 Optional.empty() :
                 Optional.of(matchingCampaigns);
     }
 
-    private boolean hasMatchingKeyword(Set<String> campaignKeywords, Set<String> incomingKeywords) {
-        if (isEmpty(campaignKeywords) || isEmpty(incomingKeywords)) {
-            return false;
+    /**
+     * Ranks the candidates in descending order of bid price, drops those over budget and reserves the first of the
+     * rest that passes smoothing with a single {@link SmoothingService#tryConsumeFirst} call, so smoothing costs one
+     * round trip however many candidates it rejects. The reserved candidate is then finalized.
+     */
+    private Optional<BidDecision> findWinningBid(long bidId, List<CatalogCampaign> campaigns, Deadline deadline) {
+        if (isPastDeadline(bidId, deadline, "ranking")) {
+            return Optional.empty();
         }
-
-        return campaignKeywords.stream()
-                .anyMatch(campaignKeyword -> incomingKeywords.stream()
-                        .anyMatch(incomingKeyword -> !StringUtils.isAllBlank(campaignKeyword, incomingKeyword) &&
-                                campaignKeyword.trim().equalsIgnoreCase(incomingKeyword.trim())));
-    }
-
-    private Optional<BidDecision> findWinningBid(long bidId, List<Campaign> campaigns) {
-        return createBidCandidates(campaigns)
-                .filter(this::isWithinBudget)
-                .filter(this::canReserveBidPrice)
-                .findFirst()
-                .flatMap(candidate -> finalizeBid(candidate, bidId));
+        long[] candidates = createBidCandidates(campaigns);
+        int size = candidates.length;
+        CatalogCampaign[] affordable = new CatalogCampaign[size];
+        long[] campaignIds = new long[size];
+        long[] pricesMinor = new long[size];
+        int count = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            CatalogCampaign campaign = campaigns.get(size - 1 - (int) (candidates[i] & SLOT_MASK));
+            long priceMinor = candidates[i] >> 32;
+            if (isWithinBudget(campaign, priceMinor)) {
+                affordable[count] = campaign;
+                campaignIds[count] = campaign.getId();
+                pricesMinor[count] = priceMinor;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return Optional.empty();
+        }
+        if (!deadline.hasRemaining(MIN_REMAINING_TO_RESERVE_NANOS)) {
+            log.debug("Deadline reached for bidId={} before smoothing reservation", bidId);
+            return Optional.empty();
+        }
+        int reserved = smoothingService.tryConsumeFirst(campaignIds, pricesMinor, count);
+        if (reserved < 0) {
+            log.debug("None of {} candidates for bidId={} passed smoothing", count, bidId);
+            return Optional.empty();
+        }
+        return finalizeBid(affordable[reserved], pricesMinor[reserved], bidId, deadline);
     }
 
     /**
-     * Creates a stream of bid candidates from the given list of campaigns.
-     * The stream is sorted in descending order of bid price.
+     * Creates the bid candidates for the given list of campaigns, sorted in ascending order of bid price.
      * <p>
-     * The method first maps each campaign to a bid candidate with a random bid price, and then sorts the resulting stream
-     * in descending order of bid price.
+     * Each campaign gets a random bid price in øre. A candidate is packed into one long (price in the upper half,
+     * reversed campaign position in the lower half) so pricing and sorting allocate a single array per bid.
+     * Iterating from the end yields descending prices, with ties in campaign order.
      * </p>
      *
      * @param campaigns the list of campaigns to create bid candidates from
-     * @return a stream of bid candidates sorted in descending order of bid price
+     * @return packed bid candidates sorted in ascending order of bid price
      */
-    private Stream<BidCandidate> createBidCandidates(List<Campaign> campaigns) {
-        return campaigns.stream()
-                .map(this::createBidCandidate)
-                .sorted(Comparator.comparing(BidCandidate::price).reversed());
+    private long[] createBidCandidates(List<CatalogCampaign> campaigns) {
+        int size = campaigns.size();
+        long[] candidates = new long[size];
+        for (int i = 0; i < size; i++) {
+            candidates[i] = (nextBidPriceMinor() << 32) | (size - 1 - i);
+        }
+        Arrays.sort(candidates);
+        return candidates;
     }
 
-    private BidCandidate createBidCandidate(Campaign campaign) {
-        double price = BigDecimal.valueOf(random.nextDouble() * MAX_BID_AMOUNT)
-                .setScale(SCALE, ROUNDING_MODE)
-                .doubleValue();
-        return new BidCandidate(campaign, price);
+    private long nextBidPriceMinor() {
+        return Math.round(random.nextDouble() * MAX_BID_AMOUNT_MINOR);
     }
 
     /**
@@ -142,78 +223,108 @@ public class BiddingService {
      * If the new spending would exceed the budget, logs an info message and returns false.
      * Otherwise, returns true.
      *
-     * @param candidate the bid candidate to check
+     * @param campaign   the candidate campaign
+     * @param priceMinor the bid price in øre
      * @return true if the candidate is within its campaign's budget, false otherwise
      */
-    private boolean isWithinBudget(BidCandidate candidate) {
-        Campaign candidateCampaign = candidate.campaign;
-        BigDecimal currentSpending = Optional.ofNullable(candidateCampaign.getSpending()).orElse(BigDecimal.ZERO);
-        BigDecimal newSpending = currentSpending.add(BigDecimal.valueOf(candidate.price));
+    private boolean isWithinBudget(CatalogCampaign campaign, long priceMinor) {
+        long currentSpending = campaign.getSpendingMinor();
 
-        boolean withinBudget = newSpending.compareTo(candidateCampaign.getBudget()) <= 0;
+        boolean withinBudget = currentSpending + priceMinor <= campaign.getBudgetMinor();
         if (!withinBudget) {
-            log.info("Campaign id={} would overspend budget (spending={} + price={} > budget={})",
-                    candidateCampaign.getId(), currentSpending, candidate.price, candidateCampaign.getBudget());
+            log.info("Campaign id={} would overspend budget (spendingMinor={} + priceMinor={} > budgetMinor={})",
+                    campaign.getId(), currentSpending, priceMinor, campaign.getBudgetMinor());
         }
         return withinBudget;
     }
 
-    /**
-     * Attempt to reserve a bid price for a campaign.
-     * If the reservation succeeds, the method returns true.
-     * If the reservation fails, the method logs a debug message and returns false.
-     *
-     * @param candidate the bid candidate to reserve
-     * @return true if the reservation was successful, false otherwise
-     */
-    private boolean canReserveBidPrice(BidCandidate candidate) {
-        boolean reserved = smoothingService.tryConsume(candidate.campaign.getId(), candidate.price);
-        if (!reserved) {
-            log.debug("Campaign id={} failed smoothing reservation", candidate.campaign.getId());
-        }
-        return reserved;
-    }
-
     /**
      * Attempts to finalize a bid for a campaign.
      * <p>
-     * The method first attempts to update the campaign's spending in the database.
-     * If the update is successful, it returns a BidDecision with the bid won and the price.
-     * If the update fails due to a concurrent modification, the method logs a debug message and refunds the tokens `amount`.
-     * If the update fails due to a DB exception, the method logs an error message and refunds the tokens `amount`.
+     * The method first attempts to debit the campaign's spending through the {@link SpendLedger}.
+     * If too little of the deadline remains, the reservation is refunded and no bid is made.
+     * If the caller abandoned the deadline while the debit ran, the debit is compensated.
+     * If the debit is successful, it returns a BidDecision with the bid won and the price.
+     * If the debit is rejected (budget, concurrent modification, no DB permit), the method logs a debug message and refunds the tokens `amount`.
+     * If the debit fails due to a DB exception, the method logs an error message and refunds the tokens `amount`.
      *
-     * @param candidate the bid candidate to finalize
-     * @param bidId     the id of the bid to finalize
+     * @param campaign   the winning campaign
+     * @param priceMinor the bid price in øre
+     * @param bidId      the id of the bid to finalize
+     * @param deadline   the bid's deadline
      * @return an Optional containing a BidDecision if the bid was finalized successfully, or an empty Optional otherwise
      */
-    private Optional<BidDecision> finalizeBid(BidCandidate candidate, long bidId) {
-        int updatedRows;
-        Campaign candidateCampaign = candidate.campaign;
+    private Optional<BidDecision> finalizeBid(CatalogCampaign campaign, long priceMinor, long bidId,
+                                              Deadline deadline) {
+        if (!deadline.hasRemaining(MIN_REMAINING_TO_FINALIZE_NANOS)) {
+            log.debug("Deadline reached for bidId={} before spend update, refunding campaignId={}",
+                    bidId, campaign.getId());
+            refundReservation(campaign.getId(), priceMinor);
+            return Optional.empty();
+        }
+
+        boolean debited;
         try {
-            updatedRows = campaignRepository.incrementSpendingIfNotExceed(
-                    candidateCampaign.getId(),
-                    BigDecimal.valueOf(candidate.price)
-            );
+            debited = spendLedger.tryDebit(campaign.getId(), priceMinor, bidId, deadline);
         } catch (Exception e) {
-            log.error("DB update error for campaignId={} price={} : {}", candidateCampaign.getId(), candidate.price, e.getMessage());
+            log.error("DB update error for campaignId={} priceMinor={} : {}", campaign.getId(), priceMinor, e.getMessage());
             // Refund tokens on DB exception
-            smoothingService.refund(candidateCampaign.getId(), candidate.price);
+            refundReservation(campaign.getId(), priceMinor);
             return Optional.empty();
         }
 
-        if (updatedRows > 0) {
-            log.info("Bid won: bidId={}, campaignId={}, price={}",
-                    bidId, candidateCampaign.getId(), candidate.price);
-            return Optional.of(new BidDecision(true, candidate.price));
+        if (debited) {
+            if (!deadline.commit()) {
+                compensateAbandonedBid(campaign, priceMinor, bidId);
+                return Optional.empty();
+            }
+            campaignMatcher.recordSpend(campaign.getId(), priceMinor);
+            log.info("Bid won: bidId={}, campaignId={}, priceMinor={}", bidId, campaign.getId(), priceMinor);
+            return Optional.of(new BidDecision(true, Money.toDouble(priceMinor)));
         }
 
-        log.debug("Atomic update failed as concurrent modification detected for campaignId={}, trying next candidate",
-                candidateCampaign.getId());
-        smoothingService.refund(candidateCampaign.getId(), candidate.price);
+        log.debug("Spend debit rejected for campaignId={} (budget, concurrent modification or no DB permit)",
+                campaign.getId());
+        refundReservation(campaign.getId(), priceMinor);
         return Optional.empty();
     }
 
-    private record BidCandidate(Campaign campaign, double price) {
+    /**
+     * Undoes the spend and the smoothing reservation of a bid the caller already answered with no-bid.
+     * The caller usually interrupts this thread when it gives up, so the interrupt is held back while
+     * compensating (an interrupted thread cannot borrow a pooled connection) and restored afterwards.
+     */
+    private void compensateAbandonedBid(CatalogCampaign campaign, long priceMinor, long bidId) {
+        log.info("Bid abandoned after spend update: bidId={}, campaignId={}, compensating priceMinor={}",
+                bidId, campaign.getId(), priceMinor);
+        boolean interrupted = Thread.interrupted();
+        try {
+            spendLedger.credit(campaign.getId(), priceMinor, bidId);
+        } catch (Exception e) {
+            log.error("Failed to compensate spend for campaignId={} priceMinor={} : {}",
+                    campaign.getId(), priceMinor, e.getMessage());
+        }
+        try {
+            smoothingService.refund(campaign.getId(), priceMinor);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
+    /**
+     * Gives a smoothing reservation back. The refund must reach Redis even when the caller has already
+     * interrupted this thread (an interrupted thread fails Redis calls), so the interrupt is held back meanwhile.
+     */
+    private void refundReservation(long campaignId, long priceMinor) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            smoothingService.refund(campaignId, priceMinor);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
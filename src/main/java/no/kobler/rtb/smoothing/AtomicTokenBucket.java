@@ -0,0 +1,173 @@
+package no.kobler.rtb.smoothing;
+
+import no.kobler.rtb.model.Money;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free token bucket whose whole state is a single {@code long}, updated with CAS.
+ * <p>
+ * Tokens are fixed-point micro units (1 NOK = 1_000_000) and refill continuously at nanosecond resolution.
+ * Amounts in øre ({@link #tryConsumeMinor}, {@link #refundMinor}) convert to micro units exactly, without
+ * {@code double}; this is the default bucket of {@link InMemorySmoothingService}.
+ * Instead of storing a token count and a last-refill timestamp side by side, the bucket stores the
+ * {@link System#nanoTime()} instant at which it was (or would have been) empty: the available tokens are the
+ * refill accumulated since then, capped to capacity. Consuming moves that instant forward by the time it takes
+ * to refill the amount, refunding moves it back, and both are a single compare-and-set of one word, so the
+ * token count and the refill timestamp can never be observed out of step.
+ * <p>
+ * Differences from {@link TokenBucket}: amounts are rounded to whole micro units, and tokens refill
+ * continuously instead of once per elapsed wall-clock second.
+ * <p>
+ * A retired bucket stores {@link #RETIRED} instead of an instant, so retiring is one compare-and-set as well.
+ */
+public class AtomicTokenBucket implements SmoothingBucket {
+
+    static final long MICROS_PER_TOKEN = 1_000_000L;
+    private static final long MICROS_PER_MINOR = MICROS_PER_TOKEN / Money.MINOR_PER_UNIT;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long RETIRED = Long.MIN_VALUE;
+
+    private final long capacityMicros;
+    private final long refillMicrosPerSecond;
+    private final long capacityNanos;
+    private final LongSupplier nanoClock;
+
+    /**
+     * Instant (in {@code nanoClock} time) at which the bucket holds zero tokens.
+     */
+    private final AtomicLong emptyAt;
+
+    public AtomicTokenBucket(double capacity, double refillRatePerSecond) {
+        this(capacity, refillRatePerSecond, System::nanoTime);
+    }
+
+    AtomicTokenBucket(double capacity, double refillRatePerSecond, LongSupplier nanoClock) {
+        if (capacity <= 0 || refillRatePerSecond <= 0) {
+            throw new IllegalArgumentException("capacity and refill rate must be positive");
+        }
+        this.capacityMicros = toMicros(capacity);
+        this.refillMicrosPerSecond = toMicros(refillRatePerSecond);
+        this.capacityNanos = microsToNanos(capacityMicros);
+        this.nanoClock = nanoClock;
+        // start full
+        this.emptyAt = new AtomicLong(nanoClock.getAsLong() - capacityNanos);
+    }
+
+    /**
+     * Try to consume `amount` tokens. Returns true if successful, false otherwise. Never blocks.
+     */
+    @Override
+    public boolean tryConsume(double amount) {
+        return tryConsumeMicros(toMicros(amount));
+    }
+
+    @Override
+    public boolean tryConsumeMinor(long amountMinor) {
+        return tryConsumeMicros(Math.multiplyExact(amountMinor, MICROS_PER_MINOR));
+    }
+
+    private boolean tryConsumeMicros(long amountMicros) {
+        if (amountMicros <= 0) return true; // nothing to consume
+        long amountNanos = microsToNanos(amountMicros);
+
+        while (true) {
+            long now = nanoClock.getAsLong();
+            long current = emptyAt.get();
+            if (current == RETIRED) {
+                return false;
+            }
+            long base = Math.max(current, now - capacityNanos);
+            long updated = base + amountNanos;
+            if (updated - now > 0) {
+                return false;
+            }
+            if (emptyAt.compareAndSet(current, updated)) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Refund `amount` tokens back into the bucket, capped to its capacity. Never blocks.
+     */
+    @Override
+    public void refund(double amount) {
+        refundMicros(toMicros(amount));
+    }
+
+    @Override
+    public void refundMinor(long amountMinor) {
+        refundMicros(Math.multiplyExact(amountMinor, MICROS_PER_MINOR));
+    }
+
+    private void refundMicros(long amountMicros) {
+        if (amountMicros <= 0) return;
+        long amountNanos = microsToNanos(amountMicros);
+
+        while (true) {
+            long now = nanoClock.getAsLong();
+            long current = emptyAt.get();
+            if (current == RETIRED) {
+                return; // it was full
+            }
+            long full = now - capacityNanos;
+            long updated = Math.max(Math.max(current, full) - amountNanos, full);
+            if (updated == current || emptyAt.compareAndSet(current, updated)) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * For debugging / metrics: current available tokens.
+     */
+    @Override
+    public double getAvailableTokens() {
+        return (double) availableMicros() / MICROS_PER_TOKEN;
+    }
+
+    @Override
+    public boolean retireIfFull() {
+        while (true) {
+            long current = emptyAt.get();
+            if (current == RETIRED) {
+                return true;
+            }
+            if (nanoClock.getAsLong() - current < capacityNanos) {
+                return false;
+            }
+            if (emptyAt.compareAndSet(current, RETIRED)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean isRetired() {
+        return emptyAt.get() == RETIRED;
+    }
+
+    long availableMicros() {
+        long current = emptyAt.get();
+        if (current == RETIRED) return capacityMicros;
+        long elapsed = nanoClock.getAsLong() - current;
+        if (elapsed >= capacityNanos) return capacityMicros;
+        return elapsed <= 0 ? 0 : nanosToMicros(elapsed);
+    }
+
+    private long microsToNanos(long micros) {
+        return Math.multiplyExact(micros, NANOS_PER_SECOND) / refillMicrosPerSecond;
+    }
+
+    private long nanosToMicros(long nanos) {
+        return Math.multiplyExact(nanos, refillMicrosPerSecond) / NANOS_PER_SECOND;
+    }
+
+    static long toMicros(double tokens) {
+        return Math.round(tokens * MICROS_PER_TOKEN);
+    }
+}
@@ -0,0 +1,74 @@
+package no.kobler.rtb.smoothing;
+
+/**
+ * Generic cell rate algorithm (GCRA): smoothing state is a single theoretical arrival time (TAT) per campaign.
+ * <p>
+ * Every øre is a cell emitted once per interval (the reciprocal of the refill rate), and the bucket capacity is a
+ * tolerance: the TAT may run up to capacity × interval ahead of the clock. Reserving n øre moves the TAT from
+ * max(TAT, now) forward by n × interval and is admitted if it stays within the tolerance; a refund moves it back,
+ * never behind now. A TAT at or before now is a full bucket, so a missing TAT is a full bucket too.
+ * Capacity comes back one øre per interval instead of a second's worth at each second boundary.
+ * <p>
+ * The clock unit ("ticks") is the caller's: nanoseconds for {@link GcraSmoothingService}, microseconds for
+ * {@link RedisGcraSmoothingService}, whose Lua scripts do this same arithmetic on epoch microseconds (Lua numbers
+ * are doubles, exact only up to 2^53, which epoch nanoseconds exceed). The interval and tolerance are whole ticks in
+ * both units, so both backends admit and refund exactly the same amounts.
+ */
+public final class Gcra {
+
+    /**
+     * Returned by {@link #consume} when the reservation is not admitted.
+     */
+    public static final long REJECTED = Long.MIN_VALUE;
+
+    private final long intervalTicks;
+    private final long toleranceTicks;
+
+    /**
+     * @param ticksPerSecond clock resolution; must be a multiple of the refill rate so the interval is exact
+     */
+    public Gcra(long capacityMinor, long refillMinorPerSecond, long ticksPerSecond) {
+        if (capacityMinor <= 0 || refillMinorPerSecond <= 0 || ticksPerSecond % refillMinorPerSecond != 0) {
+            throw new IllegalArgumentException("capacity and refill rate must be positive, and the refill rate must " +
+                    "divide the clock resolution");
+        }
+        this.intervalTicks = ticksPerSecond / refillMinorPerSecond;
+        this.toleranceTicks = Math.multiplyExact(capacityMinor, intervalTicks);
+    }
+
+    /**
+     * Returns the TAT after reserving `amountMinor` at `now`, or {@link #REJECTED}.
+     */
+    public long consume(long tat, long now, long amountMinor) {
+        if (amountMinor <= 0) {
+            return tat; // nothing to reserve
+        }
+        long next = Math.max(tat, now) + amountMinor * intervalTicks;
+        return next - now > toleranceTicks ? REJECTED : next;
+    }
+
+    /**
+     * Returns the TAT after giving `amountMinor` back at `now`; the bucket never fills beyond its capacity.
+     */
+    public long refund(long tat, long now, long amountMinor) {
+        if (amountMinor <= 0) {
+            return tat;
+        }
+        return Math.max(tat - amountMinor * intervalTicks, now);
+    }
+
+    /**
+     * Whole øre that could be reserved at `now`.
+     */
+    public long availableMinor(long tat, long now) {
+        return (toleranceTicks - Math.max(0, tat - now)) / intervalTicks;
+    }
+
+    public long intervalTicks() {
+        return intervalTicks;
+    }
+
+    public long toleranceTicks() {
+        return toleranceTicks;
+    }
+}
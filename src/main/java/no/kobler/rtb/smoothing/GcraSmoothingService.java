@@ -0,0 +1,133 @@
+package no.kobler.rtb.smoothing;
+
+import no.kobler.rtb.model.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory smoothing with {@link Gcra}: one {@link System#nanoTime()} theoretical arrival time per campaign,
+ * updated with CAS, so reservations are paced at nanosecond resolution without locks.
+ * <p>
+ * Same capacity and refill rate as the other backends (10 NOK per 10 seconds). Consumed amounts are not counted,
+ * so {@link #consumedMinor} returns nothing and reconciliation skips this backend.
+ * <p>
+ * Every {@code smoothing.gcra.evict-interval-ms} a sweep drops the campaigns whose TAT is at or before now: their
+ * bucket is full, the same as a missing one. The sweep retires a TAT with a CAS before removing it, and a bid that
+ * finds a retired TAT retries on a new one, so eviction does not change what can be reserved.
+ */
+@Service
+@ConditionalOnProperty(name = "smoothing.type", havingValue = "gcra")
+public class GcraSmoothingService implements SmoothingService {
+
+    private static final Logger log = LoggerFactory.getLogger(GcraSmoothingService.class);
+
+    // TAT of an arrival removed by the sweep; never a real clock reading in practice
+    private static final long RETIRED = Long.MIN_VALUE;
+
+    private final Gcra gcra = new Gcra(RedisTokenBuckets.CAPACITY_MINOR,
+            RedisTokenBuckets.REFILL_MINOR_PER_SECOND, TimeUnit.SECONDS.toNanos(1));
+    private final Map<Long, AtomicLong> arrivals = new ConcurrentHashMap<>();
+    private final LongSupplier nanoClock;
+
+    public GcraSmoothingService() {
+        this(System::nanoTime);
+    }
+
+    GcraSmoothingService(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    @Override
+    public boolean tryConsume(long campaignId, long amountMinor) {
+        AtomicLong arrival = arrivalFor(campaignId);
+        while (true) {
+            long current = arrival.get();
+            if (current == RETIRED) {
+                arrivals.remove(campaignId, arrival);
+                arrival = arrivalFor(campaignId);
+                continue;
+            }
+            long next = gcra.consume(current, nanoClock.getAsLong(), amountMinor);
+            if (next == Gcra.REJECTED) {
+                log.debug("tryConsume campaignId={} amountMinor={} -> false", campaignId, amountMinor);
+                return false;
+            }
+            if (next == current || arrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A campaign without a TAT (or with a retired one) has a full bucket, so there is nothing to restore.
+     */
+    @Override
+    public void refund(long campaignId, long amountMinor) {
+        AtomicLong arrival = arrivals.get(campaignId);
+        if (arrival == null) {
+            return;
+        }
+        while (true) {
+            long current = arrival.get();
+            if (current == RETIRED) {
+                return;
+            }
+            long next = gcra.refund(current, nanoClock.getAsLong(), amountMinor);
+            if (next == current || arrival.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * For monitoring/debugging: does not create state for campaigns without any.
+     */
+    @Override
+    public double availableTokens(long campaignId) {
+        AtomicLong arrival = arrivals.get(campaignId);
+        long now = nanoClock.getAsLong();
+        long tat = arrival == null ? RETIRED : arrival.get();
+        return Money.toDouble(gcra.availableMinor(tat == RETIRED ? now : tat, now));
+    }
+
+    /**
+     * Evicts the campaigns whose bucket is full again.
+     */
+    @Scheduled(fixedDelayString = "${smoothing.gcra.evict-interval-ms:60000}",
+            initialDelayString = "${smoothing.gcra.evict-interval-ms:60000}")
+    public void evictIdle() {
+        int evicted = 0;
+        for (Map.Entry<Long, AtomicLong> entry : arrivals.entrySet()) {
+            AtomicLong arrival = entry.getValue();
+            long tat = arrival.get();
+            if (tat != RETIRED && tat <= nanoClock.getAsLong() && arrival.compareAndSet(tat, RETIRED)) {
+                arrivals.remove(entry.getKey(), arrival);
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            log.debug("Evicted {} idle arrival times, {} left", evicted, arrivals.size());
+        }
+    }
+
+    /**
+     * For monitoring/tests: number of campaigns holding an arrival time.
+     */
+    int arrivalCount() {
+        return arrivals.size();
+    }
+
+    private AtomicLong arrivalFor(long campaignId) {
+        // a new campaign starts with a full bucket
+        return arrivals.computeIfAbsent(campaignId, id -> new AtomicLong(nanoClock.getAsLong()));
+    }
+}
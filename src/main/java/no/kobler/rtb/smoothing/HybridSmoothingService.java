@@ -0,0 +1,514 @@
+package no.kobler.rtb.smoothing;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.model.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Smoothing that serves reservations from token slices this node borrowed from the Redis buckets.
+ * <p>
+ * The buckets are the injected {@link RedisTokenBuckets} that {@link RedisSmoothingService} uses too (same keys,
+ * fields and rates), so both can run side by side. A node borrows a slice of about
+ * {@code smoothing.hybrid.slice-minor} øre out of a campaign's bucket and reserves against it with a CAS on a local
+ * counter; only when the slice cannot cover a price does the bid go to Redis, borrowing what it needs plus a new slice in one script call. Tokens only ever move between a bucket and
+ * one node's slice, and the bucket counts what it lent out ({@code lent_minor}) and refills only up to capacity
+ * minus that, so all nodes together never reserve more than the bucket allows, as with the Redis backend; the
+ * price is that tokens sitting in another node's slice are not available here.
+ * <p>
+ * Every {@code smoothing.hybrid.sync-interval-ms} one script call per batch of campaigns reports the amount reserved
+ * locally to the bucket's consumed counter (and takes it off the lent tokens), tops up slices that ran low, gives
+ * back what refunds piled up beyond a slice, and returns whole slices of campaigns without reservations for
+ * {@code smoothing.hybrid.idle-ms}; an idle slice left empty is then dropped, so only campaigns holding tokens here
+ * take memory. A clean shutdown returns all slices. Slices of a crashed node stay lent, which lowers the campaign's
+ * burst (never its refill rate) until its bucket key expires after an hour without use.
+ * <p>
+ * Like {@link RedisTokenBuckets#consumeFirst}, the multi-key scripts need all keys on one Redis node.
+ */
+@Service
+@ConditionalOnProperty(name = "smoothing.type", havingValue = "hybrid")
+public class HybridSmoothingService implements SmoothingService {
+
+    private static final Logger log = LoggerFactory.getLogger(HybridSmoothingService.class);
+
+    private static final int SYNC_BATCH_SIZE = 500;
+
+    private final StringRedisTemplate redis;
+    private final ConcurrencyLimiter redisLimiter;
+    private final RedisTokenBuckets buckets;
+    private final LuaScript borrowFirstScript = new LuaScript("borrow-first", BORROW_FIRST_LUA);
+    private final LuaScript syncScript = new LuaScript("sync", SYNC_LUA);
+    private final long sliceMinor;
+    private final long idleNanos;
+
+    private final Map<Long, Slice> slices = new ConcurrentHashMap<>();
+
+    // slices dropped by the last sync, whose late reservations are reported by the next one; only touched by sync
+    private final List<Map.Entry<Long, Slice>> dropped = new ArrayList<>();
+
+    public HybridSmoothingService(StringRedisTemplate redis,
+                                  RedisTokenBuckets buckets,
+                                  @Qualifier("redisConcurrencyLimiter") ConcurrencyLimiter redisLimiter,
+                                  @Value("${smoothing.hybrid.slice-minor:200}") long sliceMinor,
+                                  @Value("${smoothing.hybrid.idle-ms:5000}") long idleMs) {
+        if (sliceMinor <= 0 || sliceMinor > RedisTokenBuckets.CAPACITY_MINOR) {
+            throw new IllegalArgumentException("smoothing.hybrid.slice-minor must be between 1 and the bucket capacity");
+        }
+        this.redis = redis;
+        this.redisLimiter = redisLimiter;
+        this.buckets = buckets;
+        this.sliceMinor = sliceMinor;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+    }
+
+    @PostConstruct
+    void loadScripts() {
+        try {
+            redis.execute((RedisCallback<Void>) connection -> {
+                borrowFirstScript.load(connection);
+                syncScript.load(connection);
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("Could not preload hybrid smoothing scripts, they are loaded on first use: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean tryConsume(long campaignId, long amountMinor) {
+        if (tryTake(campaignId, amountMinor)) {
+            return true;
+        }
+        return tryConsumeFirst(new long[]{campaignId}, new long[]{amountMinor}, 1) == 0;
+    }
+
+    /**
+     * Reserves locally if the first candidate's slice covers its price. Otherwise one script call walks the
+     * candidates in order, up to the first one whose slice covers its price, and borrows for the first that its
+     * bucket can serve.
+     */
+    @Override
+    public int tryConsumeFirst(long[] campaignIds, long[] amountsMinor, int count) {
+        int from = 0;
+        while (from < count) {
+            if (tryTake(campaignIds[from], amountsMinor[from])) {
+                return from;
+            }
+            int borrowed = borrowFirst(campaignIds, amountsMinor, from, count);
+            if (borrowed < 0) {
+                return -1;
+            }
+            if (tryTake(campaignIds[borrowed], amountsMinor[borrowed])) {
+                return borrowed;
+            }
+            // another bid took the tokens in the meantime
+            from = borrowed + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first candidate from `from` on that its slice covers, or that its bucket lent
+     * enough to (added to its slice), or -1 if there is none or Redis could not be asked.
+     */
+    private int borrowFirst(long[] campaignIds, long[] amountsMinor, int from, int count) {
+        int candidates = count - from;
+        // KEYS, then ARGV: capacity, refill_rate_per_second, now, then need and want per key
+        byte[][] keysAndArgs = new byte[3 * candidates + 3][];
+        keysAndArgs[candidates] = RedisTokenBuckets.CAPACITY_ARG;
+        keysAndArgs[candidates + 1] = RedisTokenBuckets.REFILL_ARG;
+        keysAndArgs[candidates + 2] = RedisArgs.epochSecondNow();
+        int keys = 0;
+        for (int i = from; i < count; i++) {
+            long needMinor = Math.max(0, amountsMinor[i] - localMinor(campaignIds[i]));
+            keysAndArgs[keys] = RedisTokenBuckets.bucketKey(campaignIds[i]);
+            keysAndArgs[candidates + 3 + 2 * keys] = RedisArgs.encode(needMinor);
+            keysAndArgs[candidates + 4 + 2 * keys] = RedisArgs.encode(needMinor == 0 ? 0 : needMinor + sliceMinor);
+            keys++;
+        }
+
+        if (!redisLimiter.tryAcquire()) {
+            return -1;
+        }
+        List<?> result;
+        try {
+            result = redis.execute((RedisCallback<List<?>>) connection -> borrowFirstScript.execute(connection,
+                    ReturnType.MULTI, candidates, keysAndArgs));
+        } catch (Exception e) {
+            log.error("Redis borrow script failed for {} candidates, error={}", candidates, e.getMessage());
+            return -1;
+        } finally {
+            redisLimiter.release();
+        }
+        // {1-based position, granted}, position 0 if no candidate could be served
+        int position = result == null ? 0 : ((Long) result.get(0)).intValue();
+        if (position == 0) {
+            return -1;
+        }
+        int index = from + position - 1;
+        long grantedMinor = (Long) result.get(1);
+        if (grantedMinor > 0) {
+            deposit(campaignIds[index], grantedMinor, 0);
+            log.debug("Borrowed {} øre for campaignId={}", grantedMinor, campaignIds[index]);
+        }
+        return index;
+    }
+
+    /**
+     * Refunds into the local slice; amounts beyond a slice go back to the bucket with the next sync.
+     */
+    @Override
+    public void refund(long campaignId, long amountMinor) {
+        if (amountMinor > 0) {
+            deposit(campaignId, amountMinor, -amountMinor);
+        }
+    }
+
+    /**
+     * Tokens of the Redis bucket plus those in this node's slice.
+     */
+    @Override
+    public double availableTokens(long campaignId) {
+        long remoteMinor;
+        try {
+            remoteMinor = buckets.availableMinor(campaignId);
+        } catch (Exception e) {
+            log.error("Failed to read tokens for campaignId={}, error={}", campaignId, e.getMessage());
+            remoteMinor = 0;
+        }
+        return Money.toDouble(remoteMinor + localMinor(campaignId));
+    }
+
+    /**
+     * The buckets' consumed counters plus what this node reserved since its last sync.
+     */
+    @Override
+    public Map<Long, Long> consumedMinor(Collection<Long> campaignIds) {
+        Map<Long, Long> consumed = new HashMap<>(buckets.consumedMinor(campaignIds));
+        for (Long campaignId : campaignIds) {
+            Slice slice = slices.get(campaignId);
+            if (slice != null && consumed.containsKey(campaignId)) {
+                consumed.merge(campaignId, slice.unreportedMinor.get(), Long::sum);
+            }
+        }
+        return consumed;
+    }
+
+    @Override
+    public void refundAll(Map<Long, Long> amountsMinor) {
+        buckets.refundAll(amountsMinor);
+    }
+
+    @Scheduled(fixedDelayString = "${smoothing.hybrid.sync-interval-ms:100}")
+    public void sync() {
+        sync(false);
+    }
+
+    /**
+     * Returns all slices to their buckets, so other nodes can use them right away.
+     */
+    @PreDestroy
+    public void returnAll() {
+        sync(true);
+    }
+
+    private synchronized void sync(boolean returnAll) {
+        long now = System.nanoTime();
+        List<Long> campaignIds = new ArrayList<>();
+        List<Slice> synced = new ArrayList<>();
+        List<long[]> moves = new ArrayList<>();
+        // reservations that landed on a slice while it was dropped
+        for (Map.Entry<Long, Slice> entry : dropped) {
+            long used = entry.getValue().unreportedMinor.getAndSet(0);
+            if (used != 0) {
+                campaignIds.add(entry.getKey());
+                synced.add(entry.getValue());
+                moves.add(new long[]{0, used, 0});
+            }
+        }
+        dropped.clear();
+        Map<Long, Slice> idle = new HashMap<>();
+        slices.forEach((campaignId, slice) -> {
+            boolean isIdle = returnAll || now - slice.lastUsedNanos > idleNanos;
+            if (isIdle) {
+                idle.put(campaignId, slice);
+            }
+            long[] move = slice.prepareSync(isIdle, sliceMinor);
+            if (move != null) {
+                campaignIds.add(campaignId);
+                synced.add(slice);
+                moves.add(move);
+            }
+        });
+        for (int start = 0; start < campaignIds.size(); start += SYNC_BATCH_SIZE) {
+            int end = Math.min(start + SYNC_BATCH_SIZE, campaignIds.size());
+            if (!syncBatch(campaignIds.subList(start, end), synced.subList(start, end), moves.subList(start, end))) {
+                campaignIds.subList(start, end).forEach(idle::remove);
+            }
+        }
+        // empty idle slices are dropped; a bid that still holds one moves on to a new slice
+        idle.forEach((campaignId, slice) -> {
+            if (slice.retireIfEmpty()) {
+                slices.remove(campaignId, slice);
+                dropped.add(Map.entry(campaignId, slice));
+            }
+        });
+    }
+
+    /**
+     * Applies one batch of {return, used, want} moves in one script call and returns true. If Redis fails, the
+     * returned tokens and the unreported amounts go back to the slices, so the next sync retries them.
+     */
+    private boolean syncBatch(List<Long> campaignIds, List<Slice> synced, List<long[]> moves) {
+        int count = campaignIds.size();
+        // KEYS, then ARGV: capacity, refill_rate_per_second, now, then return, used and want per key
+        byte[][] keysAndArgs = new byte[4 * count + 3][];
+        keysAndArgs[count] = RedisTokenBuckets.CAPACITY_ARG;
+        keysAndArgs[count + 1] = RedisTokenBuckets.REFILL_ARG;
+        keysAndArgs[count + 2] = RedisArgs.epochSecondNow();
+        for (int i = 0; i < count; i++) {
+            long[] move = moves.get(i);
+            keysAndArgs[i] = RedisTokenBuckets.bucketKey(campaignIds.get(i));
+            keysAndArgs[count + 3 + 3 * i] = RedisArgs.encode(move[0]);
+            keysAndArgs[count + 4 + 3 * i] = RedisArgs.encode(move[1]);
+            keysAndArgs[count + 5 + 3 * i] = RedisArgs.encode(move[2]);
+        }
+        List<?> granted;
+        try {
+            granted = redis.execute((RedisCallback<List<?>>) connection -> syncScript.execute(connection,
+                    ReturnType.MULTI, count, keysAndArgs));
+        } catch (Exception e) {
+            log.warn("Redis sync of {} smoothing slices failed, retrying with the next sync: {}", count, e.getMessage());
+            for (int i = 0; i < count; i++) {
+                Slice slice = synced.get(i);
+                slice.undoSync(moves.get(i));
+                if (slices.get(campaignIds.get(i)) != slice) {
+                    dropped.add(Map.entry(campaignIds.get(i), slice));
+                }
+            }
+            return false;
+        }
+        for (int i = 0; granted != null && i < count; i++) {
+            long grantedMinor = (Long) granted.get(i);
+            if (grantedMinor > 0) {
+                deposit(campaignIds.get(i), grantedMinor, 0);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * For monitoring/debugging: number of campaigns this node holds a slice for.
+     */
+    public int sliceCount() {
+        return slices.size();
+    }
+
+    private boolean tryTake(long campaignId, long amountMinor) {
+        if (amountMinor <= 0) {
+            return true; // nothing to reserve
+        }
+        Slice slice = slices.get(campaignId);
+        return slice != null && slice.tryTake(amountMinor);
+    }
+
+    private long localMinor(long campaignId) {
+        Slice slice = slices.get(campaignId);
+        return slice == null ? 0 : slice.availableMinor();
+    }
+
+    /**
+     * Puts tokens into the campaign's slice, creating it if needed, and moves on to a new slice if the sync just
+     * dropped the one found.
+     */
+    private void deposit(long campaignId, long amountMinor, long unreportedMinor) {
+        while (true) {
+            Slice slice = slices.computeIfAbsent(campaignId, id -> new Slice());
+            if (slice.deposit(amountMinor, unreportedMinor)) {
+                return;
+            }
+            slices.remove(campaignId, slice);
+        }
+    }
+
+    /**
+     * Tokens this node holds for one campaign, and what it reserved from them since the last sync.
+     */
+    private static final class Slice {
+
+        // available tokens of a dropped slice: every take fails, every deposit is refused
+        private static final long RETIRED = Long.MIN_VALUE;
+
+        private final AtomicLong availableMinor = new AtomicLong();
+        private final AtomicLong unreportedMinor = new AtomicLong();
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        private boolean tryTake(long amountMinor) {
+            while (true) {
+                long current = availableMinor.get();
+                if (current < amountMinor) {
+                    return false;
+                }
+                if (availableMinor.compareAndSet(current, current - amountMinor)) {
+                    unreportedMinor.addAndGet(amountMinor);
+                    lastUsedNanos = System.nanoTime();
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Adds tokens (borrowed, or refunded with a negative unreported amount). Returns false if the slice was
+         * dropped.
+         */
+        private boolean deposit(long amountMinor, long unreportedDelta) {
+            while (true) {
+                long current = availableMinor.get();
+                if (current == RETIRED) {
+                    return false;
+                }
+                if (availableMinor.compareAndSet(current, current + amountMinor)) {
+                    if (unreportedDelta != 0) {
+                        unreportedMinor.addAndGet(unreportedDelta);
+                    }
+                    return true;
+                }
+            }
+        }
+
+        private boolean retireIfEmpty() {
+            return availableMinor.compareAndSet(0, RETIRED);
+        }
+
+        private long availableMinor() {
+            return Math.max(0, availableMinor.get());
+        }
+
+        /**
+         * Takes what this sync moves: {tokens returned, amount reported as used, tokens wanted}, or null if nothing.
+         */
+        private long[] prepareSync(boolean idle, long sliceMinor) {
+            long returned = 0;
+            long wanted = 0;
+            if (idle) {
+                returned = availableMinor.getAndSet(0);
+            } else {
+                long current = availableMinor.get();
+                if (current > 2 * sliceMinor && availableMinor.compareAndSet(current, sliceMinor)) {
+                    returned = current - sliceMinor;
+                } else if (current < sliceMinor / 2) {
+                    wanted = sliceMinor - current;
+                }
+            }
+            long used = unreportedMinor.getAndSet(0);
+            return returned == 0 && used == 0 && wanted == 0 ? null : new long[]{returned, used, wanted};
+        }
+
+        private void undoSync(long[] move) {
+            availableMinor.addAndGet(move[0]);
+            unreportedMinor.addAndGet(move[1]);
+        }
+    }
+
+    // Lua script borrowing for the first key that can be served: returns {1-based position, granted}, {0, 0} if none
+    // A key whose need is 0 is already covered by the node's slice: it is returned without touching its bucket.
+    // Otherwise its bucket is refilled as in the consume script and, if it holds the need, lends up to the want and
+    // adds it to lent_minor.
+    // KEYS = bucket keys, in order of preference
+    // ARGV[1] = capacity (øre)
+    // ARGV[2] = refill_rate_per_second (øre)
+    // ARGV[3] = now (epoch seconds)
+    // ARGV[2 * i + 2] = need (øre), ARGV[2 * i + 3] = want (øre) for KEYS[i]
+    private static final String BORROW_FIRST_LUA =
+            """
+                    local capacity = tonumber(ARGV[1])
+                    local refill = tonumber(ARGV[2])
+                    local now = tonumber(ARGV[3])
+                    for i, key in ipairs(KEYS) do
+                      local need = tonumber(ARGV[2 * i + 2])
+                      local want = tonumber(ARGV[2 * i + 3])
+                      if need == 0 then
+                        return {i, 0}
+                      end
+                      local data = redis.call('HMGET', key, 'tokens_minor', 'last', 'lent_minor')
+                      local tokens = tonumber(data[1]) or capacity
+                      local last = tonumber(data[2]) or now
+                      local lent = tonumber(data[3]) or 0
+                      local elapsed = now - last
+                      if elapsed > 0 then
+                        tokens = math.min(capacity - lent, tokens + elapsed * refill)
+                        last = now
+                      end
+                      if tokens >= need then
+                        local granted = math.min(tokens, want)
+                        tokens = tokens - granted
+                        redis.call('HMSET', key, 'tokens_minor', string.format('%d', tokens), 'last', tostring(last),
+                          'lent_minor', string.format('%d', lent + granted))
+                        redis.call('EXPIRE', key, 3600)
+                        return {i, granted}
+                      end
+                    end
+                    return {0, 0}
+                    """;
+
+    // Lua script syncing slices: returns the tokens granted per key
+    // Returned tokens go back into the bucket and used amounts are added to consumed_minor; both are no longer lent,
+    // so the bucket refills up to capacity minus what is still lent. Then up to the wanted tokens are lent out.
+    // A negative used amount (refunds of reported reservations) puts tokens back into a slice, so it raises lent.
+    // KEYS = bucket keys
+    // ARGV[1] = capacity (øre)
+    // ARGV[2] = refill_rate_per_second (øre)
+    // ARGV[3] = now (epoch seconds)
+    // ARGV[3 * i + 1] = return, ARGV[3 * i + 2] = used, ARGV[3 * i + 3] = want (øre) for KEYS[i]
+    private static final String SYNC_LUA =
+            """
+                    local capacity = tonumber(ARGV[1])
+                    local refill = tonumber(ARGV[2])
+                    local now = tonumber(ARGV[3])
+                    local granted = {}
+                    for i, key in ipairs(KEYS) do
+                      local returned = tonumber(ARGV[3 * i + 1])
+                      local used = tonumber(ARGV[3 * i + 2])
+                      local want = tonumber(ARGV[3 * i + 3])
+                      local data = redis.call('HMGET', key, 'tokens_minor', 'last', 'lent_minor')
+                      local tokens = tonumber(data[1]) or capacity
+                      local last = tonumber(data[2]) or now
+                      local lent = math.max(0, (tonumber(data[3]) or 0) - returned - used)
+                      local elapsed = now - last
+                      if elapsed > 0 then
+                        tokens = tokens + elapsed * refill
+                        last = now
+                      end
+                      tokens = math.min(capacity - lent, tokens + returned)
+                      local lending = math.min(tokens, want)
+                      tokens = tokens - lending
+                      redis.call('HMSET', key, 'tokens_minor', string.format('%d', tokens), 'last', tostring(last),
+                        'lent_minor', string.format('%d', lent + lending))
+                      if used ~= 0 then
+                        redis.call('HINCRBY', key, 'consumed_minor', used)
+                      end
+                      redis.call('EXPIRE', key, 3600)
+                      granted[i] = lending
+                    end
+                    return granted
+                    """;
+}
@@ -2,11 +2,20 @@ package no.kobler.rtb.smoothing;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * In-memory smoothing service using TokenBucket per campaign.
@@ -14,6 +23,18 @@ import java.util.concurrent.ConcurrentHashMap;
  * Capacity and refill rate follow the requirement: max 10 NOK per 10 seconds.
  * - capacity = 10.0
  * - refill rate = 1.0 tokens per second (10 / 10)
+ * <p>
+ * The bucket implementation is selected with {@code smoothing.in-memory.bucket}:
+ * - atomic (default): lock-free {@link AtomicTokenBucket}, reserving whole øre without {@code double}
+ * - synchronized: {@link TokenBucket}
+ * <p>
+ * Next to each bucket a counter of net consumed øre is kept for {@link #consumedMinor}.
+ * <p>
+ * Idle buckets are evicted by a clock sweep every {@code smoothing.in-memory.evict-interval-ms}: a bucket found full
+ * in two consecutive sweeps is retired ({@link SmoothingBucket#retireIfFull}) and removed with its counter. A full
+ * bucket is the same as a new one, and a bid that still holds a retired bucket retries on a new one, so eviction
+ * does not change what can be reserved; it takes no lock beyond the bucket's own. A removed counter starts
+ * reconciliation over from a new baseline. Campaigns without a bucket are full, so inspecting one creates none.
  */
 @Service
 @ConditionalOnProperty(name = "smoothing.type", havingValue = "in-memory", matchIfMissing = true)
@@ -21,73 +42,183 @@ public class InMemorySmoothingService implements SmoothingService {
 
     private static final Logger log = LoggerFactory.getLogger(InMemorySmoothingService.class);
 
-    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Map<Long, SmoothingBucket> buckets = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicLong> consumed = new ConcurrentHashMap<>();
 
     private static final double CAPACITY = 10.0;
     private static final double REFILL_RATE_PER_SECOND = 1.0;
 
+    private final Supplier<SmoothingBucket> bucketFactory;
+
+    // campaigns whose bucket was full at the last sweep; only touched by the sweep
+    private Set<Long> fullAtLastSweep = new HashSet<>();
+
+    public InMemorySmoothingService() {
+        this("atomic");
+    }
+
+    @Autowired
+    public InMemorySmoothingService(@Value("${smoothing.in-memory.bucket:atomic}") String bucketType) {
+        this.bucketFactory = switch (bucketType) {
+            case "synchronized" -> () -> new TokenBucket(CAPACITY, REFILL_RATE_PER_SECOND);
+            case "atomic" -> () -> new AtomicTokenBucket(CAPACITY, REFILL_RATE_PER_SECOND);
+            default -> throw new IllegalArgumentException("Unknown smoothing.in-memory.bucket: " + bucketType);
+        };
+        log.info("In-memory smoothing uses {} token buckets", bucketType);
+    }
+
     /**
-     * Return a TokenBucket instance for the given campaignId.
+     * Return a bucket instance for the given campaignId.
      * If the token bucket doesn't exist, create a new one with the given capacity and refill rate.
-     * This method is thread-safe and will only create a single TokenBucket instance per campaignId.
+     * This method is thread-safe and will only create a single bucket instance per campaignId.
      *
-     * @param campaignId the campaignId to create or retrieve a TokenBucket for
-     * @return a TokenBucket instance for the given campaignId
+     * @param campaignId the campaignId to create or retrieve a bucket for
+     * @return a bucket instance for the given campaignId
      */
-    private TokenBucket bucketFor(long campaignId) {
+    private SmoothingBucket bucketFor(long campaignId) {
         return buckets.computeIfAbsent(campaignId,
                 id -> {
                     log.debug("Creating token bucket for campaignId={}", id);
-                    return new TokenBucket(CAPACITY, REFILL_RATE_PER_SECOND);
+                    return bucketFactory.get();
                 });
     }
 
     /**
-     * Try to consume `amount` tokens from the token bucket for the given campaignId.
+     * Try to consume `amountMinor` øre from the token bucket for the given campaignId.
      * Returns true if successful, false if not enough tokens available.
      * <p>
      * The method is thread-safe and will only create a single TokenBucket instance per campaignId.
      *
      * @param campaignId the campaignId to try consuming tokens from
-     * @param amount     the amount of tokens to try consuming
+     * @param amountMinor the amount in øre to try consuming
      * @return true if successful, false if not enough tokens available
      */
     @Override
-    public boolean tryConsume(long campaignId, double amount) {
-        TokenBucket bucket = bucketFor(campaignId);
-        boolean ok = bucket.tryConsume(amount);
-        log.debug("tryConsume campaignId={} amount={} -> {}", campaignId, amount, ok);
-        log.debug("Available tokens: {} for campaignId={}", bucket.getAvailableTokens(), campaignId);
+    public boolean tryConsume(long campaignId, long amountMinor) {
+        boolean ok = consume(campaignId, amountMinor);
+        log.debug("tryConsume campaignId={} amountMinor={} -> {}", campaignId, amountMinor, ok);
         return ok;
     }
 
+    /**
+     * Reserve for the first candidate whose bucket has enough tokens, in one pass over the candidates.
+     *
+     * @param campaignIds  the candidate campaignIds, in order of preference
+     * @param amountsMinor the amount in øre each candidate asks for
+     * @param count        the number of candidates to consider
+     * @return the index of the reserved candidate, or -1 if none had enough tokens
+     */
+    @Override
+    public int tryConsumeFirst(long[] campaignIds, long[] amountsMinor, int count) {
+        for (int i = 0; i < count; i++) {
+            if (consume(campaignIds[i], amountsMinor[i])) {
+                log.debug("tryConsumeFirst campaignId={} amountMinor={} reserved after {} rejected",
+                        campaignIds[i], amountsMinor[i], i);
+                return i;
+            }
+        }
+        log.debug("tryConsumeFirst rejected all {} candidates", count);
+        return -1;
+    }
+
     /**
      * Refund a previously reserved amount back to the campaign bucket.
      * Use when downstream persistence fails.
      * <p>
-     * The method is thread-safe and will only create a single TokenBucket instance per campaignId.
+     * A campaign without a bucket is full (or evicted with its counter), so there is nothing to restore.
      *
      * @param campaignId the campaignId to refund tokens for
-     * @param amount     the amount of tokens to refund
+     * @param amountMinor the amount in øre to refund
      */
     @Override
-    public void refund(long campaignId, double amount) {
-        TokenBucket bucket = bucketFor(campaignId);
-        bucket.refund(amount);
-        log.debug("refund campaignId={} amount={}", campaignId, amount);
+    public void refund(long campaignId, long amountMinor) {
+        SmoothingBucket bucket = buckets.get(campaignId);
+        if (bucket == null) {
+            return;
+        }
+        bucket.refundMinor(amountMinor);
+        consumedCounter(campaignId).addAndGet(-amountMinor);
+        log.debug("refund campaignId={} amountMinor={}", campaignId, amountMinor);
     }
 
     /**
      * For monitoring/debugging: get currently available tokens for campaign.
      * <p>
-     * The method is thread-safe and will only create a single TokenBucket instance per campaignId.
+     * Does not create a bucket: a campaign without one has a full bucket's worth.
      *
      * @param campaignId the campaignId to get available tokens for
      * @return the currently available tokens for the campaign
      */
     @Override
     public double availableTokens(long campaignId) {
-        TokenBucket bucket = bucketFor(campaignId);
-        return bucket.getAvailableTokens();
+        SmoothingBucket bucket = buckets.get(campaignId);
+        return bucket == null ? CAPACITY : bucket.getAvailableTokens();
+    }
+
+    /**
+     * Evicts the buckets that were full at the last sweep and still are.
+     */
+    @Scheduled(fixedDelayString = "${smoothing.in-memory.evict-interval-ms:60000}",
+            initialDelayString = "${smoothing.in-memory.evict-interval-ms:60000}")
+    public synchronized void evictIdle() {
+        Set<Long> full = new HashSet<>();
+        int evicted = 0;
+        for (Map.Entry<Long, SmoothingBucket> entry : buckets.entrySet()) {
+            Long campaignId = entry.getKey();
+            SmoothingBucket bucket = entry.getValue();
+            if (!fullAtLastSweep.contains(campaignId)) {
+                if (bucket.getAvailableTokens() >= CAPACITY) {
+                    full.add(campaignId); // second chance
+                }
+            } else if (bucket.retireIfFull()) {
+                buckets.remove(campaignId, bucket);
+                consumed.remove(campaignId);
+                evicted++;
+            }
+        }
+        fullAtLastSweep = full;
+        if (evicted > 0) {
+            log.debug("Evicted {} idle token buckets, {} left", evicted, buckets.size());
+        }
+    }
+
+    /**
+     * For monitoring/tests: number of campaigns holding a bucket.
+     */
+    int bucketCount() {
+        return buckets.size();
+    }
+
+    @Override
+    public Map<Long, Long> consumedMinor(Collection<Long> campaignIds) {
+        Map<Long, Long> result = new HashMap<>();
+        for (Long campaignId : campaignIds) {
+            AtomicLong counter = consumed.get(campaignId);
+            if (counter != null) {
+                result.put(campaignId, counter.get());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reserves from the campaign's bucket, moving on to a new bucket if the sweep retired the one found.
+     */
+    private boolean consume(long campaignId, long amountMinor) {
+        while (true) {
+            SmoothingBucket bucket = bucketFor(campaignId);
+            if (bucket.tryConsumeMinor(amountMinor)) {
+                consumedCounter(campaignId).addAndGet(amountMinor);
+                return true;
+            }
+            if (!bucket.isRetired()) {
+                return false;
+            }
+            buckets.remove(campaignId, bucket);
+        }
+    }
+
+    private AtomicLong consumedCounter(long campaignId) {
+        return consumed.computeIfAbsent(campaignId, id -> new AtomicLong());
     }
 }
@@ -0,0 +1,80 @@
+package no.kobler.rtb.smoothing;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * A Lua script that is always invoked with EVALSHA, so only its SHA1 goes over the wire.
+ * <p>
+ * The script is meant to be {@link #load loaded} at startup. If Redis does not know it (not loaded yet, restarted,
+ * SCRIPT FLUSH), the NOSCRIPT error is answered by loading it and retrying once. Keys and arguments are passed as
+ * raw bytes, without the template's serializers.
+ */
+final class LuaScript {
+
+    private final String name;
+    private final byte[] source;
+    private final String sha1;
+
+    LuaScript(String name, String source) {
+        this.name = name;
+        this.source = source.getBytes(StandardCharsets.UTF_8);
+        this.sha1 = sha1Hex(this.source);
+    }
+
+    /**
+     * Loads the script into the script cache of the connected Redis.
+     */
+    void load(RedisConnection connection) {
+        String loaded = connection.scriptingCommands().scriptLoad(source);
+        if (!sha1.equals(loaded)) {
+            throw new IllegalStateException("Redis returned SHA1 " + loaded + " for script " + name + ", expected " + sha1);
+        }
+    }
+
+    /**
+     * Runs the script by SHA1; `keysAndArgs` holds the `numKeys` keys followed by the arguments.
+     */
+    <T> T execute(RedisConnection connection, ReturnType returnType, int numKeys, byte[]... keysAndArgs) {
+        try {
+            return connection.scriptingCommands().evalSha(sha1, returnType, numKeys, keysAndArgs);
+        } catch (RuntimeException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            load(connection);
+            return connection.scriptingCommands().evalSha(sha1, returnType, numKeys, keysAndArgs);
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    String sha1() {
+        return sha1;
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null && message.contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String sha1Hex(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package no.kobler.rtb.smoothing;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Encodes script keys and arguments straight to the ASCII bytes Redis expects, with one exact-size array per value
+ * and no intermediate strings. The arrays are never written after they are returned, so they can be shared: constant
+ * arguments are encoded once by the caller, recurring keys and amounts are served from a {@link Cache}, and the
+ * current epoch second is shared by all calls within that second (the current microsecond is encoded per call).
+ * <p>
+ * Shared immutable arrays are used instead of per-thread scratch buffers on purpose: a command whose call timed out
+ * may still be queued in the client and would be sent with whatever a reused buffer holds by then, and a per-thread
+ * buffer would not be reused at all when bids run on virtual threads.
+ */
+final class RedisArgs {
+
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private static final Cache NUMBERS = new Cache(NO_PREFIX, 4096);
+
+    private static volatile EncodedSecond currentSecond = new EncodedSecond(Long.MIN_VALUE, NO_PREFIX);
+
+    private RedisArgs() {
+    }
+
+    static byte[] encode(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the decimal digits of `value`, shared with earlier calls for the same value while it stays cached.
+     */
+    static byte[] encode(long value) {
+        return NUMBERS.encode(value);
+    }
+
+    /**
+     * Returns `prefix` followed by the decimal digits of `value`, e.g. a bucket key.
+     */
+    static byte[] encode(byte[] prefix, long value) {
+        int size = prefix.length + digits(value);
+        byte[] out = new byte[size];
+        System.arraycopy(prefix, 0, out, 0, prefix.length);
+        // digits are produced from the negative value, which also covers Long.MIN_VALUE
+        boolean negative = value < 0;
+        long remaining = negative ? value : -value;
+        int index = size;
+        do {
+            out[--index] = (byte) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (negative) {
+            out[--index] = '-';
+        }
+        return out;
+    }
+
+    /**
+     * The current wall-clock time in whole epoch seconds, encoded.
+     */
+    static byte[] epochSecondNow() {
+        long second = System.currentTimeMillis() / 1000;
+        EncodedSecond current = currentSecond;
+        if (current.second() != second) {
+            current = new EncodedSecond(second, encode(NO_PREFIX, second));
+            currentSecond = current;
+        }
+        return current.bytes();
+    }
+
+    /**
+     * The current wall-clock time in epoch microseconds, encoded. Lua numbers are doubles, which hold epoch
+     * microseconds exactly but not epoch nanoseconds.
+     */
+    static byte[] epochMicrosNow() {
+        Instant now = Instant.now();
+        return encode(NO_PREFIX, now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000);
+    }
+
+    /**
+     * Parses a Redis integer reply or value, without going through a string.
+     */
+    static long decodeLong(byte[] bytes) {
+        boolean negative = bytes.length > 0 && bytes[0] == '-';
+        int index = negative ? 1 : 0;
+        if (index == bytes.length) {
+            throw new NumberFormatException("Not a number: " + new String(bytes, StandardCharsets.US_ASCII));
+        }
+        long result = 0;
+        for (; index < bytes.length; index++) {
+            int digit = bytes[index] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number: " + new String(bytes, StandardCharsets.US_ASCII));
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static int digits(long value) {
+        int sign = value < 0 ? 1 : 0;
+        long negative = value < 0 ? value : -value;
+        long bound = -10;
+        for (int digits = 1; digits < 19; digits++) {
+            if (negative > bound) {
+                return digits + sign;
+            }
+            bound *= 10;
+        }
+        return 19 + sign;
+    }
+
+    private record EncodedSecond(long second, byte[] bytes) {
+    }
+
+    /**
+     * Direct-mapped cache of encodings with one prefix, e.g. the bucket keys of a service. A value that hits its slot
+     * is returned without allocating; a miss encodes the value and takes the slot over.
+     * <p>
+     * Slots are read and written without synchronization: an entry only has final fields, so a racing reader sees
+     * either a complete entry or none, and at worst encodes a value again.
+     */
+    static final class Cache {
+
+        private final byte[] prefix;
+        private final Encoded[] slots;
+        private final int mask;
+
+        /**
+         * @param size number of slots, a power of two
+         */
+        Cache(byte[] prefix, int size) {
+            if (Integer.bitCount(size) != 1) {
+                throw new IllegalArgumentException("size must be a power of two: " + size);
+            }
+            this.prefix = prefix;
+            this.slots = new Encoded[size];
+            this.mask = size - 1;
+        }
+
+        byte[] encode(long value) {
+            int slot = Long.hashCode(value * 0x9E3779B97F4A7C15L) & mask;
+            Encoded cached = slots[slot];
+            if (cached != null && cached.value() == value) {
+                return cached.bytes();
+            }
+            byte[] bytes = RedisArgs.encode(prefix, value);
+            slots[slot] = new Encoded(value, bytes);
+            return bytes;
+        }
+
+        private record Encoded(long value, byte[] bytes) {
+        }
+    }
+}
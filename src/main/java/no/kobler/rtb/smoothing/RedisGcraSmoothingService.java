@@ -0,0 +1,207 @@
+package no.kobler.rtb.smoothing;
+
+import jakarta.annotation.PostConstruct;
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.model.Money;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Redis-backed smoothing with {@link Gcra}: one theoretical arrival time per campaign, in epoch microseconds, stored
+ * as a plain string key smoothing:gcra:{campaignId}.
+ * <p>
+ * The Lua scripts do the same arithmetic as {@link Gcra}, and each key expires when its bucket would be full again,
+ * so idle campaigns take no memory. Scripts run by SHA like in {@link RedisTokenBuckets}. Like the epoch second of
+ * {@link RedisTokenBuckets}, now is the calling node's clock passed in ARGV, not Redis' {@code TIME}: a script that
+ * reads {@code TIME} before a write is rejected before Redis 5. Node clocks are expected to be in sync (NTP); a node
+ * running ahead sees up to its skew's worth of refill early.
+ * Consumed amounts are not counted, so {@link #consumedMinor} returns nothing and reconciliation skips this backend.
+ */
+@Service
+@ConditionalOnProperty(name = "smoothing.type", havingValue = "redis-gcra")
+public class RedisGcraSmoothingService implements SmoothingService {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisGcraSmoothingService.class);
+
+    private static final long MICROS_PER_SECOND = 1_000_000L;
+    private static final Gcra GCRA = new Gcra(RedisTokenBuckets.CAPACITY_MINOR,
+            RedisTokenBuckets.REFILL_MINOR_PER_SECOND, MICROS_PER_SECOND);
+
+    private static final RedisArgs.Cache KEYS = new RedisArgs.Cache(RedisArgs.encode("smoothing:gcra:"), 4096);
+    private static final byte[] INTERVAL_ARG = RedisArgs.encode(GCRA.intervalTicks());
+    private static final byte[] TOLERANCE_ARG = RedisArgs.encode(GCRA.toleranceTicks());
+
+    private final StringRedisTemplate redis;
+    private final ConcurrencyLimiter redisLimiter;
+    private final LuaScript consumeFirstScript = new LuaScript("gcra-consume-first", CONSUME_FIRST_LUA);
+    private final LuaScript refundScript = new LuaScript("gcra-refund", REFUND_LUA);
+    private final LuaScript availableScript = new LuaScript("gcra-available", AVAILABLE_LUA);
+
+    public RedisGcraSmoothingService(StringRedisTemplate redis) {
+        this(redis, ConcurrencyLimiter.unlimited("redis"));
+    }
+
+    @Autowired
+    public RedisGcraSmoothingService(StringRedisTemplate redis,
+                                     @Qualifier("redisConcurrencyLimiter") ConcurrencyLimiter redisLimiter) {
+        this.redis = Objects.requireNonNull(redis, "redis template is required");
+        this.redisLimiter = redisLimiter;
+    }
+
+    @PostConstruct
+    void loadScripts() {
+        List<LuaScript> scripts = List.of(consumeFirstScript, refundScript, availableScript);
+        try {
+            redis.execute((RedisCallback<Void>) connection -> {
+                scripts.forEach(script -> script.load(connection));
+                return null;
+            });
+            log.info("Loaded {} GCRA smoothing scripts into Redis", scripts.size());
+        } catch (Exception e) {
+            log.warn("Could not preload GCRA smoothing scripts, they are loaded on first use: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean tryConsume(long campaignId, long amountMinor) {
+        return tryConsumeFirst(new long[]{campaignId}, new long[]{amountMinor}, 1) == 0;
+    }
+
+    @Override
+    public int tryConsumeFirst(long[] campaignIds, long[] amountsMinor, int count) {
+        if (count == 0) {
+            return -1;
+        }
+        // KEYS, then ARGV: interval, tolerance, now, one amount per key
+        byte[][] keysAndArgs = new byte[2 * count + 3][];
+        keysAndArgs[count] = INTERVAL_ARG;
+        keysAndArgs[count + 1] = TOLERANCE_ARG;
+        keysAndArgs[count + 2] = RedisArgs.epochMicrosNow();
+        for (int i = 0; i < count; i++) {
+            keysAndArgs[i] = key(campaignIds[i]);
+            keysAndArgs[count + 3 + i] = RedisArgs.encode(amountsMinor[i]);
+        }
+
+        if (!redisLimiter.tryAcquire()) {
+            // same fail-safe as a Redis error: no reservation
+            return -1;
+        }
+        Long result;
+        try {
+            result = redis.execute((RedisCallback<Long>) connection -> consumeFirstScript.execute(connection,
+                    ReturnType.INTEGER, count, keysAndArgs));
+        } catch (Exception e) {
+            log.error("Redis GCRA consume script failed for {} candidates, error={}", count, e.getMessage());
+            return -1;
+        } finally {
+            redisLimiter.release();
+        }
+        // the script returns the 1-based position of the reserved key, 0 if none
+        return result == null ? -1 : result.intValue() - 1;
+    }
+
+    @Override
+    public void refund(long campaignId, long amountMinor) {
+        byte[] key = key(campaignId);
+        byte[] amount = RedisArgs.encode(amountMinor);
+        byte[] nowArg = RedisArgs.epochMicrosNow();
+        // not gated by the limiter: a dropped refund would leave the tokens consumed
+        try {
+            redis.execute((RedisCallback<Long>) connection -> refundScript.execute(connection,
+                    ReturnType.INTEGER, 1, key, amount, INTERVAL_ARG, nowArg));
+        } catch (Exception e) {
+            log.error("Redis GCRA refund script failed for campaignId={}, amountMinor={}, error={}",
+                    campaignId, amountMinor, e.getMessage());
+        }
+    }
+
+    @Override
+    public double availableTokens(long campaignId) {
+        byte[] key = key(campaignId);
+        byte[] nowArg = RedisArgs.epochMicrosNow();
+        try {
+            Long available = redis.execute((RedisCallback<Long>) connection -> availableScript.execute(connection,
+                    ReturnType.INTEGER, 1, key, INTERVAL_ARG, TOLERANCE_ARG, nowArg));
+            return available == null ? 0.0 : Money.toDouble(available);
+        } catch (Exception e) {
+            log.error("Failed to read GCRA state for campaignId={}, error={}", campaignId, e.getMessage());
+            return 0.0;
+        }
+    }
+
+    private static byte[] key(long campaignId) {
+        return KEYS.encode(campaignId);
+    }
+
+    // Lua script reserving for the first key admitted by GCRA: returns its 1-based position, 0 if none
+    // The key expires when the bucket would be full again, a missing key is a full bucket.
+    // KEYS = TAT keys, in order of preference
+    // ARGV[1] = interval (µs per øre)
+    // ARGV[2] = tolerance (µs, capacity × interval)
+    // ARGV[3] = now (epoch µs)
+    // ARGV[i + 3] = amount (øre) for KEYS[i]
+    private static final String CONSUME_FIRST_LUA =
+            """
+                    local interval = tonumber(ARGV[1])
+                    local tolerance = tonumber(ARGV[2])
+                    local now = tonumber(ARGV[3])
+                    for i, key in ipairs(KEYS) do
+                      local amount = tonumber(ARGV[i + 3])
+                      if amount <= 0 then
+                        return i
+                      end
+                      local tat = tonumber(redis.call('GET', key)) or now
+                      local new_tat = math.max(tat, now) + amount * interval
+                      if new_tat - now <= tolerance then
+                        redis.call('SET', key, string.format('%d', new_tat), 'PX', math.ceil((new_tat - now) / 1000))
+                        return i
+                      end
+                    end
+                    return 0
+                    """;
+
+    // Lua script for refund: moves the TAT back, never behind now; returns 1
+    // KEYS[1] = TAT key
+    // ARGV[1] = amount (øre)
+    // ARGV[2] = interval (µs per øre)
+    // ARGV[3] = now (epoch µs)
+    private static final String REFUND_LUA =
+            """
+                    local tat = tonumber(redis.call('GET', KEYS[1]))
+                    local amount = tonumber(ARGV[1])
+                    local now = tonumber(ARGV[3])
+                    if not tat or amount <= 0 then
+                      return 1
+                    end
+                    local new_tat = math.max(tat - amount * tonumber(ARGV[2]), now)
+                    if new_tat > now then
+                      redis.call('SET', KEYS[1], string.format('%d', new_tat), 'PX', math.ceil((new_tat - now) / 1000))
+                    else
+                      redis.call('DEL', KEYS[1])
+                    end
+                    return 1
+                    """;
+
+    // Lua script returning the whole øre that could be reserved now
+    // KEYS[1] = TAT key
+    // ARGV[1] = interval (µs per øre)
+    // ARGV[2] = tolerance (µs)
+    // ARGV[3] = now (epoch µs)
+    private static final String AVAILABLE_LUA =
+            """
+                    local now = tonumber(ARGV[3])
+                    local tat = tonumber(redis.call('GET', KEYS[1])) or now
+                    local interval = tonumber(ARGV[1])
+                    return math.floor((tonumber(ARGV[2]) - math.max(0, tat - now)) / interval)
+                    """;
+}
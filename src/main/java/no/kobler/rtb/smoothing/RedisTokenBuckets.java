@@ -0,0 +1,344 @@
+package no.kobler.rtb.smoothing;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.AnyNestedCondition;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The per-campaign Redis token buckets shared by {@link RedisSmoothingService} and {@link HybridSmoothingService},
+ * with one atomic Lua script per operation.
+ * <p>
+ * Token bucket fields are stored in a Redis hash per campaign key:
+ * HKEY = smoothing:bucket:{campaignId}
+ * fields: tokens_minor (integer øre), last (epoch seconds), consumed_minor (net øre consumed, for reconciliation),
+ * lent_minor (øre lent out to {@link HybridSmoothingService} slices; the bucket refills to capacity minus this)
+ * <p>
+ * The consume script does:
+ * - read tokens,last
+ * - compute refill = min(capacity - lent, tokens + elapsed * refillRate)
+ * - if refill >= amount -> consume amount, write tokens & last, return 1
+ * - else write refreshed tokens & last, return 0
+ * <p>
+ * {@link #consumeFirst} runs the same steps for a list of candidates in one script call and stops at the first
+ * one that can be reserved; its keys must live on one Redis node (no cluster slot spreading).
+ * <p>
+ * Refund is done by a small Lua script that re-adds tokens (capped to capacity).
+ * Consume and refund also move consumed_minor, which {@link #consumedMinor} reads for many campaigns in one script
+ * call; {@link #refundAll} refunds many campaigns in one script call as well.
+ * <p>
+ * All scripts are loaded when the bean starts and run with EVALSHA ({@link LuaScript}), reloading a script that
+ * Redis reports missing. Keys and arguments go to the connection as bytes ({@link RedisArgs}). Every operation
+ * throws if Redis fails; callers decide how to fail safe.
+ */
+@Component
+@Conditional(RedisTokenBuckets.UsedBySmoothing.class)
+public class RedisTokenBuckets {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisTokenBuckets.class);
+
+    // configuration (10 NOK per 10s), in øre so the script only does integer arithmetic
+    static final long CAPACITY_MINOR = 1_000L;
+    static final long REFILL_MINOR_PER_SECOND = 100L; // 10 NOK / 10s
+
+    private static final String KEY_PREFIX = "smoothing:bucket:";
+
+    // constant script arguments, encoded once and shared by all calls
+    private static final RedisArgs.Cache BUCKET_KEYS = new RedisArgs.Cache(RedisArgs.encode(KEY_PREFIX), 4096);
+    static final byte[] CAPACITY_ARG = RedisArgs.encode(CAPACITY_MINOR);
+    static final byte[] REFILL_ARG = RedisArgs.encode(REFILL_MINOR_PER_SECOND);
+
+    private final StringRedisTemplate redis;
+    private final LuaScript consumeScript = new LuaScript("consume", CONSUME_LUA);
+    private final LuaScript consumeFirstScript = new LuaScript("consume-first", CONSUME_FIRST_LUA);
+    private final LuaScript refundScript = new LuaScript("refund", REFUND_LUA);
+    private final LuaScript consumedScript = new LuaScript("consumed", CONSUMED_LUA);
+    private final LuaScript refundAllScript = new LuaScript("refund-all", REFUND_ALL_LUA);
+
+    public RedisTokenBuckets(StringRedisTemplate redis) {
+        this.redis = Objects.requireNonNull(redis, "redis template is required");
+    }
+
+    /**
+     * Loads all scripts into Redis' script cache, so bids only send their SHA1. If Redis is not reachable yet, each
+     * script is loaded by its first call instead.
+     */
+    @PostConstruct
+    void loadScripts() {
+        List<LuaScript> scripts = List.of(consumeScript, consumeFirstScript, refundScript, consumedScript, refundAllScript);
+        try {
+            redis.execute((RedisCallback<Void>) connection -> {
+                scripts.forEach(script -> script.load(connection));
+                return null;
+            });
+            log.info("Loaded {} smoothing scripts into Redis", scripts.size());
+        } catch (Exception e) {
+            log.warn("Could not preload smoothing scripts, they are loaded on first use: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Reserves `amountMinor` from the campaign's bucket. Returns true if it had enough tokens.
+     */
+    public boolean consume(long campaignId, long amountMinor) {
+        byte[] key = bucketKey(campaignId);
+        byte[] amount = RedisArgs.encode(amountMinor);
+        byte[] nowArg = RedisArgs.epochSecondNow();
+        // ARGV: amount, capacity, refill_rate_per_second, now
+        Long result = redis.execute((RedisCallback<Long>) connection -> consumeScript.execute(connection,
+                ReturnType.INTEGER, 1, key, amount, CAPACITY_ARG, REFILL_ARG, nowArg));
+        return result != null && result == 1L;
+    }
+
+    /**
+     * Reserves for the first candidate whose bucket has enough tokens. Returns its index, or -1 if there is none.
+     */
+    public int consumeFirst(long[] campaignIds, long[] amountsMinor, int count) {
+        // KEYS, then ARGV: capacity, refill_rate_per_second, now, one amount per key
+        byte[][] keysAndArgs = new byte[2 * count + 3][];
+        keysAndArgs[count] = CAPACITY_ARG;
+        keysAndArgs[count + 1] = REFILL_ARG;
+        keysAndArgs[count + 2] = RedisArgs.epochSecondNow();
+        for (int i = 0; i < count; i++) {
+            keysAndArgs[i] = bucketKey(campaignIds[i]);
+            keysAndArgs[count + 3 + i] = RedisArgs.encode(amountsMinor[i]);
+        }
+        Long result = redis.execute((RedisCallback<Long>) connection -> consumeFirstScript.execute(connection,
+                ReturnType.INTEGER, count, keysAndArgs));
+        // the script returns the 1-based position of the reserved key, 0 if none
+        return result == null ? -1 : result.intValue() - 1;
+    }
+
+    /**
+     * Adds `amountMinor` back to the campaign's bucket, up to its capacity. Returns the script's result, 1 on success.
+     */
+    public Long refund(long campaignId, long amountMinor) {
+        byte[] key = bucketKey(campaignId);
+        byte[] amount = RedisArgs.encode(amountMinor);
+        // ARGV: amount, capacity
+        return redis.execute((RedisCallback<Long>) connection -> refundScript.execute(connection,
+                ReturnType.INTEGER, 1, key, amount, CAPACITY_ARG));
+    }
+
+    /**
+     * Reads the consumed counters of all given campaigns with one script call. Campaigns without a bucket are left
+     * out.
+     */
+    public Map<Long, Long> consumedMinor(Collection<Long> campaignIds) {
+        if (campaignIds.isEmpty()) {
+            return Map.of();
+        }
+        List<Long> ids = List.copyOf(campaignIds);
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = bucketKey(ids.get(i));
+        }
+        List<?> values = redis.execute((RedisCallback<List<?>>) connection -> consumedScript.execute(connection,
+                ReturnType.MULTI, keys.length, keys));
+        Map<Long, Long> result = new HashMap<>();
+        for (int i = 0; values != null && i < values.size(); i++) {
+            if (values.get(i) instanceof byte[] value) {
+                result.put(ids.get(i), RedisArgs.decodeLong(value));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Refunds all given campaigns with one script call. Buckets that no longer exist are skipped, there is nothing
+     * left to repair. Returns the number of buckets refunded.
+     */
+    public long refundAll(Map<Long, Long> amountsMinor) {
+        if (amountsMinor.isEmpty()) {
+            return 0;
+        }
+        int count = amountsMinor.size();
+        // KEYS, then ARGV: capacity, one amount per key
+        byte[][] keysAndArgs = new byte[2 * count + 1][];
+        keysAndArgs[count] = CAPACITY_ARG;
+        int i = 0;
+        for (Map.Entry<Long, Long> refund : amountsMinor.entrySet()) {
+            keysAndArgs[i] = bucketKey(refund.getKey());
+            keysAndArgs[count + 1 + i] = RedisArgs.encode(refund.getValue());
+            i++;
+        }
+        Long refunded = redis.execute((RedisCallback<Long>) connection -> refundAllScript.execute(connection,
+                ReturnType.INTEGER, count, keysAndArgs));
+        return refunded == null ? 0 : refunded;
+    }
+
+    /**
+     * Tokens in the campaign's bucket right now, in øre, including the refill since its last update.
+     */
+    public long availableMinor(long campaignId) {
+        String key = KEY_PREFIX + campaignId;
+        List<String> vals = redis.opsForHash().multiGet(key, List.of("tokens_minor", "last", "lent_minor")).stream()
+                .map(o -> o == null ? null : o.toString())
+                .toList();
+        String tokensStr = vals.get(0);
+        String lastStr = vals.get(1);
+        long now = Instant.now().getEpochSecond();
+        long tokens = tokensStr != null ? Long.parseLong(tokensStr) : CAPACITY_MINOR;
+        long last = lastStr != null ? Long.parseLong(lastStr) : now;
+        long lent = vals.get(2) != null ? Long.parseLong(vals.get(2)) : 0;
+        long elapsed = now - last;
+        if (elapsed > 0) {
+            tokens = Math.min(CAPACITY_MINOR - lent, tokens + elapsed * REFILL_MINOR_PER_SECOND);
+        }
+        return tokens;
+    }
+
+    static byte[] bucketKey(long campaignId) {
+        return BUCKET_KEYS.encode(campaignId);
+    }
+
+    /**
+     * The smoothing types that reserve from these buckets: redis and hybrid.
+     */
+    static class UsedBySmoothing extends AnyNestedCondition {
+
+        UsedBySmoothing() {
+            super(ConfigurationPhase.REGISTER_BEAN);
+        }
+
+        @ConditionalOnProperty(name = "smoothing.type", havingValue = "redis")
+        static class Redis {
+        }
+
+        @ConditionalOnProperty(name = "smoothing.type", havingValue = "hybrid")
+        static class Hybrid {
+        }
+    }
+
+    // Lua script for atomic consume: returns 1 on success, 0 on failure
+    // KEYS[1] = bucket key
+    // ARGV[1] = amount (øre)
+    // ARGV[2] = capacity (øre)
+    // ARGV[3] = refill_rate_per_second (øre)
+    // ARGV[4] = now (epoch seconds)
+    private static final String CONSUME_LUA =
+            """
+                    local key = KEYS[1]
+                    local amount = tonumber(ARGV[1])
+                    local capacity = tonumber(ARGV[2])
+                    local refill = tonumber(ARGV[3])
+                    local now = tonumber(ARGV[4])
+                    local data = redis.call('HMGET', key, 'tokens_minor', 'last', 'lent_minor')
+                    local tokens = tonumber(data[1]) or capacity
+                    local last = tonumber(data[2]) or now
+                    local elapsed = now - last
+                    if elapsed > 0 then
+                      tokens = math.min(capacity - (tonumber(data[3]) or 0), tokens + elapsed * refill)
+                      last = now
+                    end
+                    if tokens >= amount then
+                      tokens = tokens - amount
+                      redis.call('HMSET', key, 'tokens_minor', string.format('%d', tokens), 'last', tostring(last))
+                      redis.call('HINCRBY', key, 'consumed_minor', amount)
+                      redis.call('EXPIRE', key, 3600)
+                      return 1
+                    else
+                      redis.call('HMSET', key, 'tokens_minor', string.format('%d', tokens), 'last', tostring(last))
+                      redis.call('EXPIRE', key, 3600)
+                      return 0
+                    end
+                    """;
+
+    // Lua script reserving for the first key with enough tokens: returns its 1-based position, 0 if none
+    // Rejected buckets are not written: refill only depends on tokens, last and now, so it is recomputed next time.
+    // KEYS = bucket keys, in order of preference
+    // ARGV[1] = capacity (øre)
+    // ARGV[2] = refill_rate_per_second (øre)
+    // ARGV[3] = now (epoch seconds)
+    // ARGV[i + 3] = amount (øre) for KEYS[i]
+    private static final String CONSUME_FIRST_LUA =
+            """
+                    local capacity = tonumber(ARGV[1])
+                    local refill = tonumber(ARGV[2])
+                    local now = tonumber(ARGV[3])
+                    for i, key in ipairs(KEYS) do
+                      local amount = tonumber(ARGV[i + 3])
+                      local data = redis.call('HMGET', key, 'tokens_minor', 'last', 'lent_minor')
+                      local tokens = tonumber(data[1]) or capacity
+                      local last = tonumber(data[2]) or now
+                      local elapsed = now - last
+                      if elapsed > 0 then
+                        tokens = math.min(capacity - (tonumber(data[3]) or 0), tokens + elapsed * refill)
+                        last = now
+                      end
+                      if tokens >= amount then
+                        tokens = tokens - amount
+                        redis.call('HMSET', key, 'tokens_minor', string.format('%d', tokens), 'last', tostring(last))
+                        redis.call('HINCRBY', key, 'consumed_minor', amount)
+                        redis.call('EXPIRE', key, 3600)
+                        return i
+                      end
+                    end
+                    return 0
+                    """;
+
+    // Lua script for refund: add tokens back up to capacity (minus lent tokens), returns 1
+    // KEYS[1] = bucket key
+    // ARGV[1] = amount (øre)
+    // ARGV[2] = capacity (øre)
+    private static final String REFUND_LUA =
+            """
+                    local key = KEYS[1]
+                    local amount = tonumber(ARGV[1])
+                    local capacity = tonumber(ARGV[2])
+                    local data = redis.call('HMGET', key, 'tokens_minor', 'last', 'lent_minor')
+                    local tokens = tonumber(data[1]) or capacity
+                    tokens = math.min(capacity - (tonumber(data[3]) or 0), tokens + amount)
+                    local last = tonumber(data[2]) or tonumber(redis.call('TIME')[1])
+                    redis.call('HMSET', key, 'tokens_minor', string.format('%d', tokens), 'last', tostring(last))
+                    redis.call('HINCRBY', key, 'consumed_minor', -amount)
+                    redis.call('EXPIRE', key, 3600)
+                    return 1
+                    """;
+
+    // Lua script reading consumed counters: returns one value per key, nil if the key or field is missing
+    // KEYS = bucket keys
+    private static final String CONSUMED_LUA =
+            """
+                    local result = {}
+                    for i, key in ipairs(KEYS) do
+                      result[i] = redis.call('HGET', key, 'consumed_minor')
+                    end
+                    return result
+                    """;
+
+    // Lua script for bulk refund of existing buckets: returns the number of buckets refunded
+    // KEYS = bucket keys
+    // ARGV[1] = capacity (øre)
+    // ARGV[i + 1] = amount (øre) for KEYS[i]
+    private static final String REFUND_ALL_LUA =
+            """
+                    local capacity = tonumber(ARGV[1])
+                    local refunded = 0
+                    for i, key in ipairs(KEYS) do
+                      local amount = tonumber(ARGV[i + 1])
+                      local data = redis.call('HMGET', key, 'tokens_minor', 'lent_minor')
+                      local tokens = tonumber(data[1])
+                      if tokens then
+                        tokens = math.min(capacity - (tonumber(data[2]) or 0), tokens + amount)
+                        redis.call('HSET', key, 'tokens_minor', string.format('%d', tokens))
+                        redis.call('HINCRBY', key, 'consumed_minor', -amount)
+                        refunded = refunded + 1
+                      end
+                    end
+                    return refunded
+                    """;
+}
@@ -0,0 +1,55 @@
+package no.kobler.rtb.smoothing;
+
+import no.kobler.rtb.model.Money;
+
+/**
+ * Per-campaign token bucket used by {@link InMemorySmoothingService}.
+ * <p>
+ * Implementations must be thread-safe.
+ * <p>
+ * A full bucket is the same as a new one, so {@link InMemorySmoothingService} evicts idle buckets by retiring them:
+ * once retired a bucket rejects every reservation and ignores refunds, and the caller moves on to a new bucket.
+ */
+public interface SmoothingBucket {
+
+    /**
+     * Try to consume `amount` tokens. Returns true if successful, false otherwise.
+     */
+    boolean tryConsume(double amount);
+
+    /**
+     * Refund `amount` tokens back into the bucket, capped to its capacity.
+     */
+    void refund(double amount);
+
+    /**
+     * For debugging / metrics: current available tokens.
+     */
+    double getAvailableTokens();
+
+    /**
+     * Like {@link #tryConsume(double)} for an amount in øre. {@link InMemorySmoothingService} reserves through this;
+     * implementations with an integer state override it so no amount goes through {@code double}.
+     */
+    default boolean tryConsumeMinor(long amountMinor) {
+        return tryConsume(Money.toDouble(amountMinor));
+    }
+
+    /**
+     * Like {@link #refund(double)} for an amount in øre.
+     */
+    default void refundMinor(long amountMinor) {
+        refund(Money.toDouble(amountMinor));
+    }
+
+    /**
+     * Retires the bucket if it is full, atomically with respect to {@link #tryConsume} and {@link #refund}.
+     * Returns true if the bucket is retired, also when it already was.
+     */
+    boolean retireIfFull();
+
+    /**
+     * True once {@link #retireIfFull} has retired the bucket.
+     */
+    boolean isRetired();
+}
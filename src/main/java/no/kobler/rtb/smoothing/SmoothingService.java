@@ -1,25 +1,60 @@
 package no.kobler.rtb.smoothing;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Smoothing operations used by bidding flow.
  * Implementations may be in-memory or Redis-backed (future).
+ * Amounts are in minor units (øre, 1 NOK = 100), matching the rest of the bid path.
  */
 public interface SmoothingService {
 
     /**
-     * Try to reserve `amount` tokens for given campaignId.
+     * Try to reserve `amountMinor` øre for given campaignId.
      * Returns true if reservation succeeded (tokens deducted), false if not enough tokens.
      */
-    boolean tryConsume(long campaignId, double amount);
+    boolean tryConsume(long campaignId, long amountMinor);
+
+    /**
+     * Reserves for the first of several candidates, in order of preference, that has enough tokens:
+     * candidate `i` is campaign `campaignIds[i]` asking for `amountsMinor[i]` øre, and only the first `count`
+     * candidates are considered. At most one reservation is made.
+     * Returns the index of the reserved candidate, or -1 if none could be reserved.
+     */
+    default int tryConsumeFirst(long[] campaignIds, long[] amountsMinor, int count) {
+        for (int i = 0; i < count; i++) {
+            if (tryConsume(campaignIds[i], amountsMinor[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
     /**
      * Refund a previously reserved amount back to the campaign bucket.
      * Use when downstream persistence fails.
      */
-    void refund(long campaignId, double amount);
+    void refund(long campaignId, long amountMinor);
 
     /**
-     * For monitoring/debugging: get currently available tokens for campaign.
+     * For monitoring/debugging: get currently available tokens (NOK) for campaign.
      */
     double availableTokens(long campaignId);
+
+    /**
+     * Net amount (øre) consumed per campaign: successful reservations minus refunds, ignoring refill.
+     * Campaigns without smoothing state are left out. Used by reconciliation to compare against recorded spend;
+     * implementations that do not track it return an empty map.
+     */
+    default Map<Long, Long> consumedMinor(Collection<Long> campaignIds) {
+        return Map.of();
+    }
+
+    /**
+     * Refunds several campaigns at once, as {@link #refund} would one by one.
+     */
+    default void refundAll(Map<Long, Long> amountsMinor) {
+        amountsMinor.forEach(this::refund);
+    }
 }
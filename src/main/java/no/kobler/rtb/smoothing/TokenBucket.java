@@ -7,15 +7,17 @@ import java.time.Instant;
  * - capacity: maximum tokens bucket can hold
  * - refillRatePerSecond: tokens added per second
  * <p>
- * Methods are synchronized to keep operations atomic per bucket.
+ * Methods are synchronized to keep operations atomic per bucket. See {@link AtomicTokenBucket} for a lock-free
+ * alternative.
  */
-public class TokenBucket {
+public class TokenBucket implements SmoothingBucket {
 
     private final double capacity;
     private final double refillRatePerSecond;
 
     private double tokens;
     private long lastRefillEpochSeconds;
+    private boolean retired;
 
     public TokenBucket(double capacity, double refillRatePerSecond) {
         this.capacity = capacity;
@@ -36,7 +38,9 @@ public class TokenBucket {
     /**
      * Try to consume `amount` tokens. Returns true if successful, false otherwise.
      */
+    @Override
     public synchronized boolean tryConsume(double amount) {
+        if (retired) return false;
         refill();
         if (amount <= 0) return true; // nothing to consume
         if (tokens + 1e-9 >= amount) { // small epsilon for floating safety
@@ -50,17 +54,32 @@ public class TokenBucket {
     /**
      * Refund `amount` tokens back into the bucket (e.g., on failure after consumption).
      */
+    @Override
     public synchronized void refund(double amount) {
-        if (amount <= 0) return;
+        if (amount <= 0 || retired) return;
         tokens = Math.min(capacity, tokens + amount);
     }
 
     /**
      * For debugging / metrics: current available tokens.
      */
+    @Override
     public synchronized double getAvailableTokens() {
         refill();
         return tokens;
     }
-}
 
+    @Override
+    public synchronized boolean retireIfFull() {
+        refill();
+        if (tokens >= capacity) {
+            retired = true;
+        }
+        return retired;
+    }
+
+    @Override
+    public synchronized boolean isRetired() {
+        return retired;
+    }
+}
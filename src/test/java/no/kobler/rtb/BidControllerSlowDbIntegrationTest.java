@@ -16,7 +16,6 @@ import org.springframework.test.web.servlet.MockMvc;
 import java.math.BigDecimal;
 import java.util.Set;
 
-import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.doAnswer;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
@@ -62,7 +61,7 @@ class BidControllerSlowDbIntegrationTest {
             Thread.sleep(700);
             // call real method by using invocation.callRealMethod() is tricky in SpyBean when method is interface - but here spy is on the actual bean, so:
             return invocation.callRealMethod();
-        }).when(spyCampaignRepository).incrementSpendingIfNotExceed(anyLong(), any(BigDecimal.class));
+        }).when(spyCampaignRepository).incrementSpendingIfNotExceed(anyLong(), anyLong());
 
         String bidRequest = """
                 {
@@ -18,14 +18,14 @@ import org.springframework.test.web.servlet.MockMvc;
 import java.math.BigDecimal;
 import java.util.Set;
 
-import static org.mockito.ArgumentMatchers.anyDouble;
-import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doAnswer;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
- * Integration test that simulates a slow smoothing.tryConsume (token reservation).
+ * Integration test that simulates a slow smoothing.tryConsumeFirst (token reservation).
  * Controller should return 204 No Content when smoothing is too slow.
  */
 @SpringBootTest
@@ -40,7 +40,7 @@ class BidControllerSlowSmoothingIntegrationTest {
     CampaignRepository campaignRepository;
 
     @SpyBean
-    SmoothingService smoothingService; // spy the real bean and delay tryConsume
+    SmoothingService smoothingService; // spy the real bean and delay tryConsumeFirst
 
     @BeforeEach
     void setup() {
@@ -55,11 +55,11 @@ class BidControllerSlowSmoothingIntegrationTest {
         campaign.setSpending(BigDecimal.ZERO);
         campaign = campaignRepository.save(campaign);
 
-        // Make smoothing.tryConsume sleep (simulate slowness) and then return true
+        // Make smoothing.tryConsumeFirst sleep (simulate slowness) and then reserve the first candidate
         doAnswer(invocation -> {
             Thread.sleep(700); // longer than controller timeout (500ms)
-            return true;
-        }).when(smoothingService).tryConsume(anyLong(), anyDouble());
+            return 0;
+        }).when(smoothingService).tryConsumeFirst(any(long[].class), any(long[].class), anyInt());
 
         String bidRequest = """
                 {
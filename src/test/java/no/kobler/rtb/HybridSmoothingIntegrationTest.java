@@ -0,0 +1,143 @@
+package no.kobler.rtb;
+
+
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.repository.CampaignRepository;
+import no.kobler.rtb.smoothing.HybridSmoothingService;
+import no.kobler.rtb.smoothing.RedisTokenBuckets;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+// Enable hybrid smoothing for this test class (slices borrowed from the same Redis buckets)
+@TestPropertySource(properties = {
+        "smoothing.type=hybrid",
+        "spring.redis.host=localhost",
+        "spring.redis.port=6379"
+})
+class HybridSmoothingIntegrationTest {
+
+    @Autowired
+    MockMvc mvc;
+
+    @Autowired
+    CampaignRepository campaignRepository;
+
+    @Autowired
+    StringRedisTemplate redis;
+
+    @Autowired
+    RedisTokenBuckets buckets;
+
+    @MockBean
+    private Random random;
+
+    @BeforeEach
+    void cleanup() {
+        // This will return 0.4 for the first 4 calls, then 0.0
+        when(random.nextDouble())
+                .thenReturn(0.4)
+                .thenReturn(0.4)
+                .thenReturn(0.4);
+
+        campaignRepository.deleteAll();
+    }
+
+    @Test
+    @DisplayName("Hybrid smoothing: third rapid bid denied although the node holds a slice")
+    void hybridSmoothing_thirdRapidBidDenied() throws Exception {
+        // Create campaign
+        Campaign campaign = new Campaign("HybridCamp", Set.of(" Kobler "), new BigDecimal("100.0"));
+        campaign.setSpending(BigDecimal.ZERO);
+        campaign = campaignRepository.save(campaign);
+
+        String req = """
+                {
+                  "bidId": 9002,
+                  "keywords": ["kobler"]
+                }
+                """;
+
+        // Send multiple concurrent/sequential bids quickly
+        mvc.perform(post("/bids").contentType(MediaType.APPLICATION_JSON).content(req))
+                .andExpect(status().is2xxSuccessful());
+
+        mvc.perform(post("/bids").contentType(MediaType.APPLICATION_JSON).content(req))
+                .andExpect(status().is2xxSuccessful());
+
+        mvc.perform(post("/bids").contentType(MediaType.APPLICATION_JSON).content(req))
+                .andExpect(status().is(204)); // third should be denied given deterministic pricing in other tests
+
+        // Verify spending is <= 10.00 NOK
+        Campaign updated = campaignRepository.findById(campaign.getId()).orElseThrow();
+        assertThat(updated.getSpending().doubleValue()).isLessThanOrEqualTo(10.0);
+    }
+
+    @Test
+    @DisplayName("Hybrid smoothing: slices of all nodes together never hold more than the bucket capacity")
+    void hybridSmoothing_lentTokensCountAgainstCapacity() {
+        long campaignId = 987_654L;
+        String key = "smoothing:bucket:" + campaignId;
+        redis.delete(key);
+        HybridSmoothingService nodeA = node(60_000);
+        HybridSmoothingService nodeB = node(60_000);
+
+        // each node borrows its price plus a slice of 200
+        assertThat(nodeA.tryConsume(campaignId, 300)).isTrue();
+        assertThat(nodeB.tryConsume(campaignId, 300)).isTrue();
+        assertThat(redis.opsForHash().get(key, "lent_minor")).isEqualTo("1000");
+
+        // reported use is no longer lent, but the slices still are, so the bucket cannot refill past 300
+        nodeA.sync();
+        nodeB.sync();
+        assertThat(redis.opsForHash().get(key, "lent_minor")).isEqualTo("400");
+        assertThat(nodeA.tryConsume(campaignId, 200)).isTrue();
+        assertThat(nodeB.tryConsume(campaignId, 200)).isTrue();
+
+        nodeA.returnAll();
+        nodeB.returnAll();
+        assertThat(redis.opsForHash().get(key, "lent_minor")).isEqualTo("0");
+        assertThat(redis.opsForHash().get(key, "consumed_minor")).isEqualTo("1000");
+    }
+
+    @Test
+    @DisplayName("Hybrid smoothing: empty slices of idle campaigns are dropped")
+    void hybridSmoothing_idleSlicesAreDropped() {
+        long campaignId = 987_655L;
+        redis.delete("smoothing:bucket:" + campaignId);
+        HybridSmoothingService node = node(0);
+
+        assertThat(node.tryConsume(campaignId, 100)).isTrue();
+        assertThat(node.sliceCount()).isEqualTo(1);
+
+        node.sync();
+        assertThat(node.sliceCount()).isZero();
+        assertThat(node.tryConsume(campaignId, 100)).isTrue();
+        node.returnAll();
+        assertThat(redis.opsForHash().get("smoothing:bucket:" + campaignId, "consumed_minor")).isEqualTo("200");
+    }
+
+    private HybridSmoothingService node(long idleMs) {
+        return new HybridSmoothingService(redis, buckets, ConcurrencyLimiter.unlimited("redis"), 200, idleMs);
+    }
+}
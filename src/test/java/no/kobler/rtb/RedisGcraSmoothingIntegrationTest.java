@@ -0,0 +1,89 @@
+package no.kobler.rtb;
+
+
+import no.kobler.rtb.smoothing.GcraSmoothingService;
+import no.kobler.rtb.smoothing.RedisGcraSmoothingService;
+import no.kobler.rtb.smoothing.SmoothingService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+// Enable Redis GCRA smoothing for this test class (ensure Redis is running locally)
+@TestPropertySource(properties = {
+        "smoothing.type=redis-gcra",
+        "spring.redis.host=localhost",
+        "spring.redis.port=6379"
+})
+class RedisGcraSmoothingIntegrationTest {
+
+    private static final long FIRST = 987_700L;
+    private static final long SECOND = 987_701L;
+
+    @Autowired
+    SmoothingService smoothingService;
+
+    @Autowired
+    StringRedisTemplate redis;
+
+    @BeforeEach
+    void cleanup() {
+        redis.delete(List.of("smoothing:gcra:" + FIRST, "smoothing:gcra:" + SECOND));
+    }
+
+    @Test
+    @DisplayName("Redis GCRA: same consume/refund/available sequence as the in-memory GCRA service")
+    void redisGcra_matchesInMemoryGcra() throws Exception {
+        assertThat(smoothingService).isInstanceOf(RedisGcraSmoothingService.class);
+
+        pacesCampaigns(smoothingService);
+        pacesCampaigns(new GcraSmoothingService());
+    }
+
+    @Test
+    @DisplayName("Redis GCRA: the arrival time key expires when the bucket is full again")
+    void redisGcra_keyLivesUntilBucketIsFull() {
+        String key = "smoothing:gcra:" + FIRST;
+        assertThat(smoothingService.tryConsume(FIRST, 300)).isTrue();
+
+        // 300 øre at 100 øre per second take 3 seconds to come back
+        assertThat(redis.getExpire(key, TimeUnit.MILLISECONDS)).isBetween(2_900L, 3_000L);
+
+        smoothingService.refund(FIRST, 300);
+        assertThat(redis.hasKey(key)).isFalse();
+    }
+
+    /**
+     * The sequence of GcraTest#servicePacesCampaigns on the real clock: expectations allow for the few øre that come
+     * back while it runs.
+     */
+    private void pacesCampaigns(SmoothingService service) throws InterruptedException {
+        assertThat(service.availableTokens(FIRST)).isEqualTo(10.0);
+        assertThat(service.tryConsume(FIRST, 999)).isTrue();
+        assertThat(service.tryConsume(FIRST, 2)).isFalse();
+        assertThat(service.tryConsume(SECOND, 1_000)).isTrue();
+
+        // 100 øre per second: one more øre every 10ms
+        Thread.sleep(50);
+        assertThat(service.tryConsume(SECOND, 4)).isTrue();
+        assertThat(service.tryConsume(SECOND, 100)).isFalse();
+
+        service.refund(FIRST, 500);
+        assertThat(service.availableTokens(FIRST)).isBetween(5.0, 5.5);
+        service.refund(FIRST, 5_000);
+        assertThat(service.availableTokens(FIRST)).isEqualTo(10.0);
+        assertThat(service.availableTokens(SECOND)).isBetween(0.0, 0.5);
+
+        // leave both campaigns full for the next run of the sequence
+        service.refund(SECOND, 5_000);
+    }
+}
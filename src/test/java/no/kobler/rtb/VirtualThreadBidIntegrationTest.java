@@ -0,0 +1,62 @@
+package no.kobler.rtb;
+
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.math.BigDecimal;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = "bid.executor.mode=virtual")
+@AutoConfigureMockMvc
+class VirtualThreadBidIntegrationTest {
+
+    @Autowired
+    MockMvc mvc;
+
+    @Autowired
+    CampaignRepository campaignRepository;
+
+    @Autowired
+    @Qualifier("bidExecutorService")
+    ExecutorService bidExecutorService;
+
+    @BeforeEach
+    void cleanup() {
+        campaignRepository.deleteAll();
+    }
+
+    @Test
+    @DisplayName("virtual mode: bids are evaluated on virtual threads")
+    void bidsRunOnVirtualThreads() throws Exception {
+        assertThat(bidExecutorService.submit(() -> Thread.currentThread().isVirtual()).get()).isTrue();
+
+        Campaign campaign = new Campaign("VirtualCamp", Set.of(" Kobler "), new BigDecimal("100.0"));
+        campaignRepository.save(campaign);
+
+        mvc.perform(post("/bids")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                {
+                                  "bidId": 1,
+                                  "keywords": ["kobler"]
+                                }
+                                """))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.bidId").value(1));
+    }
+}
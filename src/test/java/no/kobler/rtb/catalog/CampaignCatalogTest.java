@@ -0,0 +1,187 @@
+package no.kobler.rtb.catalog;
+
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.model.CampaignChangedEvent;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CampaignCatalogTest {
+
+    private CampaignRepository campaignRepository;
+    private CampaignCatalog campaignCatalog;
+
+    @BeforeEach
+    void setup() {
+        campaignRepository = mock(CampaignRepository.class);
+        campaignCatalog = new CampaignCatalog(campaignRepository);
+    }
+
+    @Test
+    @DisplayName("loads from repository once and matches keywords ignoring case and whitespace")
+    void loadsOnceAndMatchesNormalizedKeywords() {
+        Campaign campaign1 = new Campaign("A", Set.of(" Kobler ", "Contextual"), new BigDecimal("10.0"));
+        campaign1.setId(1L);
+        Campaign campaign2 = new Campaign("B", Set.of("sports"), new BigDecimal("10.0"));
+        campaign2.setId(2L);
+        when(campaignRepository.findAll()).thenReturn(List.of(campaign1, campaign2));
+
+        assertThat(ids(campaignCatalog.snapshot().findMatching(Set.of("KOBLER")))).containsExactly(1L);
+        assertThat(ids(campaignCatalog.snapshot().findMatching(Set.of(" sports", "contextual")))).containsExactlyInAnyOrder(1L, 2L);
+        assertThat(campaignCatalog.snapshot().findMatching(Set.of("unknown"))).isEmpty();
+
+        verify(campaignRepository, times(1)).findAll();
+    }
+
+    @Test
+    @DisplayName("change events publish new versions and leave earlier snapshots untouched")
+    void changeEventsPublishNewSnapshots() {
+        when(campaignRepository.findAll()).thenReturn(List.of());
+        CatalogSnapshot initial = campaignCatalog.snapshot();
+
+        campaignCatalog.onCampaignChanged(saved(7L, Set.of("Kobler")));
+        CatalogSnapshot afterCreate = campaignCatalog.snapshot();
+        assertThat(ids(afterCreate.findMatching(Set.of("kobler")))).containsExactly(7L);
+        assertThat(afterCreate.version()).isGreaterThan(initial.version());
+
+        campaignCatalog.onCampaignChanged(saved(7L, Set.of("News")));
+        assertThat(campaignCatalog.snapshot().findMatching(Set.of("kobler"))).isEmpty();
+        assertThat(ids(campaignCatalog.snapshot().findMatching(Set.of("news")))).containsExactly(7L);
+
+        campaignCatalog.onCampaignChanged(CampaignChangedEvent.removed(7L));
+        assertThat(campaignCatalog.snapshot().findMatching(Set.of("news"))).isEmpty();
+
+        // earlier snapshots are immutable
+        assertThat(initial.findMatching(Set.of("kobler"))).isEmpty();
+        assertThat(ids(afterCreate.findMatching(Set.of("kobler")))).containsExactly(7L);
+    }
+
+    @Test
+    @DisplayName("multi-keyword requests union postings and freed slots do not leak old keywords")
+    void unionAcrossKeywordsAndSlotReuse() {
+        when(campaignRepository.findAll()).thenReturn(List.of());
+        campaignCatalog.warmUp();
+        campaignCatalog.onCampaignChanged(saved(1L, Set.of("kobler", "news")));
+        campaignCatalog.onCampaignChanged(saved(2L, Set.of("news", "sports")));
+        campaignCatalog.onCampaignChanged(saved(3L, Set.of("weather")));
+
+        assertThat(ids(campaignCatalog.snapshot().findMatching(Set.of("KOBLER", "sports", "news", "missing"))))
+                .containsExactlyInAnyOrder(1L, 2L);
+
+        // campaign 4 takes the slot freed by campaign 1
+        campaignCatalog.onCampaignChanged(CampaignChangedEvent.removed(1L));
+        campaignCatalog.onCampaignChanged(saved(4L, Set.of("weather")));
+
+        CatalogSnapshot snapshot = campaignCatalog.snapshot();
+        assertThat(ids(snapshot.findMatching(Set.of("kobler")))).isEmpty();
+        assertThat(ids(snapshot.findMatching(Set.of("news")))).containsExactly(2L);
+        assertThat(ids(snapshot.findMatching(Set.of("weather")))).containsExactlyInAnyOrder(3L, 4L);
+        assertThat(snapshot.size()).isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("recorded spend is visible to the budget pre-check")
+    void recordSpendUpdatesCampaignSpending() {
+        when(campaignRepository.findAll()).thenReturn(List.of());
+        campaignCatalog.warmUp();
+        campaignCatalog.onCampaignChanged(saved(3L, Set.of("kobler")));
+
+        campaignCatalog.recordSpend(3L, 250L);
+        campaignCatalog.recordSpend(3L, 125L);
+
+        assertThat(campaignCatalog.snapshot().get(3L).getSpendingMinor()).isEqualTo(375L);
+        assertThat(campaignCatalog.snapshot().get(3L).getSpending()).isEqualByComparingTo(new BigDecimal("3.75"));
+    }
+
+    @Test
+    @DisplayName("exhausted campaigns leave matching when spend crosses the threshold and return when budget is raised")
+    void exhaustedCampaignsLeaveMatching() {
+        Campaign spent = new Campaign("Spent", Set.of("kobler"), new BigDecimal("10.0"));
+        spent.setId(1L);
+        spent.setSpending(new BigDecimal("10.0"));
+        when(campaignRepository.findAll()).thenReturn(List.of(spent));
+        campaignCatalog.warmUp();
+        campaignCatalog.onCampaignChanged(saved(2L, Set.of("kobler", "news")));
+
+        CatalogSnapshot loaded = campaignCatalog.snapshot();
+        assertThat(ids(loaded.findMatching(Set.of("kobler")))).containsExactly(2L);
+        assertThat(loaded.size()).isEqualTo(2);
+        assertThat(loaded.liveSize()).isEqualTo(1);
+
+        campaignCatalog.recordSpend(2L, 9_999L);
+        assertThat(campaignCatalog.snapshot()).isSameAs(loaded);
+
+        campaignCatalog.recordSpend(2L, 1L);
+        CatalogSnapshot exhausted = campaignCatalog.snapshot();
+        assertThat(exhausted.version()).isEqualTo(loaded.version() + 1);
+        assertThat(exhausted.findMatching(Set.of("kobler", "news"))).isEmpty();
+        assertThat(exhausted.get(2L).getSpendingMinor()).isEqualTo(10_000L);
+        assertThat(exhausted.liveSize()).isZero();
+
+        // budget raised
+        campaignCatalog.onCampaignChanged(new CampaignChangedEvent(1L, "Spent", Set.of("kobler"), 2_000L, 1_000L, false));
+        assertThat(ids(campaignCatalog.snapshot().findMatching(Set.of("kobler")))).containsExactly(1L);
+        assertThat(campaignCatalog.snapshot().liveSize()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("changes made in one transaction are published as one version on commit, and dropped on rollback")
+    void transactionChangesPublishTogether() {
+        when(campaignRepository.findAll()).thenReturn(List.of());
+        campaignCatalog.warmUp();
+        campaignCatalog.onCampaignChanged(saved(1L, Set.of("kobler", "news")));
+        long versionBefore = campaignCatalog.snapshot().version();
+
+        inTransaction(TransactionSynchronization.STATUS_COMMITTED, () -> {
+            campaignCatalog.onCampaignChanged(saved(2L, Set.of("news")));
+            campaignCatalog.onCampaignChanged(saved(1L, Set.of("sports")));
+            campaignCatalog.onCampaignChanged(saved(3L, Set.of("sports")));
+            campaignCatalog.onCampaignChanged(CampaignChangedEvent.removed(2L));
+            campaignCatalog.onCampaignChanged(saved(4L, Set.of("news", "sports")));
+            assertThat(campaignCatalog.snapshot().version()).isEqualTo(versionBefore);
+        });
+
+        CatalogSnapshot snapshot = campaignCatalog.snapshot();
+        assertThat(snapshot.version()).isEqualTo(versionBefore + 1);
+        assertThat(snapshot.findMatching(Set.of("kobler"))).isEmpty();
+        assertThat(ids(snapshot.findMatching(Set.of("news")))).containsExactly(4L);
+        assertThat(ids(snapshot.findMatching(Set.of("sports")))).containsExactlyInAnyOrder(1L, 3L, 4L);
+        assertThat(snapshot.size()).isEqualTo(3);
+
+        inTransaction(TransactionSynchronization.STATUS_ROLLED_BACK,
+                () -> campaignCatalog.onCampaignChanged(saved(5L, Set.of("weather"))));
+        assertThat(campaignCatalog.snapshot()).isSameAs(snapshot);
+    }
+
+    private static void inTransaction(int completionStatus, Runnable work) {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            work.run();
+            TransactionSynchronizationManager.getSynchronizations()
+                    .forEach(synchronization -> synchronization.afterCompletion(completionStatus));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private static CampaignChangedEvent saved(long id, Set<String> keywords) {
+        return new CampaignChangedEvent(id, "Campaign " + id, keywords, 10_000L, 0L, false);
+    }
+
+    private static List<Long> ids(List<CatalogCampaign> campaigns) {
+        return campaigns.stream().map(CatalogCampaign::getId).toList();
+    }
+}
@@ -0,0 +1,83 @@
+package no.kobler.rtb.catalog;
+
+import no.kobler.rtb.model.CampaignChangedEvent;
+import no.kobler.rtb.model.KeywordMatch;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DatabaseCampaignMatcherTest {
+
+    private static final long TTL_MS = 1_000;
+
+    private CampaignRepository campaignRepository;
+    private AtomicLong clock;
+    private DatabaseCampaignMatcher matcher;
+
+    @BeforeEach
+    void setup() {
+        campaignRepository = mock(CampaignRepository.class);
+        clock = new AtomicLong();
+        matcher = new DatabaseCampaignMatcher(campaignRepository, 1L, 100, 100, TTL_MS, clock::get);
+    }
+
+    @Test
+    @DisplayName("queries only uncached normalized keywords and serves hot keywords from the cache until the ttl")
+    void cachesKeywordResults() {
+        when(campaignRepository.findLiveByNormalizedKeywords(anyCollection(), eq(1L))).thenReturn(List.of(
+                new KeywordMatch("kobler", 1L, "A", 1_000L, 0L),
+                new KeywordMatch("news", 1L, "A", 1_000L, 0L),
+                new KeywordMatch("news", 2L, "B", 1_000L, 0L)));
+
+        assertThat(ids(matcher.findMatching(Set.of(" KOBLER ", "News")))).containsExactlyInAnyOrder(1L, 2L);
+        verify(campaignRepository).findLiveByNormalizedKeywords(
+                argThat(keywords -> Set.copyOf(keywords).equals(Set.of("kobler", "news"))), eq(1L));
+
+        assertThat(ids(matcher.findMatching(Set.of("news")))).containsExactlyInAnyOrder(1L, 2L);
+        verify(campaignRepository, times(1)).findLiveByNormalizedKeywords(anyCollection(), anyLong());
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL_MS));
+        matcher.findMatching(Set.of("news"));
+        verify(campaignRepository, times(2)).findLiveByNormalizedKeywords(anyCollection(), anyLong());
+    }
+
+    @Test
+    @DisplayName("recorded spend exhausts cached campaigns, and committed changes invalidate their keywords")
+    void recordSpendAndInvalidation() {
+        when(campaignRepository.findLiveByNormalizedKeywords(anyCollection(), eq(1L))).thenReturn(List.of(
+                new KeywordMatch("kobler", 1L, "A", 1_000L, 400L)));
+        assertThat(ids(matcher.findMatching(Set.of("kobler")))).containsExactly(1L);
+
+        matcher.recordSpend(1L, 600L);
+        assertThat(matcher.findMatching(Set.of("kobler"))).isEmpty();
+
+        matcher.onCampaignChanged(new CampaignChangedEvent(1L, "A", Set.of("Kobler"), 2_000L, 1_000L, false));
+        when(campaignRepository.findLiveByNormalizedKeywords(anyCollection(), eq(1L))).thenReturn(List.of(
+                new KeywordMatch("kobler", 1L, "A", 2_000L, 1_000L)));
+
+        List<CatalogCampaign> matching = matcher.findMatching(Set.of("kobler"));
+        assertThat(ids(matching)).containsExactly(1L);
+        assertThat(matching.getFirst().getBudgetMinor()).isEqualTo(2_000L);
+        verify(campaignRepository, times(2)).findLiveByNormalizedKeywords(anyCollection(), anyLong());
+    }
+
+    private static List<Long> ids(List<CatalogCampaign> campaigns) {
+        return campaigns.stream().map(CatalogCampaign::getId).toList();
+    }
+}
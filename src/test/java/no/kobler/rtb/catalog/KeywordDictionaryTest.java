@@ -0,0 +1,50 @@
+package no.kobler.rtb.catalog;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeywordDictionaryTest {
+
+    @Test
+    @DisplayName("intern assigns dense ids once per normalized keyword")
+    void internAssignsDenseIds() {
+        var dictionary = new KeywordDictionary();
+
+        int kobler = dictionary.intern(" Kobler ");
+        int sports = dictionary.intern("sports");
+
+        assertThat(kobler).isEqualTo(0);
+        assertThat(sports).isEqualTo(1);
+        assertThat(dictionary.intern("KOBLER")).isEqualTo(kobler);
+        assertThat(dictionary.size()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("find resolves keywords ignoring case and surrounding whitespace")
+    void findIgnoresCaseAndWhitespace() {
+        var dictionary = new KeywordDictionary();
+        int id = dictionary.intern("Contextual");
+
+        assertThat(dictionary.find("contextual")).isEqualTo(id);
+        assertThat(dictionary.find("  CONTEXTUAL\t")).isEqualTo(id);
+        assertThat(dictionary.find("context")).isEqualTo(KeywordDictionary.UNKNOWN);
+        assertThat(dictionary.find("   ")).isEqualTo(KeywordDictionary.UNKNOWN);
+        assertThat(dictionary.intern("   ")).isEqualTo(KeywordDictionary.UNKNOWN);
+    }
+
+    @Test
+    @DisplayName("ids stay stable while the table grows")
+    void idsStableAcrossResize() {
+        var dictionary = new KeywordDictionary();
+        for (int i = 0; i < 5_000; i++) {
+            assertThat(dictionary.intern("keyword-" + i)).isEqualTo(i);
+        }
+
+        for (int i = 0; i < 5_000; i++) {
+            assertThat(dictionary.find("KEYWORD-" + i)).isEqualTo(i);
+        }
+        assertThat(dictionary.size()).isEqualTo(5_000);
+    }
+}
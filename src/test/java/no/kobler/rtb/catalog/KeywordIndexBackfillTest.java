@@ -0,0 +1,56 @@
+package no.kobler.rtb.catalog;
+
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.model.KeywordMatch;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DataJpaTest
+class KeywordIndexBackfillTest {
+
+    @Autowired
+    private CampaignRepository campaignRepository;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Test
+    @DisplayName("backfill - indexes campaigns stored before the keyword index existed")
+    void backfillIndexesOldCampaigns() {
+        Campaign old = campaignRepository.save(new Campaign("Old", Set.of(" Kobler ", "News"), new BigDecimal("10.0")));
+        Campaign current = campaignRepository.save(new Campaign("Current", Set.of("kobler"), new BigDecimal("10.0")));
+        entityManager.flush();
+        entityManager.getEntityManager()
+                .createNativeQuery("DELETE FROM campaign_keyword_index WHERE campaign_id = :id")
+                .setParameter("id", old.getId())
+                .executeUpdate();
+        entityManager.clear();
+        assertThat(findLive("news")).isEmpty();
+
+        new KeywordIndexBackfill(campaignRepository, transactionManager).backfill();
+        entityManager.flush();
+        entityManager.clear();
+
+        assertThat(findLive("news")).extracting(KeywordMatch::campaignId).containsExactly(old.getId());
+        assertThat(findLive("kobler")).extracting(KeywordMatch::campaignId)
+                .containsExactlyInAnyOrder(old.getId(), current.getId());
+    }
+
+    private List<KeywordMatch> findLive(String keyword) {
+        return campaignRepository.findLiveByNormalizedKeywords(List.of(keyword), 1L);
+    }
+}
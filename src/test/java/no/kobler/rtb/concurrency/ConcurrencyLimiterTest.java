@@ -0,0 +1,62 @@
+package no.kobler.rtb.concurrency;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConcurrencyLimiterTest {
+
+    @Test
+    @DisplayName("permits are bounded and returned on release")
+    void permitsAreBounded() {
+        var limiter = ConcurrencyLimiter.of("db", 2, 10);
+
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isFalse();
+
+        limiter.release();
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.availablePermits()).isZero();
+    }
+
+    @Test
+    @DisplayName("zero means unlimited")
+    void zeroIsUnlimited() {
+        var limiter = ConcurrencyLimiter.of("redis", 0, 10);
+
+        for (int i = 0; i < 1_000; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+        }
+        assertThat(limiter.availablePermits()).isEqualTo(-1);
+    }
+
+    @Test
+    @DisplayName("interrupted caller gives up and keeps its interrupt flag")
+    void interruptedCallerGivesUp() {
+        var limiter = ConcurrencyLimiter.of("db", 1, 1_000);
+        assertThat(limiter.tryAcquire()).isTrue();
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThat(limiter.tryAcquire()).isFalse();
+            assertThat(Thread.currentThread().isInterrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    @DisplayName("spare permits are only taken while more than the headroom is free")
+    void spareKeepsHeadroom() {
+        var limiter = ConcurrencyLimiter.of("db", 3, 10);
+
+        assertThat(limiter.tryAcquireSpare(1)).isTrue();
+        assertThat(limiter.tryAcquireSpare(1)).isTrue();
+        assertThat(limiter.tryAcquireSpare(1)).isFalse();
+        assertThat(limiter.tryAcquire()).isTrue();
+
+        assertThat(ConcurrencyLimiter.unlimited("redis").tryAcquireSpare(100)).isTrue();
+    }
+}
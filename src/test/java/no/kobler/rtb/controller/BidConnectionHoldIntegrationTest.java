@@ -0,0 +1,79 @@
+package no.kobler.rtb.controller;
+
+import no.kobler.rtb.metrics.ConnectionHoldTracker;
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.repository.CampaignRepository;
+import no.kobler.rtb.smoothing.SmoothingService;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.math.BigDecimal;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * The bid path must only hold a JDBC connection for the spend write, not while smoothing (Redis in production).
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+class BidConnectionHoldIntegrationTest {
+
+    private static final long SMOOTHING_DELAY_MS = 100;
+
+    @Autowired
+    MockMvc mvc;
+
+    @Autowired
+    CampaignRepository campaignRepository;
+
+    @Autowired
+    ConnectionHoldTracker connectionHoldTracker;
+
+    @SpyBean
+    SmoothingService smoothingService;
+
+    @Test
+    @DisplayName("no connection is held while smoothing, and hold time per bid is reported")
+    void connectionHeldOnlyForSpendWrite() throws Exception {
+        campaignRepository.save(new Campaign("Hold", Set.of("kobler"), new BigDecimal("100.0")));
+
+        AtomicInteger openWhileSmoothing = new AtomicInteger(-1);
+        doAnswer(invocation -> {
+            openWhileSmoothing.set(connectionHoldTracker.snapshot().openConnections());
+            Thread.sleep(SMOOTHING_DELAY_MS);
+            return invocation.callRealMethod();
+        }).when(smoothingService).tryConsumeFirst(any(long[].class), any(long[].class), anyInt());
+
+        mvc.perform(post("/bids")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                { "bidId": 7, "keywords": ["kobler"] }
+                                """))
+                .andExpect(status().isOk());
+
+        assertThat(openWhileSmoothing.get()).isZero();
+        var stats = connectionHoldTracker.snapshot();
+        assertThat(stats.bids()).isEqualTo(1);
+        assertThat(stats.bidsHoldingConnection()).isEqualTo(1);
+        assertThat(stats.maxBidHoldMicros()).isLessThan(SMOOTHING_DELAY_MS * 1_000);
+
+        mvc.perform(get("/metrics/db-connections"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.bidsHoldingConnection").value(1));
+    }
+}
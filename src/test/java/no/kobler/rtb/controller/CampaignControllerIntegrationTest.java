@@ -1,24 +1,46 @@
 package no.kobler.rtb.controller;
 
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import no.kobler.rtb.catalog.CampaignCatalog;
+import no.kobler.rtb.catalog.CatalogCampaign;
 import no.kobler.rtb.dto.CampaignRequest;
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.repository.CampaignRepository;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
@@ -31,6 +53,15 @@ class CampaignControllerIntegrationTest {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    CampaignCatalog campaignCatalog;
+
+    @Autowired
+    CampaignRepository campaignRepository;
+
+    @Autowired
+    CampaignController campaignController;
+
     @Test
     @DisplayName("POST /campaigns should create and fetch campaign")
     void createAndFetchCampaign() throws Exception {
@@ -172,4 +203,198 @@ class CampaignControllerIntegrationTest {
                         .content(objectMapper.writeValueAsString(request)))
                 .andExpect(status().isBadRequest());
     }
+
+    @Test
+    @DisplayName("GET /campaigns pages by id with a next link while pages are full")
+    void listCampaigns_keysetPages() throws Exception {
+        long first = createCampaign("Page1");
+        long second = createCampaign("Page2");
+        long third = createCampaign("Page3");
+
+        mockMvc.perform(get("/campaigns").param("afterId", String.valueOf(first - 1)).param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].id").value(first))
+                .andExpect(jsonPath("$[1].id").value(second))
+                .andExpect(header().string("Link", "</campaigns?afterId=" + second + "&limit=2>; rel=\"next\""));
+
+        mockMvc.perform(get("/campaigns").param("afterId", String.valueOf(second)).param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(third))
+                .andExpect(header().doesNotExist("Link"));
+    }
+
+    @Test
+    @DisplayName("GET /campaigns/stream writes one JSON campaign per line")
+    void streamCampaigns_ndjson() throws Exception {
+        long id = createCampaign("Streamed");
+
+        var lines = streamLines();
+        assertThat(lines).anySatisfy(node -> {
+            assertThat(node.get("id").asLong()).isEqualTo(id);
+            assertThat(node.get("name").asText()).isEqualTo("Streamed");
+        });
+        assertThat(lines).extracting(node -> node.get("id").asLong()).isSorted();
+    }
+
+    @Test
+    @DisplayName("GET /campaigns/stream writes every keyword of every campaign across several pages")
+    void streamCampaigns_manyPages() throws Exception {
+        var saved = campaignRepository.saveAll(IntStream.range(0, 1200)
+                .mapToObj(i -> new Campaign("Streamed" + i, Set.of("streamed-" + i, "extra-" + i, "streamed"),
+                        new BigDecimal("10.0")))
+                .toList());
+
+        Map<Long, JsonNode> streamed = streamLines().stream()
+                .collect(Collectors.toMap(node -> node.get("id").asLong(), node -> node));
+
+        assertThat(saved).allSatisfy(campaign -> {
+            JsonNode node = streamed.get(campaign.getId());
+            assertThat(node).isNotNull();
+            Set<String> keywords = new HashSet<>();
+            node.get("keywords").forEach(keyword -> keywords.add(keyword.asText()));
+            assertThat(keywords).isEqualTo(campaign.getKeywords());
+        });
+    }
+
+    @Test
+    @DisplayName("GET /campaigns without paging parameters still lists every campaign")
+    void listCampaigns_allWithoutParameters() throws Exception {
+        long id = createCampaign("Unpaged");
+
+        String body = mockMvc.perform(get("/campaigns"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Link"))
+                .andReturn().getResponse().getContentAsString();
+
+        List<Long> ids = new ArrayList<>();
+        objectMapper.readTree(body).forEach(node -> ids.add(node.get("id").asLong()));
+        assertThat(ids).hasSize((int) campaignRepository.count()).contains(id);
+    }
+
+    @Test
+    @DisplayName("POST /campaigns/import imports NDJSON and CSV bodies in one catalog update each")
+    void importCampaigns_ndjsonAndCsv() throws Exception {
+        long versionBefore = campaignCatalog.snapshot().version();
+        mockMvc.perform(post("/campaigns/import")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content("""
+                                {"name": "Bulk A", "keywords": ["bulk-ndjson", " shared "], "budget": 10.0}
+                                {"name": "Bulk B", "keywords": ["bulk-ndjson"], "budget": 20.5}
+
+                                {"name": "Bulk C", "keywords": ["bulk-ndjson"], "budget": 1}
+                                """))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.imported").value(3));
+
+        assertThat(campaignCatalog.snapshot().version()).isEqualTo(versionBefore + 1);
+        assertThat(campaignCatalog.snapshot().findMatching(Set.of("bulk-ndjson"))).hasSize(3);
+        assertThat(campaignCatalog.snapshot().findMatching(Set.of("shared"))).hasSize(1);
+
+        mockMvc.perform(post("/campaigns/import")
+                        .contentType("text/csv")
+                        .content("""
+                                name,budget,keywords
+                                "Bulk, with comma",15.25,bulk-csv;other
+                                Bulk D,30,bulk-csv
+                                """))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.imported").value(2));
+
+        var imported = campaignCatalog.snapshot().findMatching(Set.of("bulk-csv"));
+        assertThat(imported).extracting(CatalogCampaign::getName)
+                .containsExactlyInAnyOrder("Bulk, with comma", "Bulk D");
+        assertThat(imported).extracting(CatalogCampaign::getBudgetMinor).containsExactlyInAnyOrder(1525L, 3000L);
+    }
+
+    @Test
+    @DisplayName("POST /campaigns/import with an invalid line imports nothing and returns 400")
+    void importCampaigns_invalidLine_importsNothing() throws Exception {
+        mockMvc.perform(post("/campaigns/import")
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content("""
+                                {"name": "Rejected A", "keywords": ["bulk-rejected"], "budget": 10.0}
+                                {"name": "Rejected B", "keywords": ["bulk-rejected"], "budget": -1}
+                                """))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.details").value("Line 2: Budget must be greater than zero"));
+
+        assertThat(campaignCatalog.snapshot().findMatching(Set.of("bulk-rejected"))).isEmpty();
+        assertThat(campaignRepository.findAll()).extracting(Campaign::getName).doesNotContain("Rejected A");
+    }
+
+    @Test
+    @DisplayName("POST /campaigns/import matches the CSV header case-insensitively under any default locale")
+    void importCampaigns_csvHeader_turkishLocale() throws Exception {
+        var defaultLocale = Locale.getDefault();
+        Locale.setDefault(Locale.forLanguageTag("tr-TR"));
+        try {
+            mockMvc.perform(post("/campaigns/import")
+                            .contentType("text/csv")
+                            .content("""
+                                    NAME,BUDGET,KEYWORDS
+                                    Bulk Turkish,12,bulk-turkish
+                                    """))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.imported").value(1));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+
+        assertThat(campaignCatalog.snapshot().findMatching(Set.of("bulk-turkish"))).hasSize(1);
+    }
+
+    @Test
+    @DisplayName("POST /campaigns/import with a body that fails mid-read imports nothing and returns 400")
+    void importCampaigns_truncatedBody_importsNothing() {
+        var head = """
+                {"name": "Truncated A", "keywords": ["bulk-truncated"], "budget": 10.0}
+                """.getBytes(StandardCharsets.UTF_8);
+        var body = new SequenceInputStream(new ByteArrayInputStream(head), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+
+        var response = campaignController.importCampaigns(MediaType.APPLICATION_NDJSON_VALUE, body);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(campaignCatalog.snapshot().findMatching(Set.of("bulk-truncated"))).isEmpty();
+        assertThat(campaignRepository.findAll()).extracting(Campaign::getName).doesNotContain("Truncated A");
+    }
+
+    private List<JsonNode> streamLines() throws Exception {
+        var asyncResult = mockMvc.perform(get("/campaigns/stream").accept(MediaType.APPLICATION_NDJSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        String body = mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andReturn().getResponse().getContentAsString();
+
+        return body.lines().map(line -> {
+            try {
+                return objectMapper.readTree(line);
+            } catch (Exception e) {
+                throw new AssertionError("Not a JSON line: " + line, e);
+            }
+        }).toList();
+    }
+
+    private long createCampaign(String name) throws Exception {
+        var request = new CampaignRequest();
+        request.setName(name);
+        request.setKeywords(Set.of("paging"));
+        request.setBudget(new BigDecimal("10.0"));
+
+        String response = mockMvc.perform(post("/campaigns")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isCreated())
+                .andReturn().getResponse().getContentAsString();
+        return objectMapper.readTree(response).get("id").asLong();
+    }
 }
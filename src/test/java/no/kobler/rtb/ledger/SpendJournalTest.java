@@ -0,0 +1,86 @@
+package no.kobler.rtb.ledger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpendJournalTest {
+
+    private static final int CAPACITY = SpendJournal.HEADER_BYTES + 64 * SpendJournal.RECORD_BYTES;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysNetSpendAfterReopen() throws IOException {
+        SpendJournal journal = SpendJournal.open(dir, CAPACITY);
+        journal.appendSpend(1L, 100L, 250L);
+        journal.appendSpend(1L, 101L, 150L);
+        journal.appendSpend(2L, 102L, 70L);
+        journal.appendRefund(1L, 101L, 150L);
+        journal.appendRefund(2L, 102L, 70L);
+
+        // not closed: the mapped pages survive a crash of the process
+        assertThat(SpendJournal.open(dir, CAPACITY).replay()).isEqualTo(Map.of(1L, 250L));
+    }
+
+    @Test
+    void committedCheckpointExcludesEarlierSpendOnly() throws IOException {
+        SpendJournal journal = SpendJournal.open(dir, CAPACITY);
+        journal.appendSpend(1L, 100L, 250L);
+        long checkpoint = journal.beginCheckpoint();
+        journal.appendSpend(1L, 101L, 40L);
+        journal.commitCheckpoint(checkpoint);
+        journal.appendSpend(2L, 102L, 60L);
+
+        // a checkpoint that never committed does not count
+        journal.beginCheckpoint();
+        journal.appendSpend(2L, 103L, 5L);
+
+        assertThat(SpendJournal.open(dir, CAPACITY).replay()).isEqualTo(Map.of(1L, 40L, 2L, 65L));
+    }
+
+    @Test
+    void stopsAtTornRecord() throws IOException {
+        SpendJournal journal = SpendJournal.open(dir, CAPACITY);
+        journal.appendSpend(1L, 100L, 250L);
+        journal.appendSpend(1L, 101L, 40L);
+        journal.appendSpend(1L, 102L, 10L);
+        journal.close();
+
+        // corrupt the amount of the second record
+        try (FileChannel channel = FileChannel.open(dir.resolve("spend-journal-0.bin"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{7}),
+                    SpendJournal.HEADER_BYTES + SpendJournal.RECORD_BYTES + 16);
+        }
+
+        SpendJournal reopened = SpendJournal.open(dir, CAPACITY);
+        assertThat(reopened.replay()).isEqualTo(Map.of(1L, 250L));
+        assertThat(reopened.usedBytes()).isEqualTo(SpendJournal.HEADER_BYTES + SpendJournal.RECORD_BYTES);
+    }
+
+    @Test
+    void rotationKeepsUncheckpointedSpend() throws IOException {
+        SpendJournal journal = SpendJournal.open(dir, CAPACITY);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                journal.appendSpend(1L, i, 1L);
+            }
+            long checkpoint = journal.beginCheckpoint();
+            journal.appendSpend(1L, 1000L + round, 3L);
+            journal.commitCheckpoint(checkpoint);
+        }
+        journal.appendSpend(2L, 2000L, 9L);
+
+        assertThat(journal.usedBytes()).isLessThanOrEqualTo(CAPACITY);
+        assertThat(SpendJournal.open(dir, CAPACITY).replay()).isEqualTo(Map.of(1L, 3L, 2L, 9L));
+    }
+}
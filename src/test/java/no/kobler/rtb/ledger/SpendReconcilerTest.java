@@ -0,0 +1,126 @@
+package no.kobler.rtb.ledger;
+
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.model.CampaignSpend;
+import no.kobler.rtb.repository.CampaignRepository;
+import no.kobler.rtb.smoothing.InMemorySmoothingService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SpendReconcilerTest {
+
+    private CampaignRepository campaignRepository;
+    private InMemorySmoothingService smoothingService;
+    private SpendLedger spendLedger;
+
+    @BeforeEach
+    void setup() {
+        campaignRepository = mock(CampaignRepository.class);
+        smoothingService = new InMemorySmoothingService();
+        spendLedger = mock(SpendLedger.class);
+    }
+
+    @Test
+    @DisplayName("tokens left consumed by a lost refund are refunded once the drift has settled")
+    void settledDriftIsRefunded() {
+        SpendReconciler reconciler = reconciler(ConcurrencyLimiter.unlimited("db"), 3);
+        smoothingService.tryConsume(1L, 300);
+        spend(300);
+        reconciler.reconcile();
+
+        // reserved, but neither spent nor refunded
+        smoothingService.tryConsume(1L, 200);
+        reconciler.reconcile();
+        reconciler.reconcile();
+        assertThat(consumed()).isEqualTo(500);
+
+        reconciler.reconcile();
+        assertThat(consumed()).isEqualTo(300);
+
+        // nothing left to repair
+        reconciler.reconcile();
+        reconciler.reconcile();
+        reconciler.reconcile();
+        assertThat(consumed()).isEqualTo(300);
+    }
+
+    @Test
+    @DisplayName("a bid in flight is not refunded, and spend outgrowing the counter only moves the baseline")
+    void transientAndNegativeDriftAreLeftAlone() {
+        SpendReconciler reconciler = reconciler(ConcurrencyLimiter.unlimited("db"), 2);
+        smoothingService.tryConsume(1L, 100);
+        spend(100);
+        reconciler.reconcile();
+
+        // reserved before one run, debited before the next
+        smoothingService.tryConsume(1L, 100);
+        reconciler.reconcile();
+        spend(200);
+        reconciler.reconcile();
+        reconciler.reconcile();
+        assertThat(consumed()).isEqualTo(200);
+
+        // e.g. unflushed write-behind spend of this node
+        when(spendLedger.unflushedMinor(1L)).thenReturn(400L);
+        reconciler.reconcile();
+        reconciler.reconcile();
+        reconciler.reconcile();
+        assertThat(consumed()).isEqualTo(200);
+    }
+
+    @Test
+    @DisplayName("without spare DB permits the job does not touch the database")
+    void yieldsWithoutSpareCapacity() {
+        ConcurrencyLimiter dbLimiter = ConcurrencyLimiter.of("db", 3, 10);
+        SpendReconciler reconciler = reconciler(dbLimiter, 1);
+        assertThat(dbLimiter.tryAcquire()).isTrue();
+        assertThat(dbLimiter.tryAcquire()).isTrue();
+
+        reconciler.reconcile();
+
+        verify(campaignRepository, never()).findSpendPageAfter(anyLong(), any(Pageable.class));
+    }
+
+    @Test
+    @DisplayName("with write-behind spend the job only starts when confirmed to run on a single node")
+    void writeBehindRequiresSingleNode() {
+        WriteBehindSpendLedger writeBehind = mock(WriteBehindSpendLedger.class);
+        ConcurrencyLimiter unlimited = ConcurrencyLimiter.unlimited("db");
+
+        assertThatThrownBy(() -> new SpendReconciler(campaignRepository, smoothingService, writeBehind,
+                unlimited, unlimited, 100, 10, 3, 1, 1, false)).isInstanceOf(IllegalStateException.class);
+        assertThat(new SpendReconciler(campaignRepository, smoothingService, writeBehind,
+                unlimited, unlimited, 100, 10, 3, 1, 1, true)).isNotNull();
+    }
+
+    private SpendReconciler reconciler(ConcurrencyLimiter dbLimiter, int settleRuns) {
+        return new SpendReconciler(campaignRepository, smoothingService, spendLedger,
+                dbLimiter, ConcurrencyLimiter.unlimited("redis"), 100, 10, settleRuns, 1, 1, false);
+    }
+
+    private void spend(long spendingMinor) {
+        when(campaignRepository.findSpendPageAfter(eq(0L), any(Pageable.class)))
+                .thenReturn(List.of(new CampaignSpend(1L, spendingMinor)));
+    }
+
+    private long consumed() {
+        Map<Long, Long> consumed = smoothingService.consumedMinor(Set.of(1L));
+        return consumed.get(1L);
+    }
+}
@@ -0,0 +1,274 @@
+package no.kobler.rtb.ledger;
+
+import no.kobler.rtb.concurrency.ConcurrencyLimiter;
+import no.kobler.rtb.concurrency.Deadline;
+import no.kobler.rtb.model.BudgetLease;
+import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.repository.BudgetLeaseRepository;
+import no.kobler.rtb.repository.CampaignRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {
+        "spend.ledger.mode=write-behind",
+        "spend.ledger.flush-interval-ms=3600000",
+        "spend.ledger.lease.node-id=test-node",
+        "spend.ledger.lease.min-chunk-minor=500",
+        "spend.ledger.lease.max-chunk-minor=5000",
+        "spend.ledger.lease.ttl-ms=3600000",
+        "spend.ledger.lease.idle-ms=200"
+})
+class WriteBehindSpendLedgerTest {
+
+    @Autowired
+    WriteBehindSpendLedger ledger;
+
+    @Autowired
+    CampaignRepository campaignRepository;
+
+    @Autowired
+    BudgetLeaseRepository leaseRepository;
+
+    @Autowired
+    BudgetLeaseStore leaseStore;
+
+    @BeforeEach
+    void cleanup() {
+        leaseRepository.deleteAll();
+        campaignRepository.deleteAll();
+    }
+
+    @Test
+    @DisplayName("wins are admitted against the lease and written in one flush")
+    void debitsAreFlushedInBatch() {
+        long id = campaign("100.0").getId();
+
+        assertThat(ledger.tryDebit(id, 250, 1L, Deadline.none())).isTrue();
+        assertThat(ledger.tryDebit(id, 150, 1L, Deadline.none())).isTrue();
+
+        Campaign beforeFlush = campaignRepository.findById(id).orElseThrow();
+        assertThat(beforeFlush.getSpendingMinor()).isZero();
+        assertThat(beforeFlush.getReservedMinor()).isEqualTo(500);
+        assertThat(lease(id).getGrantedMinor()).isEqualTo(500);
+        assertThat(ledger.pendingSpend(id)).isEqualTo(400);
+
+        ledger.flush();
+
+        assertThat(campaignRepository.findById(id).orElseThrow().getSpendingMinor()).isEqualTo(400);
+        assertThat(lease(id).getFlushedMinor()).isEqualTo(400);
+        assertThat(ledger.pendingSpend(id)).isZero();
+    }
+
+    @Test
+    @DisplayName("leases never exceed the budget")
+    void neverExceedsBudget() {
+        long id = campaign("7.00").getId();
+
+        assertThat(ledger.tryDebit(id, 400, 1L, Deadline.none())).isTrue();
+        assertThat(ledger.tryDebit(id, 250, 1L, Deadline.none())).isTrue();
+        assertThat(ledger.tryDebit(id, 100, 1L, Deadline.none())).isFalse();
+        assertThat(ledger.tryDebit(id, 50, 1L, Deadline.none())).isTrue();
+
+        ledger.flush();
+        Campaign campaign = campaignRepository.findById(id).orElseThrow();
+        assertThat(campaign.getSpendingMinor()).isEqualTo(700);
+        assertThat(campaign.getReservedMinor()).isEqualTo(700);
+    }
+
+    @Test
+    @DisplayName("lease extensions grow with the campaign's spend rate")
+    void leaseSizeAdaptsToSpendRate() {
+        long id = campaign("100.0").getId();
+        assertThat(ledger.tryDebit(id, 400, 1L, Deadline.none())).isTrue();
+        ledger.flush();
+
+        assertThat(ledger.tryDebit(id, 200, 1L, Deadline.none())).isTrue();
+
+        // 500 from the first lease plus an extension sized by the rate, well above the minimum chunk
+        assertThat(campaignRepository.findById(id).orElseThrow().getReservedMinor()).isGreaterThan(1000);
+    }
+
+    @Test
+    @DisplayName("leases of idle campaigns are returned")
+    void idleLeaseIsReturned() throws InterruptedException {
+        long id = campaign("100.0").getId();
+        assertThat(ledger.tryDebit(id, 100, 1L, Deadline.none())).isTrue();
+        ledger.flush();
+
+        Thread.sleep(300);
+        ledger.flush();
+
+        Campaign campaign = campaignRepository.findById(id).orElseThrow();
+        assertThat(campaign.getSpendingMinor()).isEqualTo(100);
+        assertThat(campaign.getReservedMinor()).isEqualTo(100);
+        assertThat(leaseRepository.findByCampaignIdAndNodeId(id, ledger.getNodeId())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("after a crash, the node's unflushed leases count as spent")
+    void recoveryCountsUnflushedLeaseAsSpent() {
+        long id = campaign("100.0").getId();
+        assertThat(ledger.tryDebit(id, 100, 1L, Deadline.none())).isTrue();
+
+        // no flush: simulate a restart with the same node id
+        ledger.recover();
+
+        assertThat(campaignRepository.findById(id).orElseThrow().getSpendingMinor()).isEqualTo(500);
+        assertThat(leaseRepository.findByNodeId(ledger.getNodeId())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("after a crash, unflushed spend is recovered from the journal and the rest of the lease returned")
+    void recoveryReplaysJournal(@TempDir Path journalDir) {
+        long id = campaign("100.0").getId();
+        WriteBehindSpendLedger crashed = journaledLedger(journalDir);
+        crashed.recover();
+        assertThat(crashed.tryDebit(id, 120, 1L, Deadline.none())).isTrue();
+        assertThat(crashed.tryDebit(id, 80, 2L, Deadline.none())).isTrue();
+        crashed.credit(id, 80, 2L);
+
+        // no flush or shutdown: a new instance with the same node id and journal starts
+        journaledLedger(journalDir).recover();
+
+        Campaign campaign = campaignRepository.findById(id).orElseThrow();
+        assertThat(campaign.getSpendingMinor()).isEqualTo(120);
+        assertThat(campaign.getReservedMinor()).isEqualTo(120);
+        assertThat(leaseRepository.findByNodeId("journal-node")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("expired leases of other nodes are settled as spent")
+    void expiredLeaseOfOtherNodeIsSettled() {
+        Campaign campaign = campaign("100.0");
+        campaign.setSpendingMinor(100);
+        campaign.setReservedMinor(300);
+        long id = campaignRepository.save(campaign).getId();
+        BudgetLease lease = new BudgetLease(id, "crashed-node", 300, Instant.now().minusSeconds(60));
+        lease.setFlushedMinor(100);
+        leaseRepository.save(lease);
+
+        ledger.settleExpiredLeases();
+
+        assertThat(campaignRepository.findById(id).orElseThrow().getSpendingMinor()).isEqualTo(300);
+        assertThat(leaseRepository.findByNodeId("crashed-node")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("spend flushed after the lease expired and was settled is not counted twice")
+    void flushAfterSettledLeaseIsNotCountedTwice() {
+        long id = campaign("100.0").getId();
+        assertThat(ledger.tryDebit(id, 100, 1L, Deadline.none())).isTrue();
+        // flushes failed for longer than the ttl
+        BudgetLease lease = lease(id);
+        lease.setExpiresAt(Instant.now().minusSeconds(60));
+        leaseRepository.save(lease);
+        ledger.settleExpiredLeases();
+        assertThat(campaignRepository.findById(id).orElseThrow().getSpendingMinor()).isEqualTo(500);
+
+        ledger.flush();
+
+        assertThat(campaignRepository.findById(id).orElseThrow().getSpendingMinor()).isEqualTo(500);
+        assertThat(ledger.pendingSpend(id)).isZero();
+        assertThat(leaseRepository.findByNodeId(ledger.getNodeId())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("a refund flushed after the node returned its lease is still added to the campaign")
+    void flushAfterReturnedLeaseIsApplied() throws InterruptedException {
+        long id = campaign("100.0").getId();
+        assertThat(ledger.tryDebit(id, 100, 1L, Deadline.none())).isTrue();
+        ledger.flush();
+        Thread.sleep(300);
+        ledger.flush();
+        assertThat(leaseRepository.findByCampaignIdAndNodeId(id, ledger.getNodeId())).isEmpty();
+
+        ledger.credit(id, 40, 1L);
+        ledger.flush();
+
+        Campaign campaign = campaignRepository.findById(id).orElseThrow();
+        assertThat(campaign.getSpendingMinor()).isEqualTo(60);
+        assertThat(campaign.getReservedMinor()).isEqualTo(60);
+        assertThat(ledger.pendingSpend(id)).isZero();
+    }
+
+    @Test
+    @DisplayName("a refund after the lease was returned does not become headroom without a lease")
+    void creditAfterReleaseDoesNotAddHeadroom() throws InterruptedException {
+        long id = campaign("100.0").getId();
+        assertThat(ledger.tryDebit(id, 100, 1L, Deadline.none())).isTrue();
+        ledger.flush();
+        Thread.sleep(300);
+        ledger.flush();
+        assertThat(leaseRepository.findByCampaignIdAndNodeId(id, ledger.getNodeId())).isEmpty();
+
+        ledger.credit(id, 100, 1L);
+        assertThat(ledger.tryDebit(id, 100, 2L, Deadline.none())).isTrue();
+
+        // the debit was admitted against a newly claimed lease, not against the refund
+        long granted = lease(id).getGrantedMinor();
+        ledger.flush();
+        Campaign campaign = campaignRepository.findById(id).orElseThrow();
+        assertThat(campaign.getSpendingMinor()).isEqualTo(100);
+        assertThat(campaign.getReservedMinor()).isEqualTo(granted);
+        assertThat(lease(id).getFlushedMinor()).isEqualTo(100);
+    }
+
+    @Test
+    @DisplayName("campaigns without a lease are forgotten after another idle period")
+    void unleasedAccountsArePruned() throws InterruptedException {
+        long id = campaign("100.0").getId();
+        assertThat(ledger.tryDebit(id, 100, 1L, Deadline.none())).isTrue();
+        ledger.flush();
+        Thread.sleep(300);
+        ledger.flush();
+        assertThat(leaseRepository.findByCampaignIdAndNodeId(id, ledger.getNodeId())).isEmpty();
+        int accounts = ledger.accountCount();
+
+        Thread.sleep(200);
+        ledger.flush();
+
+        assertThat(ledger.accountCount()).isEqualTo(accounts - 1);
+        assertThat(ledger.tryDebit(id, 50, 2L, Deadline.none())).isTrue();
+        ledger.flush();
+        assertThat(campaignRepository.findById(id).orElseThrow().getSpendingMinor()).isEqualTo(150);
+    }
+
+    @Test
+    @DisplayName("shutdown flushes and returns unused leases")
+    void shutdownReturnsLeases() {
+        long id = campaign("100.0").getId();
+        assertThat(ledger.tryDebit(id, 120, 1L, Deadline.none())).isTrue();
+        ledger.credit(id, 20, 1L);
+
+        ledger.shutdown();
+
+        Campaign campaign = campaignRepository.findById(id).orElseThrow();
+        assertThat(campaign.getSpendingMinor()).isEqualTo(100);
+        assertThat(campaign.getReservedMinor()).isEqualTo(100);
+        assertThat(leaseRepository.findByNodeId(ledger.getNodeId())).isEmpty();
+    }
+
+    private WriteBehindSpendLedger journaledLedger(Path journalDir) {
+        return new WriteBehindSpendLedger(leaseStore, ConcurrencyLimiter.unlimited("db"), "journal-node",
+                500, 5000, 10, 3_600_000, 200, journalDir.toString(), 1 << 20);
+    }
+
+    private Campaign campaign(String budget) {
+        return campaignRepository.save(new Campaign("Ledger", Set.of("kobler"), new BigDecimal(budget)));
+    }
+
+    private BudgetLease lease(long campaignId) {
+        return leaseRepository.findByCampaignIdAndNodeId(campaignId, ledger.getNodeId()).orElseThrow();
+    }
+}
@@ -2,20 +2,25 @@ package no.kobler.rtb.repository;
 
 
 import no.kobler.rtb.model.Campaign;
+import no.kobler.rtb.model.KeywordMatch;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
 
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
-@DataJpaTest
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
 class CampaignRepositoryTest {
 
     @Autowired
@@ -81,4 +86,53 @@ class CampaignRepositoryTest {
         Optional<Campaign> maybe = campaignRepository.findById(-999L);
         assertThat(maybe).isNotPresent();
     }
+
+    @Test
+    @DisplayName("bulk reads - load campaigns and keywords in a constant number of statements")
+    void bulkReads_constantStatementCount() {
+        var saved = IntStream.range(0, 25)
+                .mapToObj(i -> campaignRepository.save(
+                        new Campaign("Bulk" + i, Set.of("k" + i, "shared"), new BigDecimal("10.0"))))
+                .toList();
+        Statistics statistics = statistics();
+
+        freshPersistenceContext(statistics);
+        List<Campaign> all = campaignRepository.findAll();
+        assertThat(all).hasSize(25).allSatisfy(c -> assertThat(c.getKeywords()).hasSize(2));
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+
+        freshPersistenceContext(statistics);
+        List<Campaign> page = campaignRepository.findPageAfter(saved.getFirst().getId() - 1, PageRequest.ofSize(20));
+        assertThat(page).hasSize(20).allSatisfy(c -> assertThat(c.getKeywords()).contains("shared"));
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(2);
+    }
+
+    @Test
+    @DisplayName("findLiveByNormalizedKeywords - matches normalized keywords and skips exhausted campaigns")
+    void findLiveByNormalizedKeywords() {
+        Campaign live = campaignRepository.save(new Campaign("Live", Set.of(" Kobler ", "News"), new BigDecimal("10.0")));
+        Campaign exhausted = new Campaign("Exhausted", Set.of("kobler"), new BigDecimal("10.0"));
+        exhausted.setSpending(new BigDecimal("10.0"));
+        campaignRepository.save(exhausted);
+        campaignRepository.save(new Campaign("Other", Set.of("sports"), new BigDecimal("10.0")));
+        entityManager.flush();
+        entityManager.clear();
+
+        List<KeywordMatch> matches = campaignRepository.findLiveByNormalizedKeywords(List.of("kobler", "news"), 1L);
+
+        assertThat(matches).extracting(KeywordMatch::campaignId).containsOnly(live.getId());
+        assertThat(matches).extracting(KeywordMatch::keyword).containsExactlyInAnyOrder("kobler", "news");
+        assertThat(matches.getFirst().budgetMinor()).isEqualTo(1_000L);
+    }
+
+    private Statistics statistics() {
+        return entityManager.getEntityManager().getEntityManagerFactory()
+                .unwrap(SessionFactory.class).getStatistics();
+    }
+
+    private void freshPersistenceContext(Statistics statistics) {
+        entityManager.flush();
+        entityManager.clear();
+        statistics.clear();
+    }
 }
@@ -1,5 +1,6 @@
 package no.kobler.rtb.service;
 
+import no.kobler.rtb.concurrency.Deadline;
 import no.kobler.rtb.service.bids.BidDecision;
 import no.kobler.rtb.service.bids.BiddingService;
 import org.junit.jupiter.api.AfterEach;
@@ -9,10 +10,14 @@ import org.junit.jupiter.api.Test;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -31,7 +36,7 @@ class BidOrchestratorTest {
     @DisplayName("fast evaluation returns decision")
     void fastEvaluationReturnsDecision() {
         var biddingService = mock(BiddingService.class);
-        when(biddingService.evaluateBid(1L, Set.of("kobler"))).thenReturn(new BidDecision(true, 3.2));
+        when(biddingService.evaluateBid(eq(1L), eq(Set.of("kobler")), any(Deadline.class))).thenReturn(new BidDecision(true, 3.2));
 
         var orchestrator = new BidOrchestrator(executor, biddingService);
 
@@ -40,7 +45,7 @@ class BidOrchestratorTest {
         assertThat(optionalBidDecision).isPresent();
         assertThat(optionalBidDecision.get().bid()).isTrue();
         assertThat(optionalBidDecision.get().bidAmount()).isEqualTo(3.2);
-        verify(biddingService, times(1)).evaluateBid(1L, Set.of("kobler"));
+        verify(biddingService, times(1)).evaluateBid(eq(1L), eq(Set.of("kobler")), any(Deadline.class));
     }
 
     @Test
@@ -48,7 +53,7 @@ class BidOrchestratorTest {
     void slowEvaluationTimesOut() {
         var biddingService = mock(BiddingService.class);
         // Simulate slow evaluation: sleep inside mock
-        when(biddingService.evaluateBid(2L, Set.of("x"))).thenAnswer(invocation -> {
+        when(biddingService.evaluateBid(eq(2L), eq(Set.of("x")), any(Deadline.class))).thenAnswer(invocation -> {
             Thread.sleep(600); // longer than orchestrator timeout
             return new BidDecision(true, 1.0);
         });
@@ -58,7 +63,7 @@ class BidOrchestratorTest {
         Optional<BidDecision> optionalBidDecision = orchestrator.evaluateWithTimeout(2L, Set.of("x"), 250);
 
         assertThat(optionalBidDecision).isEmpty();
-        verify(biddingService, times(1)).evaluateBid(2L, Set.of("x")); // executed but timed out
+        verify(biddingService, times(1)).evaluateBid(eq(2L), eq(Set.of("x")), any(Deadline.class)); // executed but timed out
     }
 
     @Test
@@ -66,7 +71,7 @@ class BidOrchestratorTest {
     void interruptedEvaluationReturnsEmpty() throws Exception {
         // mock bidding service that sleeps (simulates long running work)
         var biddingService = mock(BiddingService.class);
-        when(biddingService.evaluateBid(1L, Set.of("a"))).thenAnswer(invocation -> {
+        when(biddingService.evaluateBid(eq(1L), eq(Set.of("a")), any(Deadline.class))).thenAnswer(invocation -> {
             Thread.sleep(1000); // long-running task
             return new BidDecision(true, 1.0);
         });
@@ -99,24 +104,69 @@ class BidOrchestratorTest {
             assertThat(resultRef.get()).isEmpty();
 
             // verify the bidding service was invoked once (task was executed)
-            verify(biddingService, times(1)).evaluateBid(1L, Set.of("a"));
+            verify(biddingService, times(1)).evaluateBid(eq(1L), eq(Set.of("a")), any(Deadline.class));
         } finally {
             executor.shutdownNow();
         }
     }
 
+    @Test
+    @DisplayName("virtual-thread executor: timeout cancels and interrupts the evaluation")
+    void virtualThreadTimeoutInterruptsEvaluation() throws Exception {
+        var biddingService = mock(BiddingService.class);
+        var interrupted = new CountDownLatch(1);
+        when(biddingService.evaluateBid(eq(3L), eq(Set.of("v")), any(Deadline.class))).thenAnswer(invocation -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return new BidDecision(true, 1.0);
+        });
+
+        try (ExecutorService virtualExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var orchestrator = new BidOrchestrator(virtualExecutor, biddingService);
+
+            Optional<BidDecision> optionalBidDecision = orchestrator.evaluateWithTimeout(3L, Set.of("v"), 100);
+
+            assertThat(optionalBidDecision).isEmpty();
+            assertThat(interrupted.await(1, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+
+    @Test
+    @DisplayName("evaluation that commits at the deadline still returns its decision")
+    void committedAtDeadlineReturnsDecision() {
+        var biddingService = mock(BiddingService.class);
+        when(biddingService.evaluateBid(eq(4L), eq(Set.of("c")), any(Deadline.class))).thenAnswer(invocation -> {
+            Deadline deadline = invocation.getArgument(2);
+            // commit right away, then return only after the orchestrator has stopped waiting
+            assertThat(deadline.commit()).isTrue();
+            Thread.sleep(300);
+            return new BidDecision(true, 2.5);
+        });
+
+        var orchestrator = new BidOrchestrator(executor, biddingService);
+
+        Optional<BidDecision> optionalBidDecision = orchestrator.evaluateWithTimeout(4L, Set.of("c"), 100);
+
+        assertThat(optionalBidDecision).isPresent();
+        assertThat(optionalBidDecision.get().bidAmount()).isEqualTo(2.5);
+    }
+
     @Test
     @DisplayName("failed evaluation returns empty")
     void failedEvaluationReturnsEmpty() {
         var biddingService = mock(BiddingService.class);
         // Simulate failed evaluation: throw exception inside mock
-        when(biddingService.evaluateBid(2L, Set.of("b"))).thenThrow(new RuntimeException("failed"));
+        when(biddingService.evaluateBid(eq(2L), eq(Set.of("b")), any(Deadline.class))).thenThrow(new RuntimeException("failed"));
 
         var orchestrator = new BidOrchestrator(executor, biddingService);
 
         Optional<BidDecision> optionalBidDecision = orchestrator.evaluateWithTimeout(2L, Set.of("b"), 250);
 
         assertThat(optionalBidDecision).isEmpty();
-        verify(biddingService, times(1)).evaluateBid(2L, Set.of("b")); // executed but failed
+        verify(biddingService, times(1)).evaluateBid(eq(2L), eq(Set.of("b")), any(Deadline.class)); // executed but failed
     }
 }
@@ -1,5 +1,7 @@
 package no.kobler.rtb.service;
 
+import no.kobler.rtb.catalog.CampaignCatalog;
+import no.kobler.rtb.concurrency.Deadline;
 import no.kobler.rtb.model.Campaign;
 import no.kobler.rtb.repository.CampaignRepository;
 import no.kobler.rtb.service.bids.BidDecision;
@@ -11,15 +13,19 @@ import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.ArgumentMatchers.anyDouble;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -31,17 +37,21 @@ import static org.mockito.Mockito.when;
 class BiddingServiceTest {
 
     private CampaignRepository campaignRepository;
+    private CampaignCatalog campaignCatalog;
     private BiddingService biddingService;
     private SmoothingService smoothingService; // mock
 
     @BeforeEach
     void setup() {
         campaignRepository = mock(CampaignRepository.class);
-        smoothingService = mock(SmoothingService.class);
+        // real default methods, so tryConsumeFirst goes through the stubbed tryConsume per candidate
+        smoothingService = mock(SmoothingService.class, CALLS_REAL_METHODS);
+        // the catalog loads the stubbed findAll() campaigns on first use
+        campaignCatalog = new CampaignCatalog(campaignRepository);
         // deterministic random to control prices: will generate predictable doubles
         Random deterministicRandom = new Random(123L);
-        // BiddingService constructor: (CampaignRepository repo, Random random, SmoothingService service)
-        biddingService = new BiddingService(campaignRepository, deterministicRandom, smoothingService);
+        // BiddingService constructor: (CampaignRepository repo, CampaignCatalog catalog, Random random, SmoothingService service)
+        biddingService = new BiddingService(campaignRepository, campaignCatalog, deterministicRandom, smoothingService);
     }
 
     @Test
@@ -58,7 +68,7 @@ class BiddingServiceTest {
         var decision = biddingService.evaluateBid(1L, Set.of("Kobler"));
 
         assertThat(decision.bid()).isFalse();
-        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), any(BigDecimal.class));
+        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), anyLong());
         verifyNoInteractions(smoothingService);
     }
 
@@ -71,26 +81,25 @@ class BiddingServiceTest {
 
         when(campaignRepository.findAll()).thenReturn(List.of(campaign));
         // allow smoothing reservation
-        when(smoothingService.tryConsume(anyLong(), anyDouble())).thenReturn(true);
+        when(smoothingService.tryConsume(anyLong(), anyLong())).thenReturn(true);
         // simulate successful atomic DB update
-        when(campaignRepository.incrementSpendingIfNotExceed(eq(10L), any(BigDecimal.class))).thenReturn(1);
+        when(campaignRepository.incrementSpendingIfNotExceed(eq(10L), anyLong())).thenReturn(1);
 
         var decision = biddingService.evaluateBid(42L, Set.of("kobler"));
 
         // We expect a bid
         assertThat(decision.bid()).isTrue();
-        double amount = Math.round(decision.bidAmount() * 100) / 100.0;
-        assertThat(amount).isBetween(0.0, 10.0);
+        long amountMinor = Math.round(decision.bidAmount() * 100);
+        assertThat(amountMinor).isBetween(0L, 1000L);
 
-        // verify DB atomic increment was attempted with the correct id and amount
-        ArgumentCaptor<BigDecimal> amountCaptor = ArgumentCaptor.forClass(BigDecimal.class);
+        // verify DB atomic increment was attempted with the correct id and amount (øre)
+        ArgumentCaptor<Long> amountCaptor = ArgumentCaptor.forClass(Long.class);
         verify(campaignRepository, times(1))
                 .incrementSpendingIfNotExceed(eq(10L), amountCaptor.capture());
-        BigDecimal passedAmount = amountCaptor.getValue();
-        assertThat(passedAmount).isEqualByComparingTo(BigDecimal.valueOf(amount));
+        assertThat(amountCaptor.getValue()).isEqualTo(amountMinor);
 
         // verify smoothing reservation attempted
-        verify(smoothingService, times(1)).tryConsume(eq(10L), eq(amount));
+        verify(smoothingService, times(1)).tryConsume(eq(10L), eq(amountMinor));
     }
 
     @Test
@@ -105,7 +114,7 @@ class BiddingServiceTest {
         var decision = biddingService.evaluateBid(9L, Set.of("KOBLER"));
 
         assertThat(decision.bid()).isFalse();
-        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), any(BigDecimal.class));
+        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), anyLong());
         // smoothing should not be called because budget check fails before smoothing
         verifyNoInteractions(smoothingService);
     }
@@ -127,7 +136,7 @@ class BiddingServiceTest {
 
         // Assert
         assertThat(decision.bid()).isFalse();
-        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), any(BigDecimal.class));
+        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), anyLong());
         verifyNoInteractions(smoothingService);
     }
 
@@ -140,13 +149,13 @@ class BiddingServiceTest {
 
         when(campaignRepository.findAll()).thenReturn(List.of(campaign));
         // smoothing denies token reservation
-        when(smoothingService.tryConsume(eq(20L), anyDouble())).thenReturn(false);
+        when(smoothingService.tryConsume(eq(20L), anyLong())).thenReturn(false);
 
         BidDecision decision = biddingService.evaluateBid(101L, Set.of("kObLeR"));
 
         assertThat(decision.bid()).isFalse();
-        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), any(BigDecimal.class));
-        verify(smoothingService, times(1)).tryConsume(eq(20L), anyDouble());
+        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), anyLong());
+        verify(smoothingService, times(1)).tryConsume(eq(20L), anyLong());
     }
 
     @Test
@@ -163,9 +172,9 @@ class BiddingServiceTest {
 
         when(campaignRepository.findAll()).thenReturn(List.of(campaign1, campaign2));
         // allow smoothing for whichever winner chosen
-        when(smoothingService.tryConsume(anyLong(), anyDouble())).thenReturn(true);
+        when(smoothingService.tryConsume(anyLong(), anyLong())).thenReturn(true);
         // simulate successful atomic DB update for whoever is winner
-        when(campaignRepository.incrementSpendingIfNotExceed(anyLong(), any(BigDecimal.class))).thenReturn(1);
+        when(campaignRepository.incrementSpendingIfNotExceed(anyLong(), anyLong())).thenReturn(1);
 
         // Evaluate bid - deterministicRandom will produce different random numbers for each candidate
         var decision = biddingService.evaluateBid(1000L, Set.of("kOBLeR"));
@@ -174,20 +183,51 @@ class BiddingServiceTest {
 
         // verify exactly one increment attempt (only winner)
         ArgumentCaptor<Long> campaignIdCaptor = ArgumentCaptor.forClass(Long.class);
-        ArgumentCaptor<BigDecimal> amountCaptor = ArgumentCaptor.forClass(BigDecimal.class);
+        ArgumentCaptor<Long> amountCaptor = ArgumentCaptor.forClass(Long.class);
         verify(campaignRepository, times(1))
                 .incrementSpendingIfNotExceed(campaignIdCaptor.capture(), amountCaptor.capture());
         Long passedCampaignId = campaignIdCaptor.getValue();
-        BigDecimal passedAmount = amountCaptor.getValue();
+        Long passedAmount = amountCaptor.getValue();
 
 
 
         // ensure that the winner is one of the candidates
         assertThat(List.of(101L, 102L)).contains(passedCampaignId);
         // spending must equal decision amount
-        assertThat(passedAmount).isEqualByComparingTo(BigDecimal.valueOf(decision.bidAmount()));
+        assertThat(passedAmount).isEqualTo(Math.round(decision.bidAmount() * 100));
         // ensure that the winner is one of the candidates by checking that smoothing was attempted for one id
-        verify(smoothingService, times(1)).tryConsume(passedCampaignId, passedAmount.doubleValue());
+        verify(smoothingService, times(1)).tryConsume(passedCampaignId, passedAmount.longValue());
+    }
+
+    @Test
+    @DisplayName("all candidates within budget are offered to smoothing in one call, highest price first")
+    void evaluateBid_candidatesReservedInOneCall() {
+        var random = mock(Random.class);
+        when(random.nextDouble()).thenReturn(0.5, 0.9, 0.7, 0.3);
+        biddingService = new BiddingService(campaignRepository, campaignCatalog, random, smoothingService);
+
+        Campaign campaign1 = new Campaign("Campaign 1", Set.of("kobler"), new BigDecimal("100.0"));
+        campaign1.setId(1L);
+        Campaign campaign2 = new Campaign("Campaign 2", Set.of("kobler"), new BigDecimal("100.0"));
+        campaign2.setId(2L);
+        Campaign spent = new Campaign("Spent", Set.of("kobler"), new BigDecimal("100.0"));
+        spent.setId(3L);
+        spent.setSpending(new BigDecimal("99.99")); // one øre left
+        Campaign campaign4 = new Campaign("Campaign 4", Set.of("kobler"), new BigDecimal("100.0"));
+        campaign4.setId(4L);
+        when(campaignRepository.findAll()).thenReturn(List.of(campaign1, campaign2, spent, campaign4));
+        // smoothing rejects everyone
+
+        var decision = biddingService.evaluateBid(1L, Set.of("kobler"));
+
+        assertThat(decision.bid()).isFalse();
+        ArgumentCaptor<long[]> idsCaptor = ArgumentCaptor.forClass(long[].class);
+        ArgumentCaptor<long[]> pricesCaptor = ArgumentCaptor.forClass(long[].class);
+        verify(smoothingService, times(1)).tryConsumeFirst(idsCaptor.capture(), pricesCaptor.capture(), eq(3));
+        assertThat(Arrays.copyOf(idsCaptor.getValue(), 3)).containsExactlyInAnyOrder(1L, 2L, 4L);
+        assertThat(Arrays.copyOf(pricesCaptor.getValue(), 3)).isSortedAccordingTo(Comparator.reverseOrder());
+        verify(smoothingService, times(3)).tryConsume(anyLong(), anyLong());
+        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), anyLong());
     }
 
     @Test
@@ -226,7 +266,7 @@ class BiddingServiceTest {
     void evaluateBid_singleMatchingCampaignNegativePrice_returnsNoBid() {
         // Arrange
         var random = mock(Random.class);
-        biddingService = new BiddingService(campaignRepository, random, smoothingService);
+        biddingService = new BiddingService(campaignRepository, campaignCatalog, random, smoothingService);
 
         Campaign campaign = new Campaign("C1", Set.of("sports"), new BigDecimal("5.0"));
         campaign.setId(1L);
@@ -239,8 +279,8 @@ class BiddingServiceTest {
 
         // Assert
         assertThat(decision.bid()).isFalse();
-        verify(smoothingService, times(1)).tryConsume(anyLong(), anyDouble());
-        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), any(BigDecimal.class));
+        verify(smoothingService, times(1)).tryConsume(anyLong(), anyLong());
+        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), anyLong());
     }
 
     @Test
@@ -252,9 +292,9 @@ class BiddingServiceTest {
 
         when(campaignRepository.findAll()).thenReturn(List.of(campaign));
         // allow smoothing reservation
-        when(smoothingService.tryConsume(anyLong(), anyDouble())).thenReturn(true);
+        when(smoothingService.tryConsume(anyLong(), anyLong())).thenReturn(true);
         // simulate DB error on the atomic update
-        doThrow(new RuntimeException("DB failure")).when(campaignRepository).incrementSpendingIfNotExceed(eq(20L), any(BigDecimal.class));
+        doThrow(new RuntimeException("DB failure")).when(campaignRepository).incrementSpendingIfNotExceed(eq(20L), anyLong());
 
         // Act
         var decision = biddingService.evaluateBid(1L, Set.of("Kobler"));
@@ -262,9 +302,9 @@ class BiddingServiceTest {
         // Assert
         assertThat(decision.bid()).isFalse();
         // ensure atomic update was attempted once
-        verify(campaignRepository, times(1)).incrementSpendingIfNotExceed(eq(20L), any(BigDecimal.class));
+        verify(campaignRepository, times(1)).incrementSpendingIfNotExceed(eq(20L), anyLong());
         // smoothing token refunded on DB error
-        verify(smoothingService, times(1)).refund(eq(20L), anyDouble());
+        verify(smoothingService, times(1)).refund(eq(20L), anyLong());
     }
 
     @Test
@@ -276,9 +316,9 @@ class BiddingServiceTest {
 
         when(campaignRepository.findAll()).thenReturn(List.of(campaign));
         // allow smoothing reservation
-        when(smoothingService.tryConsume(anyLong(), anyDouble())).thenReturn(true);
+        when(smoothingService.tryConsume(anyLong(), anyLong())).thenReturn(true);
         // simulate DB error on the atomic update
-        when(campaignRepository.incrementSpendingIfNotExceed(eq(20L), any(BigDecimal.class))).thenReturn(0);
+        when(campaignRepository.incrementSpendingIfNotExceed(eq(20L), anyLong())).thenReturn(0);
 
         // Act
         var decision = biddingService.evaluateBid(1L, Set.of("Kobler"));
@@ -286,8 +326,110 @@ class BiddingServiceTest {
         // Assert
         assertThat(decision.bid()).isFalse();
         // ensure atomic update was attempted once
-        verify(campaignRepository, times(1)).incrementSpendingIfNotExceed(eq(20L), any(BigDecimal.class));
+        verify(campaignRepository, times(1)).incrementSpendingIfNotExceed(eq(20L), anyLong());
         // smoothing token refunded on DB error
-        verify(smoothingService, times(1)).refund(eq(20L), anyDouble());
+        verify(smoothingService, times(1)).refund(eq(20L), anyLong());
+    }
+
+    @Test
+    @DisplayName("expired deadline -> no reservation and no spend update")
+    void evaluateBid_expiredDeadline_skipsReservationAndUpdate() {
+        Campaign campaign = new Campaign("Camp", Set.of("Kobler"), new BigDecimal("100.0"));
+        campaign.setId(30L);
+        when(campaignRepository.findAll()).thenReturn(List.of(campaign));
+
+        var decision = biddingService.evaluateBid(1L, Set.of("Kobler"), Deadline.after(0, TimeUnit.MILLISECONDS));
+
+        assertThat(decision.bid()).isFalse();
+        verifyNoInteractions(smoothingService);
+        verify(campaignRepository, never()).incrementSpendingIfNotExceed(anyLong(), anyLong());
+    }
+
+    @Test
+    @DisplayName("deadline abandoned during the spend update -> spend compensated and tokens refunded")
+    void evaluateBid_abandonedDuringUpdate_compensates() {
+        Campaign campaign = new Campaign("Camp", Set.of("Kobler"), new BigDecimal("100.0"));
+        campaign.setId(31L);
+        when(campaignRepository.findAll()).thenReturn(List.of(campaign));
+        when(smoothingService.tryConsume(anyLong(), anyLong())).thenReturn(true);
+
+        Deadline deadline = Deadline.after(10, TimeUnit.SECONDS);
+        // the caller gives up while the update is running
+        when(campaignRepository.incrementSpendingIfNotExceed(eq(31L), anyLong())).thenAnswer(invocation -> {
+            deadline.abandon();
+            return 1;
+        });
+
+        var decision = biddingService.evaluateBid(1L, Set.of("Kobler"), deadline);
+
+        assertThat(decision.bid()).isFalse();
+        ArgumentCaptor<Long> amountCaptor = ArgumentCaptor.forClass(Long.class);
+        verify(campaignRepository).incrementSpendingIfNotExceed(eq(31L), amountCaptor.capture());
+        verify(campaignRepository).decrementSpending(31L, amountCaptor.getValue());
+        verify(smoothingService).refund(31L, amountCaptor.getValue());
+        assertThat(campaignCatalog.snapshot().get(31L).getSpendingMinor()).isZero();
+    }
+
+    @Test
+    @DisplayName("caller interrupts the bid during the spend update -> tokens still refunded, interrupt kept")
+    void evaluateBid_interruptedDuringUpdate_refundsTokens() {
+        Campaign campaign = new Campaign("Camp", Set.of("Kobler"), new BigDecimal("100.0"));
+        campaign.setId(32L);
+        when(campaignRepository.findAll()).thenReturn(List.of(campaign));
+        when(smoothingService.tryConsume(anyLong(), anyLong())).thenReturn(true);
+        // like a Redis client, the refund fails on an interrupted thread
+        AtomicInteger refunds = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("interrupted");
+            }
+            return refunds.incrementAndGet();
+        }).when(smoothingService).refund(anyLong(), anyLong());
+
+        Deadline deadline = Deadline.after(10, TimeUnit.SECONDS);
+        // the caller gives up and cancels the bid with cancel(true) while the update is running
+        when(campaignRepository.incrementSpendingIfNotExceed(eq(32L), anyLong())).thenAnswer(invocation -> {
+            deadline.abandon();
+            Thread.currentThread().interrupt();
+            return 1;
+        });
+
+        try {
+            var decision = biddingService.evaluateBid(1L, Set.of("Kobler"), deadline);
+
+            assertThat(decision.bid()).isFalse();
+            assertThat(Thread.currentThread().isInterrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+        }
+        assertThat(refunds.get()).isEqualTo(1);
+        verify(campaignRepository).decrementSpending(eq(32L), anyLong());
+    }
+
+    @Test
+    @DisplayName("spend update rejected on an interrupted thread -> tokens still refunded")
+    void evaluateBid_interruptedAndRejected_refundsTokens() {
+        Campaign campaign = new Campaign("Camp", Set.of("Kobler"), new BigDecimal("100.0"));
+        campaign.setId(33L);
+        when(campaignRepository.findAll()).thenReturn(List.of(campaign));
+        when(smoothingService.tryConsume(anyLong(), anyLong())).thenReturn(true);
+        AtomicInteger refunds = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("interrupted");
+            }
+            return refunds.incrementAndGet();
+        }).when(smoothingService).refund(anyLong(), anyLong());
+        when(campaignRepository.incrementSpendingIfNotExceed(eq(33L), anyLong())).thenAnswer(invocation -> {
+            Thread.currentThread().interrupt();
+            return 0;
+        });
+
+        try {
+            assertThat(biddingService.evaluateBid(1L, Set.of("Kobler")).bid()).isFalse();
+        } finally {
+            Thread.interrupted();
+        }
+        assertThat(refunds.get()).isEqualTo(1);
     }
 }
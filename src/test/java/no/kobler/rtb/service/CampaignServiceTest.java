@@ -1,6 +1,7 @@
 package no.kobler.rtb.service;
 
 
+import jakarta.persistence.EntityManager;
 import no.kobler.rtb.dto.CampaignRequest;
 import no.kobler.rtb.dto.CampaignResponse;
 import no.kobler.rtb.model.Campaign;
@@ -12,14 +13,17 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Pageable;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -31,6 +35,9 @@ class CampaignServiceTest {
     @Mock
     private CampaignRepository campaignRepository;
 
+    @Mock
+    private EntityManager entityManager;
+
     @InjectMocks
     private CampaignService campaignService;
 
@@ -107,11 +114,11 @@ class CampaignServiceTest {
     @Test
     @DisplayName("listCampaigns - empty returns empty list")
     void listCampaigns_empty() {
-        when(campaignRepository.findAll()).thenReturn(List.of());
+        when(campaignRepository.findPageAfter(eq(0L), any(Pageable.class))).thenReturn(List.of());
 
-        List<CampaignResponse> list = campaignService.listCampaigns();
+        List<CampaignResponse> list = campaignService.listCampaigns(0L, 10);
         assertThat(list).isNotNull().isEmpty();
-        verify(campaignRepository, times(1)).findAll();
+        verify(campaignRepository, times(1)).findPageAfter(eq(0L), any(Pageable.class));
     }
 
     @Test
@@ -125,14 +132,41 @@ class CampaignServiceTest {
         campaign2.setId(2L);
         campaign2.setSpending(new BigDecimal("2.0"));
 
-        when(campaignRepository.findAll()).thenReturn(List.of(campaign1, campaign2));
+        when(campaignRepository.findPageAfter(eq(0L), any(Pageable.class))).thenReturn(List.of(campaign1, campaign2));
 
-        List<CampaignResponse> list = campaignService.listCampaigns();
+        List<CampaignResponse> list = campaignService.listCampaigns(0L, 10);
         assertThat(list).hasSize(2);
 
         // verify mapping for each
-        assertThat(list).extracting(CampaignResponse::getId).containsExactlyInAnyOrder(1L, 2L);
-        assertThat(list).extracting(CampaignResponse::getName).containsExactlyInAnyOrder("A", "B");
-        verify(campaignRepository, times(1)).findAll();
+        assertThat(list).extracting(CampaignResponse::getId).containsExactly(1L, 2L);
+        assertThat(list).extracting(CampaignResponse::getName).containsExactly("A", "B");
+        verify(campaignRepository, times(1)).findPageAfter(eq(0L), any(Pageable.class));
+    }
+
+    @Test
+    @DisplayName("listCampaigns - page size is clamped to the maximum")
+    void listCampaigns_clampsPageSize() {
+        ArgumentCaptor<Pageable> captor = ArgumentCaptor.forClass(Pageable.class);
+        when(campaignRepository.findPageAfter(eq(5L), captor.capture())).thenReturn(List.of());
+
+        campaignService.listCampaigns(5L, 1_000_000);
+
+        assertThat(captor.getValue().getPageSize()).isEqualTo(CampaignService.MAX_PAGE_SIZE);
+    }
+
+    @Test
+    @DisplayName("streamCampaigns - passes every campaign to the sink in order")
+    void streamCampaigns_passesAllCampaigns() {
+        Campaign campaign1 = new Campaign("A", Set.of("a"), new BigDecimal("10"));
+        campaign1.setId(1L);
+        Campaign campaign2 = new Campaign("B", Set.of("b"), new BigDecimal("20"));
+        campaign2.setId(2L);
+        when(campaignRepository.findPageAfter(eq(0L), any(Pageable.class))).thenReturn(List.of(campaign1, campaign2));
+
+        List<CampaignResponse> received = new ArrayList<>();
+        long count = campaignService.streamCampaigns(received::add);
+
+        assertThat(count).isEqualTo(2);
+        assertThat(received).extracting(CampaignResponse::getId).containsExactly(1L, 2L);
     }
 }
@@ -0,0 +1,114 @@
+package no.kobler.rtb.smoothing;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AtomicTokenBucketTest {
+
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000_000L);
+
+    @Test
+    @DisplayName("consumes up to capacity, then refills continuously")
+    void consumeAndRefill() {
+        var bucket = new AtomicTokenBucket(10.0, 1.0, nanos::get);
+
+        assertThat(bucket.tryConsume(4.0)).isTrue();
+        assertThat(bucket.tryConsume(4.0)).isTrue();
+        assertThat(bucket.tryConsume(4.0)).isFalse();
+        assertThat(bucket.getAvailableTokens()).isEqualTo(2.0);
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1_500));
+        assertThat(bucket.getAvailableTokens()).isEqualTo(3.5);
+        assertThat(bucket.tryConsume(3.5)).isTrue();
+        assertThat(bucket.getAvailableTokens()).isZero();
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertThat(bucket.getAvailableTokens()).isEqualTo(10.0);
+    }
+
+    @Test
+    @DisplayName("refund restores tokens but never above capacity")
+    void refundIsCapped() {
+        var bucket = new AtomicTokenBucket(10.0, 1.0, nanos::get);
+
+        assertThat(bucket.tryConsume(2.25)).isTrue();
+        bucket.refund(1.0);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(8.75);
+
+        bucket.refund(5.0);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(10.0);
+        assertThat(bucket.tryConsume(10.01)).isFalse();
+        assertThat(bucket.tryConsume(0.0)).isTrue();
+    }
+
+    @Test
+    @DisplayName("only a full bucket is retired, and a retired bucket takes no reservations")
+    void retireIfFull() {
+        var bucket = new AtomicTokenBucket(10.0, 1.0, nanos::get);
+
+        assertThat(bucket.tryConsume(0.5)).isTrue();
+        assertThat(bucket.retireIfFull()).isFalse();
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(bucket.retireIfFull()).isTrue();
+        assertThat(bucket.isRetired()).isTrue();
+        assertThat(bucket.tryConsume(0.5)).isFalse();
+        bucket.refund(1.0);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(10.0);
+    }
+
+    @Test
+    @DisplayName("amounts in øre are reserved exactly, without rounding drift")
+    void minorUnitsAreExact() {
+        var bucket = new AtomicTokenBucket(10.0, 1.0, nanos::get);
+
+        for (int i = 0; i < 1_000; i++) {
+            assertThat(bucket.tryConsumeMinor(1)).isTrue();
+        }
+        assertThat(bucket.tryConsumeMinor(1)).isFalse();
+        assertThat(bucket.availableMicros()).isZero();
+
+        bucket.refundMinor(333);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(3.33);
+    }
+
+    @Test
+    @DisplayName("concurrent consumers never take more than the bucket holds")
+    void concurrentConsumeNeverOverspends() throws Exception {
+        var bucket = new AtomicTokenBucket(10.0, 1.0, nanos::get);
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger granted = new AtomicInteger();
+        try {
+            for (int t = 0; t < threads; t++) {
+                executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 1_000; i++) {
+                        if (bucket.tryConsume(0.01)) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            executor.shutdown();
+            assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(granted.get()).isEqualTo(1_000);
+        assertThat(bucket.getAvailableTokens()).isZero();
+    }
+}
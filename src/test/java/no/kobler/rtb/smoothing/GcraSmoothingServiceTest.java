@@ -0,0 +1,43 @@
+package no.kobler.rtb.smoothing;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GcraSmoothingServiceTest {
+
+    @Test
+    @DisplayName("arrival times at or before now are evicted, campaigns still pacing are kept")
+    void fullBucketsAreEvicted() {
+        var clock = new AtomicLong(1_000L);
+        var service = new GcraSmoothingService(clock::get);
+        assertThat(service.tryConsume(1L, 500)).isTrue();
+        assertThat(service.tryConsume(2L, 100)).isTrue();
+
+        // 100 øre per second: campaign 2 is full again after one second, campaign 1 after five
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        service.evictIdle();
+        assertThat(service.arrivalCount()).isEqualTo(1);
+        assertThat(service.availableTokens(1L)).isEqualTo(6.0);
+
+        // an evicted campaign starts over with a full bucket
+        assertThat(service.availableTokens(2L)).isEqualTo(10.0);
+        assertThat(service.tryConsume(2L, 1_000)).isTrue();
+        assertThat(service.tryConsume(2L, 1)).isFalse();
+    }
+
+    @Test
+    @DisplayName("inspecting or refunding a campaign does not create an arrival time")
+    void readsDoNotCreateArrivals() {
+        var service = new GcraSmoothingService(() -> 0L);
+
+        assertThat(service.availableTokens(7L)).isEqualTo(10.0);
+        service.refund(7L, 100);
+
+        assertThat(service.arrivalCount()).isZero();
+    }
+}
@@ -0,0 +1,80 @@
+package no.kobler.rtb.smoothing;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class GcraTest {
+
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000_000L);
+
+    @Test
+    @DisplayName("admits up to capacity, then releases one øre per interval")
+    void consumeAndRelease() {
+        var gcra = new Gcra(10, 1, 1_000);
+        long now = 5_000;
+
+        long tat = gcra.consume(now, now, 4);
+        assertThat(tat).isEqualTo(9_000);
+        tat = gcra.consume(tat, now, 6);
+        assertThat(tat).isEqualTo(15_000);
+        assertThat(gcra.consume(tat, now, 1)).isEqualTo(Gcra.REJECTED);
+        assertThat(gcra.availableMinor(tat, now)).isZero();
+
+        // 1.5 intervals later only one whole øre is back
+        assertThat(gcra.availableMinor(tat, now + 1_500)).isEqualTo(1);
+        assertThat(gcra.consume(tat, now + 1_500, 2)).isEqualTo(Gcra.REJECTED);
+        assertThat(gcra.consume(tat, now + 1_500, 1)).isEqualTo(16_000);
+
+        // an idle campaign is full again, never fuller
+        assertThat(gcra.availableMinor(tat, now + 60_000)).isEqualTo(10);
+        assertThat(gcra.consume(tat, now + 60_000, 10)).isEqualTo(now + 70_000);
+        assertThat(gcra.consume(tat, now + 60_000, 0)).isEqualTo(tat);
+    }
+
+    @Test
+    @DisplayName("refund moves the arrival time back but never behind now")
+    void refundIsCapped() {
+        var gcra = new Gcra(10, 1, 1_000);
+        long tat = gcra.consume(0, 0, 8);
+
+        assertThat(gcra.refund(tat, 0, 3)).isEqualTo(5_000);
+        assertThat(gcra.refund(tat, 0, 20)).isZero();
+        assertThat(gcra.refund(tat, 7_000, 3)).isEqualTo(7_000);
+        assertThat(gcra.availableMinor(gcra.refund(tat, 0, 20), 0)).isEqualTo(10);
+    }
+
+    @Test
+    @DisplayName("the refill rate must divide the clock resolution")
+    void inexactIntervalIsRejected() {
+        assertThatThrownBy(() -> new Gcra(1_000, 300, 1_000_000)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(new Gcra(1_000, 100, 1_000_000).toleranceTicks()).isEqualTo(10_000_000);
+    }
+
+    @Test
+    @DisplayName("service starts campaigns full and paces them at nanosecond resolution")
+    void servicePacesCampaigns() {
+        var service = new GcraSmoothingService(nanos::get);
+
+        assertThat(service.availableTokens(1L)).isEqualTo(10.0);
+        assertThat(service.tryConsume(1L, 999)).isTrue();
+        assertThat(service.tryConsume(1L, 2)).isFalse();
+        assertThat(service.tryConsume(2L, 1_000)).isTrue();
+
+        // 100 øre per second: one more øre every 10ms
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(service.tryConsume(1L, 2)).isTrue();
+        assertThat(service.tryConsume(1L, 1)).isFalse();
+
+        service.refund(1L, 500);
+        assertThat(service.availableTokens(1L)).isEqualTo(5.0);
+        service.refund(1L, 5_000);
+        assertThat(service.availableTokens(1L)).isEqualTo(10.0);
+        assertThat(service.availableTokens(2L)).isEqualTo(0.1);
+    }
+}
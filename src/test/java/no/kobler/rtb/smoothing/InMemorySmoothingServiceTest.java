@@ -0,0 +1,58 @@
+package no.kobler.rtb.smoothing;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InMemorySmoothingServiceTest {
+
+    @Test
+    @DisplayName("buckets full in two consecutive sweeps are evicted, buckets in use are kept")
+    void idleBucketsAreEvicted() {
+        var service = new InMemorySmoothingService("atomic");
+        assertThat(service.tryConsume(1L, 500)).isTrue();
+        assertThat(service.tryConsume(2L, 0)).isTrue();
+
+        service.evictIdle();
+        assertThat(service.bucketCount()).isEqualTo(2);
+
+        service.evictIdle();
+        assertThat(service.bucketCount()).isEqualTo(1);
+        assertThat(service.consumedMinor(Set.of(1L, 2L))).containsOnlyKeys(1L);
+        assertThat(service.availableTokens(1L)).isLessThan(10.0);
+
+        // an evicted campaign starts over with a full bucket
+        assertThat(service.availableTokens(2L)).isEqualTo(10.0);
+        assertThat(service.tryConsume(2L, 1_000)).isTrue();
+        assertThat(service.availableTokens(2L)).isLessThan(10.0);
+    }
+
+    @Test
+    @DisplayName("inspecting or refunding a campaign does not create a bucket")
+    void readsDoNotCreateBuckets() {
+        var service = new InMemorySmoothingService();
+
+        assertThat(service.availableTokens(7L)).isEqualTo(10.0);
+        service.refund(7L, 100);
+
+        assertThat(service.bucketCount()).isZero();
+    }
+
+    @Test
+    @DisplayName("a retired bucket rejects reservations and ignores refunds")
+    void retiredBucketIsInert() {
+        var bucket = new TokenBucket(10.0, 1.0);
+        assertThat(bucket.tryConsume(5.0)).isTrue();
+        assertThat(bucket.retireIfFull()).isFalse();
+
+        bucket.refund(5.0);
+        assertThat(bucket.retireIfFull()).isTrue();
+        assertThat(bucket.isRetired()).isTrue();
+        assertThat(bucket.tryConsume(1.0)).isFalse();
+        bucket.refund(1.0);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(10.0);
+    }
+}
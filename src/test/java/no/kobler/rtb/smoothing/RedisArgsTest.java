@@ -0,0 +1,48 @@
+package no.kobler.rtb.smoothing;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RedisArgsTest {
+
+    @Test
+    @DisplayName("longs are encoded as their decimal ASCII digits, with an optional prefix")
+    void encodesLikeLongToString() {
+        long[] values = {0, 7, -7, 9, 10, 99, 100, 1_000, 123_456_789, -987_654_321_012L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            assertThat(ascii(RedisArgs.encode(value))).isEqualTo(Long.toString(value));
+            assertThat(RedisArgs.decodeLong(RedisArgs.encode(value))).isEqualTo(value);
+        }
+        assertThat(ascii(RedisArgs.encode(RedisArgs.encode("smoothing:bucket:"), 42L))).isEqualTo("smoothing:bucket:42");
+    }
+
+    @Test
+    @DisplayName("cached encodings are shared for repeated values and stay correct when slots collide")
+    void cacheSharesEncodings() {
+        var keys = new RedisArgs.Cache(RedisArgs.encode("smoothing:bucket:"), 4);
+
+        byte[] first = keys.encode(42L);
+        assertThat(keys.encode(42L)).isSameAs(first);
+        assertThat(RedisArgs.encode(1_234L)).isSameAs(RedisArgs.encode(1_234L));
+        for (long id = 0; id < 100; id++) {
+            assertThat(ascii(keys.encode(id))).isEqualTo("smoothing:bucket:" + id);
+        }
+        assertThat(ascii(keys.encode(42L))).isEqualTo("smoothing:bucket:42");
+    }
+
+    @Test
+    @DisplayName("non-numeric replies are rejected")
+    void rejectsNonNumbers() {
+        assertThatThrownBy(() -> RedisArgs.decodeLong(RedisArgs.encode("12a"))).isInstanceOf(NumberFormatException.class);
+        assertThatThrownBy(() -> RedisArgs.decodeLong(RedisArgs.encode("-"))).isInstanceOf(NumberFormatException.class);
+    }
+
+    private static String ascii(byte[] bytes) {
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}